@@ -3,7 +3,13 @@
 
 package com.digitalasset.examples.bondTrading;
 
+import com.digitalasset.examples.bondTrading.processor.ArrivalSchedule;
+import com.digitalasset.examples.bondTrading.processor.BatchingPolicy;
+import com.digitalasset.examples.bondTrading.processor.EventProcessor;
 import com.digitalasset.examples.bondTrading.processor.MarketSetupProcessor;
+import com.digitalasset.examples.bondTrading.processor.ScenarioGenerator;
+import com.digitalasset.examples.bondTrading.processor.SelectionStrategy;
+import com.digitalasset.examples.bondTrading.processor.SharedSubscription;
 import com.digitalasset.examples.bondTrading.processor.TradeInjector;
 import com.digitalasset.examples.bondTrading.processor.TradingPartyProcessor;
 import com.daml.ledger.api.v1.LedgerIdentityServiceGrpc;
@@ -28,10 +34,15 @@ import org.kohsuke.args4j.Argument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 /*
  * The main class of all bond trading bots. The single class accepts a command string as the first argument, and
@@ -39,7 +50,7 @@ import java.util.Optional;
  *
  *  - marketSetup: using the facilities in Setup, create the initial market conditions, modulo the trade proposals
  *  - injectTrades: inject a series of trades (DvpProposals),  defined by a CSV file, on behalf of a Party
- *  - runSettlement: run a settlemement bot for a given party
+ *  - runSettlement: run a settlemement bot for a given party, or for several parties over one shared subscription
  *
  */
 public class BondTradingMain {
@@ -60,14 +71,97 @@ public class BondTradingMain {
         }
     }
 
-    private static class TradeInjectorArgs {
+    private static class ScenarioArgs {
+
+        @Option(name = "--seed", metaVar = "SEED", usage = "generate the scenario, and poisson arrivals, from SEED: the same seed and settings give the same run (default 1)")
+        private long seed = 1L;
+
+        @Option(name = "--parties", metaVar = "N", usage = "trade between N parties, named Trader1 to TraderN (default 2)")
+        private int parties = 2;
+
+        @Option(name = "--isins", metaVar = "N", usage = "trade N bonds (default 10)")
+        private int isins = 10;
+
+        @Option(name = "--skew", metaVar = "S", usage = "Zipf skew of trades over bonds: 0 spreads them evenly, 1 or more concentrates them on a few (default 0)")
+        private double skew = 0.0;
+
+        @Option(name = "--sizes", metaVar = "DISTRIBUTION", usage = "distribution of trade sizes: uniform (default) or log-uniform")
+        private String sizes = "uniform";
+
+        @Option(name = "--min-size", metaVar = "BONDS", usage = "smallest trade size (default 1000)")
+        private long minSize = 1000L;
+
+        @Option(name = "--max-size", metaVar = "BONDS", usage = "largest trade size (default 100000)")
+        private long maxSize = 100000L;
+
+        @Option(name = "--buy-ratio", metaVar = "RATIO", usage = "fraction of trades in which the lower-numbered party buys (default 0.5)")
+        private double buyRatio = 0.5;
+
+        ScenarioGenerator getGenerator() {
+            ScenarioGenerator generator = new ScenarioGenerator(seed);
+            generator.setPartyCount(parties);
+            generator.setIsinCount(isins);
+            generator.setSkew(skew);
+            generator.setSizes(sizes, minSize, maxSize);
+            generator.setBuyRatio(buyRatio);
+            return generator;
+        }
+
+        long getSeed() {
+            return seed;
+        }
+    }
+
+    private static class GenerateScenarioArgs extends ScenarioArgs {
+
+        @Option(name = "--trades", metaVar = "N", usage = "generate N trades (default 1000)")
+        private long trades = 1000L;
+
+        @Argument(index = 0, required = true, metaVar = "ASSET_FILE", usage = "file to write the assets needed to settle the trades to")
+        private String assetFilePath = null;
+
+        @Argument(index = 1, metaVar = "TRADE_FILE", usage = "file to write the trades to (default: do not write them)")
+        private String tradeFilePath = null;
+
+        public long getTrades() {
+            return trades;
+        }
+
+        public String getAssetFilePath() {
+            return assetFilePath;
+        }
+
+        public String getTradeFilePath() {
+            return tradeFilePath;
+        }
+    }
+
+    private static class TradeInjectorArgs extends ScenarioArgs {
         @Option(name = "--delay", aliases = {"-d"}, usage = "Delay for DELAY mS between trade injections", metaVar = "DELAY")
         private String delay_mS = null;
 
+        @Option(name = "--rate", metaVar = "TPS", forbids = "--delay", usage = "send TPS trades a second open-loop, however long they take, measuring latency from each trade's scheduled time")
+        private Double rate = null;
+
+        @Option(name = "--arrivals", metaVar = "PROCESS", depends = "--rate", usage = "when trades are scheduled at the given rate: constant (default) or poisson")
+        private String arrivals = "constant";
+
+        @Option(name = "--batch", metaVar = "N", usage = "send up to N trades in one command (default 1)")
+        private int batchSize = 1;
+
+        @Option(name = "--linger", metaVar = "MILLISECONDS", depends = "--batch", usage = "send a partial batch once it has waited MILLISECONDS for more trades (default: until the batch is full)")
+        private Long linger_mS = null;
+
         @Argument(index = 0, required = true, usage = "inject trades for this Party (buyer)")
         private String party = null;
 
-        @Argument(index = 1, required = true, usage = "trade file to load trades from")
+        @Option(name = "--workers", metaVar = "N", usage = "send trades from N concurrent workers, each with a share of the trades and an equal share of the rate (default 1)")
+        private int workers = 1;
+
+        @Option(name = "--generate", metaVar = "N", usage = "inject the first N trades of a generated scenario, instead of reading a trade file")
+        private Long generatedTrades = null;
+
+        @Argument(index = 1, usage = "trade file to load trades from")
         private String tradeFilePath = null;
 
         public String getDelay_mS() {
@@ -75,6 +169,22 @@ public class BondTradingMain {
             return delay_mS;
         }
 
+        public Double getRate() {
+            return rate;
+        }
+
+        public String getArrivals() {
+            return arrivals;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public Long getLinger_mS() {
+            return linger_mS;
+        }
+
         public String getParty() {
             return party;
         }
@@ -82,15 +192,81 @@ public class BondTradingMain {
         public String getTradeFilePath() {
             return tradeFilePath;
         }
+
+        public Long getGeneratedTrades() {
+            return generatedTrades;
+        }
+
+        public int getWorkers() {
+            return workers;
+        }
     }
 
     private static class TradingPartyArgs {
 
-        @Argument(index = 0, required = true, usage = "the Party doing the trading")
-        private String party;
+        @Option(name = "--checkpoint", metaVar = "FILE", usage = "save the settlement state to FILE periodically, and resume from it on startup (FILE.PARTY for each of several parties)")
+        private String checkpointFile = null;
 
-        public String getParty() {
-            return party;
+        @Option(name = "--checkpoint-interval", metaVar = "SECONDS", usage = "save a checkpoint at most every SECONDS seconds (default 10)")
+        private int checkpointInterval_S = 10;
+
+        @Option(name = "--bootstrap-acs", usage = "load the settlement state from the active contract set instead of replaying the ledger")
+        private boolean bootstrapAcs = false;
+
+        @Option(name = "--selection", metaVar = "STRATEGY", usage = "how dvps are selected for settlement: fifo (default), count (most dvps) or value (most assets)")
+        private String selection = "fifo";
+
+        @Option(name = "--selection-budget", metaVar = "MICROSECONDS", usage = "time allowed for each count or value selection (default 1000)")
+        private long selectionBudget_uS = 1000L;
+
+        @Option(name = "--batch-min", metaVar = "N", usage = "settle a symbol once N dvps are waiting on it (default 1)")
+        private int batchMin = 1;
+
+        @Option(name = "--batch-max", metaVar = "N", usage = "settle at most N dvps in one command, submitting more in further commands (default 200)")
+        private int batchMax = BatchingPolicy.DEFAULT_MAX_BATCH;
+
+        @Option(name = "--batch-wait", metaVar = "MILLISECONDS", usage = "settle waiting dvps after at most MILLISECONDS, even if the minimum batch is not reached (default 1000)")
+        private long batchWait_mS = 1000L;
+
+        @Option(name = "--batch-adaptive", usage = "grow the minimum batch as settlement command latency rises")
+        private boolean batchAdaptive = false;
+
+        @Option(name = "--settlement-shards", metaVar = "N", usage = "settle symbols in parallel on N shard threads (default 0, on the processing thread)")
+        private int settlementShards = 0;
+
+        @Argument(index = 0, required = true, multiValued = true, metaVar = "PARTY", usage = "the Party doing the trading; several parties share one subscription")
+        private List<String> parties = new ArrayList<>();
+
+        public BatchingPolicy getBatchingPolicy() {
+            return new BatchingPolicy(batchMin, batchMax, batchWait_mS, TimeUnit.MILLISECONDS, batchAdaptive);
+        }
+
+        public String getSelection() {
+            return selection;
+        }
+
+        public long getSelectionBudget_uS() {
+            return selectionBudget_uS;
+        }
+
+        public int getSettlementShards() {
+            return settlementShards;
+        }
+
+        public boolean getBootstrapAcs() {
+            return bootstrapAcs;
+        }
+
+        public String getCheckpointFile() {
+            return checkpointFile;
+        }
+
+        public int getCheckpointInterval_S() {
+            return checkpointInterval_S;
+        }
+
+        public List<String> getParties() {
+            return parties;
         }
     }
 
@@ -109,8 +285,6 @@ public class BondTradingMain {
 
     public static final String CURRENCY = "USD";
 
-    public static final int SETTLEMENT_BATCH_SIZE = 1;
-
 
     private static boolean exitFlag = false;
     private static int exitCode = 0;
@@ -203,7 +377,7 @@ public class BondTradingMain {
         int i = 0;
         while(
             i < args.length &&
-            !(args[i].equals("marketSetup") || args[i].equals("injectTrades") || args[i].equals("runSettlement"))
+            !(args[i].equals("marketSetup") || args[i].equals("injectTrades") || args[i].equals("runSettlement") || args[i].equals("generateScenario"))
             ) i++;
 
         return i == args.length ? args : Arrays.copyOfRange(args,0, i+1);
@@ -211,7 +385,7 @@ public class BondTradingMain {
 
     // Class variables
 
-    @Option(name = "--main-package-id", metaVar = "PACKAGE_ID", usage = "main package id", required = true)
+    @Option(name = "--main-package-id", metaVar = "PACKAGE_ID", usage = "main package id (required by every command but generateScenario)")
     private String packageId = "";
 
     @Option(name = "--host", aliases = {"-h"}, metaVar = "HOST", usage = "host to connect to")
@@ -229,7 +403,25 @@ public class BondTradingMain {
     @Option(name = "--realtime", aliases = { "-r"}, usage = "use real time when sending commands" )
     boolean useWallTime = false;
 
-    @Argument(index = 0, required = true, metaVar = "COMMAND", usage = "command to run: one of 'marketSetup', 'injectTrades', 'runSettlement'")
+    @Option(name = "--terse", usage = "request non-verbose transaction streams, without record field labels")
+    private boolean terse = false;
+
+    @Option(name = "--submit-window", metaVar = "WINDOW", usage = "submit commands asynchronously, with at most WINDOW submissions in flight (0 submits synchronously)")
+    private int submissionWindow = 0;
+
+    @Option(name = "--latency-report", metaVar = "SECONDS", usage = "report command latency percentiles every SECONDS (0: only on exit)")
+    private Integer latencyReportInterval = null;
+
+    @Option(name = "--metrics-port", metaVar = "PORT", usage = "serve Prometheus metrics on http://localhost:PORT/metrics")
+    private int metricsPort = 0;
+
+    @Option(name = "--compact-log", usage = "log one short line per received event")
+    private boolean compactLog = false;
+
+    @Option(name = "--ingest-buffer", metaVar = "SIZE", usage = "hold up to SIZE received transactions waiting for processing (default 1024)")
+    private int ingestionCapacity = EventProcessor.DEFAULT_INGESTION_CAPACITY;
+
+    @Argument(index = 0, required = true, metaVar = "COMMAND", usage = "command to run: one of 'marketSetup', 'injectTrades', 'runSettlement', 'generateScenario'")
     private String command = null;
 
     private int run(String args[]) {
@@ -246,6 +438,17 @@ public class BondTradingMain {
         // Initialize the command arguments and options
         String [] cmdArgs = Arrays.copyOfRange(args, cmd.length, args.length);
 
+        // Generating a scenario needs no ledger
+        if(command.equals("generateScenario")) {
+            int generated = generateScenario(cmdArgs);
+            if(generated == 0) terminate(0);
+            return generated;
+        }
+        if(packageId.isEmpty()) {
+            logError(command, "--main-package-id is required");
+            return 1;
+        }
+
         // Initialize a plaintext gRPC channel
         ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
 
@@ -254,39 +457,123 @@ public class BondTradingMain {
 
         log.debug("Started, ledgerId={}, packageId={}", ledgerId, packageId);
 
-        int retVal;
+        List<EventProcessor> processors = new ArrayList<>();
 
         switch(command) {
             case "marketSetup":
                 // Start up the market setup processor - run by the Bank (issuer)
                 MarketSetupArgs setUpArgs = new MarketSetupArgs();
                 if(!parseArguments(setUpArgs,cmdArgs)) return 1;
-                retVal = new MarketSetupProcessor(channel, packageId, ledgerId, setUpArgs.getAssetFilePath(), useWallTime).run();
+                processors.add(new MarketSetupProcessor(channel, packageId, ledgerId, setUpArgs.getAssetFilePath(), useWallTime));
                 break;
 
             case "injectTrades":
                 // Start trade injectors for each party - they select their proposals from a common file
                 TradeInjectorArgs injectorArgs = new TradeInjectorArgs();
                 if(!parseArguments(injectorArgs,cmdArgs)) return 1;
-                retVal = new TradeInjector(
+                if((injectorArgs.getTradeFilePath() == null) == (injectorArgs.getGeneratedTrades() == null)) {
+                    logError(command, "give either a trade file or --generate");
+                    return 1;
+                }
+                TradeInjector injector = new TradeInjector(
                     channel, packageId, ledgerId,
                     injectorArgs.getParty(),injectorArgs.getTradeFilePath(), injectorArgs.getDelay_mS(),
-                    useWallTime).run();
+                    useWallTime);
+                try {
+                    if(injectorArgs.getRate() != null) injector.setArrivalSchedule(ArrivalSchedule.named(injectorArgs.getArrivals(), injectorArgs.getRate(), injectorArgs.getSeed()));
+                    injector.setBatchSize(injectorArgs.getBatchSize());
+                    injector.setWorkers(injectorArgs.getWorkers());
+                    if(injectorArgs.getGeneratedTrades() != null) injector.setGenerator(injectorArgs.getGenerator(), injectorArgs.getGeneratedTrades());
+                    if(injectorArgs.getLinger_mS() != null) injector.setLinger(injectorArgs.getLinger_mS(), TimeUnit.MILLISECONDS);
+                } catch (IllegalArgumentException e) {
+                    logError(command, e.getMessage());
+                    return 1;
+                }
+                processors.add(injector);
                 break;
 
             case "runSettlement":
-                // Run a settlement bot
+                // Run a settlement bot for each party
                 TradingPartyArgs tpArgs = new TradingPartyArgs();
                 if(!parseArguments(tpArgs,cmdArgs)) return 1;
-                retVal = new TradingPartyProcessor(channel, packageId, ledgerId, tpArgs.getParty(), useWallTime).run();
+                boolean hosted = tpArgs.getParties().size() > 1;
+                for(String party : tpArgs.getParties()) {
+                    TradingPartyProcessor tradingParty = new TradingPartyProcessor(channel, packageId, ledgerId, party, useWallTime);
+                    if(tpArgs.getCheckpointFile() != null) {
+                        String checkpointFile = tpArgs.getCheckpointFile() + (hosted ? "." + party : "");
+                        tradingParty.setCheckpoint(Paths.get(checkpointFile), tpArgs.getCheckpointInterval_S() * 1000L);
+                    }
+                    tradingParty.setBootstrapFromActiveContracts(tpArgs.getBootstrapAcs());
+                    try {
+                        tradingParty.setSelectionStrategy(SelectionStrategy.named(tpArgs.getSelection(), tpArgs.getSelectionBudget_uS(), TimeUnit.MICROSECONDS));
+                        tradingParty.setBatchingPolicy(tpArgs.getBatchingPolicy());
+                        tradingParty.setSettlementShards(tpArgs.getSettlementShards());
+                    } catch (IllegalArgumentException e) {
+                        logError(command, e.getMessage());
+                        return 1;
+                    }
+                    processors.add(tradingParty);
+                }
                 break;
 
             default:
                 System.err.print("Command '"+command+"' not recognized");
-                retVal = 1;
-                break;
+                return 1;
+        }
+
+        if(submissionWindow < 0) {
+            logError(command, "submit window must not be negative: "+submissionWindow);
+            return 1;
+        }
+        if(ingestionCapacity <= 0) {
+            logError(command, "ingest buffer size must be positive: "+ingestionCapacity);
+            return 1;
+        }
+        if(metricsPort < 0 || metricsPort > 65535) {
+            logError(command, "metrics port out of range: "+metricsPort);
+            return 1;
+        }
+        if(latencyReportInterval != null && latencyReportInterval < 0) {
+            logError(command, "latency report interval must not be negative: "+latencyReportInterval);
+            return 1;
+        }
+        for(EventProcessor processor : processors) {
+            processor.setIngestionCapacity(ingestionCapacity);
+            processor.setSubmissionWindow(submissionWindow);
+            processor.setVerbose(!terse);
+            processor.setCompactEventLog(compactLog);
+            processor.setMetricsPort(metricsPort);
+            if(latencyReportInterval != null) processor.setLatencyReport(latencyReportInterval * 1000L);
+        }
+
+        if(processors.size() == 1) return processors.get(0).run();
+
+        // Several parties are hosted over one transaction and completion stream
+        SharedSubscription shared = new SharedSubscription(channel, ledgerId, processors);
+        shared.setMetricsPort(metricsPort);
+        return shared.run();
+    }
+
+    /**
+     * Write a generated scenario: the assets to set up the market with, and optionally the trades to inject
+     */
+    private int generateScenario(String[] cmdArgs) {
+        GenerateScenarioArgs scenarioArgs = new GenerateScenarioArgs();
+        if(!parseArguments(scenarioArgs, cmdArgs)) return 1;
+
+        String tradeFilePath = scenarioArgs.getTradeFilePath();
+        try {
+            scenarioArgs.getGenerator().write(scenarioArgs.getTrades(),
+                Paths.get(scenarioArgs.getAssetFilePath()), tradeFilePath == null ? null : Paths.get(tradeFilePath));
+        } catch (IllegalArgumentException e) {
+            logError(command, e.getMessage());
+            return 1;
+        } catch (IOException e) {
+            logError(command, "cannot write scenario: " + e.getMessage());
+            return 1;
         }
-        return retVal;
+        logProgress(command, String.format("generated %d trades", scenarioArgs.getTrades()));
+        return 0;
     }
 
     /**
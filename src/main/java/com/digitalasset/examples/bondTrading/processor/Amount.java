@@ -0,0 +1,222 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/*
+ * An Amount is a DAML Numeric held as a 64-bit integer count of units of 10^-SCALE, the default Numeric scale.
+ *
+ * That covers amounts up to about 922 million exactly. Larger amounts, and results of arithmetic that would overflow,
+ * are held as a BigDecimal instead, so no value is ever truncated; arithmetic on two scaled amounts is a checked long
+ * operation.
+ *
+ * Amount is immutable. Amount.Total is a mutable running total, used to sum amounts without allocating.
+ */
+public final class Amount implements Comparable<Amount>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int SCALE = 10;
+
+    public static final Amount ZERO = new Amount(0L, null);
+
+    private static final long ONE = 10_000_000_000L;    // 10^SCALE
+
+    private final long units;           // the amount in units of 10^-SCALE, when big is null
+    private final BigDecimal big;       // the amount, when it cannot be held in units
+
+    private Amount(long units, BigDecimal big) {
+        this.units = units;
+        this.big = big;
+    }
+
+    /**
+     * Parse the text of a DAML Numeric value
+     */
+    public static Amount parse(String numeric) {
+        int length = numeric.length();
+        int i = 0;
+        boolean negative = false;
+        if(length > 0 && (numeric.charAt(0) == '-' || numeric.charAt(0) == '+')) {
+            negative = numeric.charAt(0) == '-';
+            i = 1;
+        }
+
+        long units = 0L;
+        int digits = 0;
+        int fractionDigits = -1;
+        for(; i < length; i++) {
+            char c = numeric.charAt(i);
+            if(c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+                continue;
+            }
+            if(c < '0' || c > '9' || units > (Long.MAX_VALUE - 9) / 10) {
+                // Exponents, malformed text and large values are left to BigDecimal
+                return of(new BigDecimal(numeric));
+            }
+            if(fractionDigits == SCALE) {
+                if(c != '0') return of(new BigDecimal(numeric));
+                continue;
+            }
+            if(fractionDigits >= 0) fractionDigits++;
+            units = units * 10 + (c - '0');
+            digits++;
+        }
+        if(digits == 0) throw new NumberFormatException("not a number: '" + numeric + "'");
+
+        for(int scale = Math.max(fractionDigits, 0); scale < SCALE; scale++) {
+            if(units > Long.MAX_VALUE / 10) return of(new BigDecimal(numeric));
+            units *= 10;
+        }
+        return new Amount(negative ? -units : units, null);
+    }
+
+    public static Amount of(long wholeUnits) {
+        if(Math.abs(wholeUnits) <= Long.MAX_VALUE / ONE) return new Amount(wholeUnits * ONE, null);
+        return new Amount(0L, BigDecimal.valueOf(wholeUnits));
+    }
+
+    public static Amount of(BigDecimal value) {
+        try {
+            return new Amount(value.setScale(SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact(), null);
+        } catch (ArithmeticException e) {
+            return new Amount(0L, value);
+        }
+    }
+
+    public Amount add(Amount other) {
+        if(big == null && other.big == null) {
+            try {
+                return new Amount(Math.addExact(units, other.units), null);
+            } catch (ArithmeticException e) {
+                // Fall through to BigDecimal
+            }
+        }
+        return new Amount(0L, toBigDecimal().add(other.toBigDecimal()));
+    }
+
+    public int signum() {
+        return big == null ? Long.signum(units) : big.signum();
+    }
+
+    public BigDecimal toBigDecimal() {
+        return big == null ? BigDecimal.valueOf(units, SCALE) : big;
+    }
+
+    public double doubleValue() {
+        return big == null ? (double) units / ONE : big.doubleValue();
+    }
+
+    @Override
+    public int compareTo(Amount other) {
+        if(big == null && other.big == null) return Long.compare(units, other.units);
+        return toBigDecimal().compareTo(other.toBigDecimal());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Amount && compareTo((Amount) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return toBigDecimal().stripTrailingZeros().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return toBigDecimal().stripTrailingZeros().toPlainString();
+    }
+
+    /*
+     * A running total of amounts. Adding and comparing amounts that fit in units does not allocate
+     */
+    public static final class Total implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private long units = 0L;
+        private BigDecimal big = null;
+
+        public void add(Amount amount) {
+            if(big == null && amount.big == null) {
+                try {
+                    units = Math.addExact(units, amount.units);
+                    return;
+                } catch (ArithmeticException e) {
+                    // Fall through to BigDecimal
+                }
+            }
+            big = toBigDecimal().add(amount.toBigDecimal());
+        }
+
+        public void subtract(Amount amount) {
+            if(big == null && amount.big == null) {
+                try {
+                    units = Math.subtractExact(units, amount.units);
+                    return;
+                } catch (ArithmeticException e) {
+                    // Fall through to BigDecimal
+                }
+            }
+            big = toBigDecimal().subtract(amount.toBigDecimal());
+        }
+
+        public void set(Total other) {
+            units = other.units;
+            big = other.big;
+        }
+
+        /**
+         * Return true if this total is at least the sum of another total and an amount
+         */
+        public boolean covers(Total required, Amount next) {
+            if(big == null && required.big == null && next.big == null) {
+                try {
+                    return units >= Math.addExact(required.units, next.units);
+                } catch (ArithmeticException e) {
+                    // Fall through to BigDecimal
+                }
+            }
+            return toBigDecimal().compareTo(required.toBigDecimal().add(next.toBigDecimal())) >= 0;
+        }
+
+        /**
+         * Return true if this total is at least another total
+         */
+        public boolean covers(Total other) {
+            if(big == null && other.big == null) return units >= other.units;
+            return toBigDecimal().compareTo(other.toBigDecimal()) >= 0;
+        }
+
+        /**
+         * Return true if this total is at least the given amount
+         */
+        public boolean covers(Amount amount) {
+            if(big == null && amount.big == null) return units >= amount.units;
+            return toBigDecimal().compareTo(amount.toBigDecimal()) >= 0;
+        }
+
+        public Amount toAmount() {
+            return big == null ? new Amount(units, null) : of(big);
+        }
+
+        public double doubleValue() {
+            return big == null ? (double) units / ONE : big.doubleValue();
+        }
+
+        private BigDecimal toBigDecimal() {
+            return big == null ? BigDecimal.valueOf(units, SCALE) : big;
+        }
+
+        @Override
+        public String toString() {
+            return toAmount().toString();
+        }
+    }
+}
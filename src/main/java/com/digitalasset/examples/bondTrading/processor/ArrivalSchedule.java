@@ -0,0 +1,77 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * An ArrivalSchedule gives the times at which an open-loop load generator intends to send, at a target rate
+ * independent of how fast the ledger responds.
+ *
+ * Constant arrivals are evenly spaced. Poisson arrivals have exponentially distributed gaps with the same mean, which
+ * models independent clients and produces the bursts a constant rate never does. Times are offsets from the start of
+ * the schedule; a sender that falls behind sends late rather than skipping, and measures latency from the intended
+ * time so the delay is not hidden. An ArrivalSchedule is used on one thread only.
+ */
+public final class ArrivalSchedule {
+
+    private final double meanIntervalNanos;
+    private final Random random;        // null for constant arrivals
+    private double next = 0.0;          // the offset of the next arrival, kept fractional so the rate does not drift
+
+    private ArrivalSchedule(double meanIntervalNanos, Random random) {
+        this.meanIntervalNanos = meanIntervalNanos;
+        this.random = random;
+    }
+
+    static ArrivalSchedule constant(double perSecond) {
+        return new ArrivalSchedule(meanIntervalNanos(perSecond), null);
+    }
+
+    static ArrivalSchedule poisson(double perSecond, Random random) {
+        return new ArrivalSchedule(meanIntervalNanos(perSecond), random);
+    }
+
+    private static double meanIntervalNanos(double perSecond) {
+        if(!(perSecond > 0.0) || Double.isInfinite(perSecond)) throw new IllegalArgumentException("arrival rate must be positive: " + perSecond);
+        return TimeUnit.SECONDS.toNanos(1) / perSecond;
+    }
+
+    /**
+     * Return the schedule with the given arrival process, constant or poisson, at perSecond arrivals a second. Poisson
+     * arrivals are drawn from seed, so a run can be repeated with the same arrivals
+     *
+     * @throws IllegalArgumentException if there is no arrival process of that name, or the rate is not positive
+     */
+    public static ArrivalSchedule named(String name, double perSecond, long seed) {
+        switch (name) {
+            case "constant":
+                return constant(perSecond);
+            case "poisson":
+                return poisson(perSecond, new Random(seed));
+            default:
+                throw new IllegalArgumentException("unknown arrival process '" + name + "'");
+        }
+    }
+
+    /**
+     * Return the schedule for one of parts senders sharing this schedule's rate. Constant arrivals are staggered
+     * between the senders, so together they arrive as evenly as one sender would
+     */
+    ArrivalSchedule share(int part, int parts) {
+        ArrivalSchedule share = new ArrivalSchedule(meanIntervalNanos * parts, random == null ? null : new Random(random.nextLong()));
+        if(random == null) share.next = part * meanIntervalNanos;
+        return share;
+    }
+
+    /**
+     * Return the offset from the start of the schedule, in nanoseconds, of the next arrival
+     */
+    long nextNanos() {
+        long offset = (long) next;
+        next += random == null ? meanIntervalNanos : -Math.log(1.0 - random.nextDouble()) * meanIntervalNanos;
+        return offset;
+    }
+}
@@ -0,0 +1,130 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A BatchingPolicy decides when the DVPs waiting on a symbol should be allocated or settled, and how many may go in
+ * one command.
+ *
+ * A queue is settled once it holds at least the minimum batch, or once DVPs have waited on it for the maximum wait
+ * time. If adaptive, the minimum batch grows in proportion to the observed settlement command latency relative to the
+ * lowest latency seen, up to the maximum batch: as the ledger slows down, each round trip carries more DVPs.
+ *
+ * The maximum batch caps the DVPs in one command, keeping transactions within size limits. More DVPs ready on a
+ * symbol go in further commands, submitted alongside.
+ *
+ * A BatchingPolicy is used on one thread only: each settlement shard has its own copy.
+ */
+public final class BatchingPolicy {
+
+    // The most DVPs in one command, unless configured otherwise
+    public static final int DEFAULT_MAX_BATCH = 200;
+
+    // Weight of the latest sample in the moving average of command latency
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final int minBatch;
+    private final int maxBatch;
+    private final long maxWaitNanos;
+    private final boolean adaptive;
+
+    private final Map<Object, Long> waitingSince = new IdentityHashMap<>();     // queue -> when it started waiting
+    private double averageLatencyNanos = 0.0;
+    private double lowestLatencyNanos = Double.MAX_VALUE;
+
+    /**
+     * @param minBatch the number of waiting DVPs that triggers settlement
+     * @param maxBatch the most DVPs to select for one command
+     * @param maxWait the longest time DVPs wait for a batch to fill
+     * @param adaptive whether to grow the minimum batch with command latency
+     */
+    public BatchingPolicy(int minBatch, int maxBatch, long maxWait, TimeUnit unit, boolean adaptive) {
+        if(minBatch < 1 || maxBatch < minBatch) {
+            throw new IllegalArgumentException("batch sizes must satisfy 1 <= minimum <= maximum");
+        }
+        if(maxWait < 0) {
+            throw new IllegalArgumentException("maximum batch wait must not be negative");
+        }
+        this.minBatch = minBatch;
+        this.maxBatch = maxBatch;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Settle whatever is waiting, as soon as possible
+     */
+    public static BatchingPolicy immediate() {
+        return new BatchingPolicy(1, DEFAULT_MAX_BATCH, 0L, TimeUnit.MILLISECONDS, false);
+    }
+
+    /**
+     * Return a policy with the same settings and nothing waiting or measured yet
+     */
+    public BatchingPolicy copy() {
+        return new BatchingPolicy(minBatch, maxBatch, maxWaitNanos, TimeUnit.NANOSECONDS, adaptive);
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    /**
+     * Return the number of waiting DVPs that currently triggers settlement
+     */
+    public int currentMinBatch() {
+        if(!adaptive || averageLatencyNanos == 0.0) return minBatch;
+        double scaled = Math.ceil(minBatch * averageLatencyNanos / lowestLatencyNanos);
+        return (int) Math.min(maxBatch, Math.max(minBatch, scaled));
+    }
+
+    /**
+     * Decide whether a queue should be settled now. A queue keeps waiting until a batch from it is submitted, so one
+     * that is ready but matches nothing stays ready
+     *
+     * @param queue the queue, identifying it between calls
+     * @param waiting the number of DVPs waiting on it
+     */
+    public boolean ready(Object queue, int waiting, long nowNanos) {
+        if(waiting == 0) {
+            waitingSince.remove(queue);
+            return false;
+        }
+        Long since = waitingSince.putIfAbsent(queue, nowNanos);
+        return waiting >= currentMinBatch() || (since != null && nowNanos - since >= maxWaitNanos) || maxWaitNanos == 0;
+    }
+
+    /**
+     * Record that a batch from the queue has been submitted: any DVPs left on it wait afresh
+     */
+    public void submitted(Object queue) {
+        waitingSince.remove(queue);
+    }
+
+    /**
+     * Return the delay until the next waiting queue reaches the maximum wait, or -1 if none is still short of it.
+     * A queue past the maximum wait is ready whenever settlement runs, so needs no timer
+     */
+    public long nanosToNextDeadline(long nowNanos) {
+        long next = -1L;
+        for(long since : waitingSince.values()) {
+            long delay = since + maxWaitNanos - nowNanos;
+            if(delay > 0L && (next < 0 || delay < next)) next = delay;
+        }
+        return next;
+    }
+
+    /**
+     * Record the round trip latency of a settlement command
+     */
+    public void recordLatency(long nanos) {
+        if(nanos <= 0) return;
+        averageLatencyNanos = averageLatencyNanos == 0.0 ? nanos : LATENCY_WEIGHT * nanos + (1 - LATENCY_WEIGHT) * averageLatencyNanos;
+        lowestLatencyNanos = Math.min(lowestLatencyNanos, averageLatencyNanos);
+    }
+}
@@ -0,0 +1,55 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/*
+ * A Checkpoint records the offset of the last transaction a processor has fully handled, together with the processor
+ * state derived from the transactions up to and including that offset. A processor restarted from a checkpoint can
+ * subscribe from the saved offset rather than replaying the ledger from the beginning.
+ *
+ * Checkpoints are written to a temporary file which then replaces the previous checkpoint, so a crash while writing
+ * never leaves a partial checkpoint behind.
+ */
+class Checkpoint implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String offset;
+    private final Serializable state;
+
+    Checkpoint(String offset, Serializable state) {
+        this.offset = offset;
+        this.state = state;
+    }
+
+    String getOffset() {
+        return offset;
+    }
+
+    Serializable getState() {
+        return state;
+    }
+
+    void write(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeObject(this);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static Checkpoint read(Path file) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return (Checkpoint) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("not a checkpoint file: " + e.getMessage(), e);
+        }
+    }
+}
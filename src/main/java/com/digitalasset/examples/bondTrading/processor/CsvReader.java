@@ -0,0 +1,362 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+ * A CsvReader reads the rows of a CSV file with a header line, as the trade and asset files are.
+ *
+ * The file is memory-mapped a window at a time, so files of any size can be read without copying them onto the heap.
+ * Column indices are looked up by name once, from the header, and each row is parsed into a view of its fields in the
+ * mapped file, reused from one row to the next: only the fields asked for become Strings. A parallel stream of rows
+ * splits the file into chunks at line boundaries and parses them on several threads; the rows may also be taken as
+ * several streams, one per chunk, for consumers that each work through a share of the file.
+ *
+ * Fields may be quoted, to contain commas or doubled quotes, but not line breaks, which always end a row; lines may
+ * end in LF or CRLF, and blank lines are skipped. Fields are UTF-8. Malformed rows throw UncheckedIOException from the
+ * stream.
+ */
+final class CsvReader implements Closeable {
+
+    // The most of the file mapped at once, per stream or chunk. No line may be longer
+    private static final long WINDOW_BYTES = 64L << 20;
+
+    // Chunks of the file smaller than this are not split further for parallel parsing
+    private static final long MIN_CHUNK_BYTES = 1L << 20;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long windowBytes;
+    private final long minChunkBytes;
+    private final long size;
+    private final List<String> header;
+    private final long dataStart;               // file position of the first row after the header
+
+    private CsvReader(Path path, FileChannel channel, long windowBytes, long minChunkBytes) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.windowBytes = windowBytes;
+        this.minChunkBytes = minChunkBytes;
+        this.size = channel.size();
+
+        RowSpliterator first = new RowSpliterator(0L, size);
+        List<String> names = new ArrayList<>();
+        try {
+            first.tryAdvance(row -> {
+                for(int i = 0; i < row.size(); i++) names.add(row.get(i));
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        this.header = Collections.unmodifiableList(names);
+        this.dataStart = first.position;
+    }
+
+    static CsvReader open(Path path) throws IOException {
+        return open(path, WINDOW_BYTES, MIN_CHUNK_BYTES);
+    }
+
+    /**
+     * Open the file with the given window and chunk sizes, so tests can reach rows that cross windows and parallel
+     * splits with small files
+     */
+    static CsvReader open(Path path, long windowBytes, long minChunkBytes) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new CsvReader(path, channel, windowBytes, minChunkBytes);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    List<String> header() {
+        return header;
+    }
+
+    /**
+     * Return the indices of the named columns, in the order named
+     *
+     * @throws IOException if the file has no column of one of the names
+     */
+    int[] columns(String... names) throws IOException {
+        int[] columns = new int[names.length];
+        for(int i = 0; i < names.length; i++) {
+            columns[i] = header.indexOf(names[i]);
+            if(columns[i] < 0) throw new IOException(String.format("%s: no column '%s'", path, names[i]));
+        }
+        return columns;
+    }
+
+    /**
+     * Return the rows after the header, in file order. Each Row is only valid until the next is read from the same
+     * stream, or chunk of a parallel stream, so anything kept must be copied out, as by Row.select
+     */
+    Stream<Row> rows() {
+        return StreamSupport.stream(new RowSpliterator(dataStart, size), false);
+    }
+
+    /**
+     * Return the rows after the header as parts streams, each of a contiguous chunk of the file of about the same size,
+     * together holding every row in file order. Rows are only valid as for rows
+     */
+    List<Stream<Row>> partitions(int parts) {
+        List<Stream<Row>> partitions = new ArrayList<>(parts);
+        long start = dataStart;
+        for(int k = 1; k <= parts; k++) {
+            long end = k == parts ? size : Math.max(start, lineStartAfter(dataStart + (size - dataStart) * k / parts));
+            partitions.add(StreamSupport.stream(new RowSpliterator(start, end), false));
+            start = end;
+        }
+        return partitions;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Return the file position after the first line break at or after from - 1, or the end of the file
+     */
+    private long lineStartAfter(long from) {
+        if(from <= 0L) return 0L;
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long p = from - 1;
+        try {
+            while(p < size) {
+                buffer.clear();
+                int n = channel.read(buffer, p);
+                if(n <= 0) break;
+                for(int i = 0; i < n; i++) {
+                    if(buffer.get(i) == '\n') return p + i + 1;
+                }
+                p += n;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return size;
+    }
+
+    private UncheckedIOException malformed(long position, String problem) {
+        return new UncheckedIOException(new IOException(String.format("%s: row at byte %d: %s", path, position, problem)));
+    }
+
+    /**
+     * A view of the fields of one row in the mapped file
+     */
+    final class Row {
+
+        private ByteBuffer buffer;
+        private long position;                  // file position of the row, for error messages
+        private int size = 0;
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private boolean[] escaped = new boolean[16];   // the field is quoted and contains doubled quotes
+        private byte[] scratch = new byte[64];
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Return the field in the given column
+         */
+        String get(int column) {
+            if(column >= size) throw malformed(position, String.format("%d fields, no column %d", size, column));
+
+            int start = starts[column];
+            int length = ends[column] - start;
+            if(scratch.length < length) scratch = new byte[Math.max(length, 2 * scratch.length)];
+            int n = 0;
+            for(int i = start; i < start + length; i++) {
+                byte b = buffer.get(i);
+                scratch[n++] = b;
+                if(b == '"' && escaped[column]) i++;    // the second quote of a pair
+            }
+            return new String(scratch, 0, n, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Return the fields in the given columns, in the order given
+         */
+        String[] select(int[] columns) {
+            String[] values = new String[columns.length];
+            for(int i = 0; i < columns.length; i++) values[i] = get(columns[i]);
+            return values;
+        }
+
+        private void clear(ByteBuffer buffer, long position) {
+            this.buffer = buffer;
+            this.position = position;
+            this.size = 0;
+        }
+
+        private void add(int start, int end, boolean isEscaped) {
+            if(size == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * size);
+                ends = Arrays.copyOf(ends, 2 * size);
+                escaped = Arrays.copyOf(escaped, 2 * size);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            escaped[size] = isEscaped;
+            size++;
+        }
+
+        private boolean isBlank() {
+            return size == 1 && starts[0] == ends[0];
+        }
+    }
+
+    /**
+     * Parses the rows starting in a range of the file, through its own window and Row
+     */
+    private final class RowSpliterator implements Spliterator<Row> {
+
+        private long position;                  // file position of the next row
+        private final long end;                 // rows starting at or after end belong to another chunk
+        private MappedByteBuffer window = null;
+        private long windowStart;
+        private final Row row = new Row();
+
+        RowSpliterator(long position, long end) {
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Row> action) {
+            while(position < end) {
+                if(window == null || position < windowStart || position >= windowStart + window.limit()) map(position);
+
+                int next = parse((int) (position - windowStart));
+                if(next < 0) {
+                    // The row runs past the window: map again from its start, unless it already was
+                    if(windowStart == position) throw malformed(position, "longer than " + windowBytes + " bytes");
+                    map(position);
+                    continue;
+                }
+                position = windowStart + next;
+                if(!row.isBlank()) {
+                    action.accept(row);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Split off the first half of the range, at a line boundary. Only before traversal starts
+         */
+        @Override
+        public Spliterator<Row> trySplit() {
+            if(window != null || end - position < 2 * minChunkBytes) return null;
+
+            long split = lineStartAfter(position + (end - position) / 2);
+            if(split >= end) return null;
+            RowSpliterator prefix = new RowSpliterator(position, split);
+            position = split;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - position;      // in bytes, an overestimate of the rows
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+
+        private void map(long from) {
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(windowBytes, size - from));
+                windowStart = from;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Parse the row at offset in the window into row
+         *
+         * @return the offset of the next row, or -1 if the window ends before the row does
+         */
+        private int parse(int offset) {
+            boolean lastWindow = windowStart + window.limit() == size;
+            int limit = window.limit();
+            row.clear(window, windowStart + offset);
+
+            int i = offset;
+            while(true) {
+                if(i < limit && window.get(i) == '"') {
+                    int start = ++i;
+                    boolean isEscaped = false;
+                    while(true) {
+                        if(i >= limit) {
+                            if(lastWindow) throw malformed(row.position, "unterminated quoted field");
+                            return -1;
+                        }
+                        byte b = window.get(i);
+                        if(b == '\n' || b == '\r') throw malformed(row.position, "unterminated quoted field");
+                        if(b == '"') {
+                            if(i + 1 >= limit && !lastWindow) return -1;
+                            if(i + 1 >= limit || window.get(i + 1) != '"') break;
+                            isEscaped = true;
+                            i++;
+                        }
+                        i++;
+                    }
+                    row.add(start, i++, isEscaped);
+                } else {
+                    int start = i;
+                    while(i < limit) {
+                        byte b = window.get(i);
+                        if(b == ',' || b == '\n' || b == '\r') break;
+                        if(b == '"') throw malformed(row.position, "quote inside unquoted field");
+                        i++;
+                    }
+                    row.add(start, i, false);
+                }
+
+                if(i >= limit) return lastWindow ? limit : -1;
+                byte b = window.get(i);
+                if(b == ',') {
+                    i++;
+                } else if(b == '\n') {
+                    return i + 1;
+                } else if(b == '\r') {
+                    if(i + 1 < limit) return window.get(i + 1) == '\n' ? i + 2 : i + 1;
+                    return lastWindow ? limit : -1;
+                } else {
+                    throw malformed(row.position, "text after quoted field");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import com.daml.ledger.api.v1.EventOuterClass.Event;
+import com.daml.ledger.api.v1.TransactionOuterClass.Transaction;
+
+/*
+ * A DecodedTransaction carries a transaction with the views decoded from its create events, by the decoders processors
+ * register for their templates.
+ *
+ * A transaction is decoded on the thread reading the transaction stream, before it is published to the processing
+ * stage of each processor it is handed to. When a SharedSubscription hands it to several processors, each event is
+ * decoded once, and every processor registering the same decoder reads the same view. Views are therefore never
+ * changed once decoded.
+ */
+final class DecodedTransaction {
+
+    private final Transaction tx;
+    private final Object[] views;                                       // by event index
+    private final EventProcessor.CreatedEventDecoder<?>[] decoders;     // the decoder of each view, or null
+
+    DecodedTransaction(Transaction tx) {
+        this.tx = tx;
+        this.views = new Object[tx.getEventsCount()];
+        this.decoders = new EventProcessor.CreatedEventDecoder<?>[tx.getEventsCount()];
+    }
+
+    Transaction getTransaction() {
+        return tx;
+    }
+
+    /**
+     * Decode the create events not yet decoded that a processor has a decoder for. Must only be called before the
+     * transaction is published
+     */
+    DecodedTransaction decodeFor(EventProcessor processor) {
+        for(int i = 0; i < views.length; i++) {
+            if(decoders[i] != null) continue;
+            Event event = tx.getEvents(i);
+            if(!event.hasCreated()) continue;
+
+            EventProcessor.CreatedEventDecoder<?> decoder = processor.decoderFor(event.getCreated().getTemplateId());
+            if(decoder != null) {
+                views[i] = decoder.decode(event.getCreated());
+                decoders[i] = decoder;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Return the view of the create event at an index, as decoded by a decoder. An event decoded by another decoder,
+     * or not at all, is decoded now
+     */
+    Object view(int index, EventProcessor.CreatedEventDecoder<?> decoder) {
+        if(decoder == null) return null;
+        if(decoders[index] == decoder) return views[index];
+        return decoder.decode(tx.getEvents(index).getCreated());
+    }
+}
@@ -4,6 +4,9 @@
 package com.digitalasset.examples.bondTrading.processor;
 
 import com.digitalasset.examples.bondTrading.BondTradingMain;
+import com.daml.ledger.api.v1.ActiveContractsServiceGrpc;
+import com.daml.ledger.api.v1.ActiveContractsServiceOuterClass.GetActiveContractsRequest;
+import com.daml.ledger.api.v1.ActiveContractsServiceOuterClass.GetActiveContractsResponse;
 import com.daml.ledger.api.v1.CommandCompletionServiceGrpc;
 import com.daml.ledger.api.v1.CommandCompletionServiceOuterClass;
 import com.daml.ledger.api.v1.CommandSubmissionServiceGrpc;
@@ -32,15 +35,35 @@ import com.google.protobuf.Empty;
 import com.google.protobuf.Timestamp;
 import com.google.rpc.Status;
 import io.grpc.ManagedChannel;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /*
@@ -49,14 +72,27 @@ import java.util.stream.Stream;
  *
  *  - setting up the stream interfaces for the Transaction Stream and Command Submission services
  *  - parsing and dispatching actions based on received tarnsactions
- *  - submitting commands
+ *  - submitting commands, either synchronously or asynchronously with a bounded window of in-flight submissions
  *
- *  Subclasses define the required actions by implementing the abstract methods defined below
+ *  Work is split into stages so the transport is never held up by processing or submission: the transaction stream
+ *  only hands transactions to a bounded ring buffer; a single processing thread consumes them, owning all processor
+ *  state, and queues the resulting commands; a submission thread sends those to the ledger. Completion callbacks also
+ *  run on the processing thread.
+ *
+ *  Optionally, an EventProcessor will also be
+ *  - checkpointing the last processed offset and processor state, and resuming from the checkpoint
+ *  - bootstrapping from the active contract set rather than replaying the ledger from the beginning
+ *  - hosted with processors for other parties by a SharedSubscription, which streams transactions and completions
+ *    for all of them, rather than subscribing itself
+ *
+ *  Subclasses define the required actions by registering handlers for the templates they react to
  */
-abstract class EventProcessor {
+public abstract class EventProcessor {
 
     private static final Logger log = LoggerFactory.getLogger(EventProcessor.class);
 
+    public static final int DEFAULT_INGESTION_CAPACITY = 1024;
+
     private final String packageId;
     private final String ledgerId;
 
@@ -66,18 +102,25 @@ abstract class EventProcessor {
 
     private final TransactionServiceGrpc.TransactionServiceStub transactionService;
     private final CommandSubmissionServiceGrpc.CommandSubmissionServiceBlockingStub submissionService;
+    private final CommandSubmissionServiceGrpc.CommandSubmissionServiceStub asyncSubmissionService;
     private final CommandCompletionServiceGrpc.CommandCompletionServiceStub commandCompletionService;
+    private final ActiveContractsServiceGrpc.ActiveContractsServiceBlockingStub activeContractsService;
+    private final TransactionServiceGrpc.TransactionServiceBlockingStub ledgerEndService;
 
     public static class CompletionRecord {
 
         private final String workflowId;
         private final String commandId;
         private final List<Command> commands;
+        private final long intendedNanos;               // when an open-loop sender meant to send, or 0
+        private volatile long submittedNanos = 0L;      // when the commands were sent to the ledger
+        private volatile long completedNanos = 0L;      // when their completion was received
 
-        CompletionRecord(String workflowId, String commandId, List<Command> commands) {
+        CompletionRecord(String workflowId, String commandId, List<Command> commands, long intendedNanos) {
             this.workflowId = workflowId;
             this.commandId = commandId;
             this.commands = commands;
+            this.intendedNanos = intendedNanos;
         }
 
         public String getWorkflowId() {
@@ -92,10 +135,127 @@ abstract class EventProcessor {
             return commands;
         }
 
+        /**
+         * Return the time from submission to completion, or -1 if the commands were never sent or have not completed.
+         * Commands with an intended send time are timed from that instead, so time spent queued behind earlier
+         * commands counts
+         */
+        long getRoundTripNanos() {
+            long start = intendedNanos > 0L ? intendedNanos : submittedNanos;
+            return submittedNanos > 0L && completedNanos > 0L ? completedNanos - start : -1L;
+        }
+
+    }
+
+    /*
+     * Handlers for events on a given template, returning the commands to submit in reaction
+     */
+    @FunctionalInterface
+    interface CreatedEventHandler {
+        Stream<Command> process(String workflowId, CreatedEvent event);
+    }
+
+    @FunctionalInterface
+    interface ArchivedEventHandler {
+        Stream<Command> process(String workflowId, EventOuterClass.ArchivedEvent event);
+    }
+
+    /*
+     * Decoders of the create events of a template into the view a DecodedEventHandler works on. A view is shared by
+     * every processor witnessing the event, so it must not be changed
+     */
+    @FunctionalInterface
+    interface CreatedEventDecoder<V> {
+        V decode(CreatedEvent event);
+    }
+
+    @FunctionalInterface
+    interface DecodedEventHandler<V> {
+        Stream<Command> process(String workflowId, CreatedEvent event, V view);
     }
 
+    /*
+     * A registered create handler, with the decoder of its view, if any
+     */
+    private static final class CreatedHandler {
+        final CreatedEventDecoder<?> decoder;
+        final DecodedEventHandler<Object> handler;
+
+        @SuppressWarnings("unchecked")
+        <V> CreatedHandler(CreatedEventDecoder<V> decoder, DecodedEventHandler<V> handler) {
+            this.decoder = decoder;
+            this.handler = (DecodedEventHandler<Object>) handler;
+        }
+    }
+
+    private final TemplateDispatcher<CreatedHandler> createdHandlers;
+    private final TemplateDispatcher<ArchivedEventHandler> archivedHandlers;
+
     private final ConcurrentHashMap<String, CompletionRecord> pendingCommands = new ConcurrentHashMap<>();
 
+    // Completions received whose callback has not yet run on the processing thread
+    private final AtomicInteger unprocessedCompletions = new AtomicInteger();
+
+    // Transactions waiting for the processing stage, which is created when the processor starts
+    private int ingestionCapacity = DEFAULT_INGESTION_CAPACITY;
+    private volatile ProcessingStage<DecodedTransaction> processingStage = null;
+
+    // Submissions waiting for the submission stage
+    private final WorkerStage<SubmitRequest> submissionStage;
+
+    // Asynchronous submission: at most submissionWindow commands are pending at any time. A window of 0 submits
+    // synchronously on the submission thread
+    private int submissionWindow = 0;
+    private Semaphore submissionPermits = null;
+
+    // Checkpointing: the offset of the last fully processed transaction is saved with the processor state to
+    // checkpointFile, at most once every checkpointIntervalMillis
+    private Path checkpointFile = null;
+    private long checkpointIntervalMillis = 0L;
+    private long lastCheckpointMillis = 0L;
+    private final AtomicBoolean checkpointPending = new AtomicBoolean();  // a checkpoint's state is still being saved
+    private volatile String lastOffset = null;
+
+    // Set once work on one of the processor's stages has thrown: its state can no longer be trusted, so it is never
+    // checkpointed again
+    private volatile boolean failed = false;
+
+    // The effective time, in microseconds, of the last transaction processed: the ledger time as far as the processor
+    // has seen it, when the ledger runs in static time
+    private volatile long ledgerTimeMicros = 0L;
+
+    // Request labelled records and identifiers on the transaction stream. Records are decoded by position, so
+    // labels are only needed for diagnostics
+    private boolean verbose = true;
+
+    // Bootstrap from the active contract set when there is no checkpoint to resume from
+    private boolean bootstrapFromActiveContracts = false;
+
+    // Command round trip latencies, from submission to completion, keyed by the template and choice of each command
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private long latencyReportIntervalMillis = -1L;
+
+    // Metrics are served on metricsPort, if set. Counters are updated without locks; processor state is sampled on
+    // the processing thread, between transactions
+    private static final long METRICS_TIMEOUT_MS = 2000L;
+    private int metricsPort = 0;
+    private final Map<Identifier, LongAdder> createdEvents = new ConcurrentHashMap<>();
+    private final Map<Identifier, LongAdder> archivedEvents = new ConcurrentHashMap<>();
+    private final LongAdder submittedCommands = new LongAdder();
+    private final LongAdder failedCommands = new LongAdder();
+
+    // Log received events in a compact format, from fields of the event as received, without formatting identifiers
+    private boolean compactEventLog = false;
+
+    // A hosted processor is fed by a SharedSubscription, which subscribes from subscriptionBegin on its behalf. Its
+    // transactions may include events only other hosted parties witness
+    private boolean hosted = false;
+    private LedgerOffsetOuterClass.LedgerOffset subscriptionBegin = null;
+
+    // The processor that submitted each pending command, shared by every processor hosted by one SharedSubscription,
+    // so completions are routed with one lookup. Null when not hosted
+    private Map<String, EventProcessor> commandRoutes = null;
+
     EventProcessor(String command, ManagedChannel channel, String packageId, String ledgerId, String party, Boolean useWallTime) {
         this.packageId = packageId;
         this.ledgerId = ledgerId;
@@ -103,8 +263,14 @@ abstract class EventProcessor {
         this.party = party;
         this.transactionService = TransactionServiceGrpc.newStub(channel);
         this.submissionService = CommandSubmissionServiceGrpc.newBlockingStub(channel);
+        this.asyncSubmissionService = CommandSubmissionServiceGrpc.newStub(channel);
         this.commandCompletionService = CommandCompletionServiceGrpc.newStub(channel);
+        this.activeContractsService = ActiveContractsServiceGrpc.newBlockingStub(channel);
+        this.ledgerEndService = TransactionServiceGrpc.newBlockingStub(channel);
         this.useWallTime = useWallTime;
+        this.submissionStage = new WorkerStage<>(party + " submission", this::submit, this::stageFailed);
+        this.createdHandlers = new TemplateDispatcher<>(packageId);
+        this.archivedHandlers = new TemplateDispatcher<>(packageId);
     }
 
     String getPackageId() {
@@ -123,35 +289,373 @@ abstract class EventProcessor {
         return useWallTime;
     }
 
-    abstract Stream<Command> processCreatedEvent(String workflowId, EventOuterClass.CreatedEvent event);        // process and react to Create events
-    abstract Stream<Command> processArchivedEvent(String workflowId, EventOuterClass.ArchivedEvent event);      // process and react to Archive events
+    /**
+     * Return the ledger time in microseconds. That is the wall clock when the ledger runs in wall clock time. In
+     * static time the ledger time only moves when it is set, so it is the effective time of the last transaction
+     * processed, or 0 before the first
+     */
+    long ledgerTimeMicros() {
+        return Boolean.TRUE.equals(useWallTime) ? System.currentTimeMillis() * 1000L : ledgerTimeMicros;
+    }
+
+    /**
+     * Submit commands asynchronously, keeping at most window submissions in flight. Submitters block once the window
+     * is full, until a completion for an earlier submission is received. A window of 0 reverts to synchronous submission.
+     *
+     * @param window the maximum number of pending submissions
+     */
+    public void setSubmissionWindow(int window) {
+        assert window >= 0;
+        this.submissionWindow = window;
+        this.submissionPermits = window > 0 ? new Semaphore(window) : null;
+    }
+
+    public int getSubmissionWindow() {
+        return submissionWindow;
+    }
+
+    /**
+     * Set the number of received transactions that may wait for processing before the transaction stream is held up
+     */
+    public void setIngestionCapacity(int capacity) {
+        assert capacity > 0 && processingStage == null;
+        this.ingestionCapacity = capacity;
+    }
+
+    public int getIngestionQueueDepth() {
+        return processingStage == null ? 0 : processingStage.depth();
+    }
+
+    public int getProcessingTaskDepth() {
+        return processingStage == null ? 0 : processingStage.taskDepth();
+    }
+
+    public int getSubmissionQueueDepth() {
+        return submissionStage.depth();
+    }
+
+    public int getPendingCommandCount() {
+        return pendingCommands.size();
+    }
+
+    /**
+     * Periodically save the last processed offset and processor state to a file, and resume from that file on startup
+     *
+     * @param file the checkpoint file
+     * @param intervalMillis the minimum time between checkpoints
+     */
+    public void setCheckpoint(Path file, long intervalMillis) {
+        this.checkpointFile = file;
+        this.checkpointIntervalMillis = intervalMillis;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Report command latency percentiles on shutdown and, if the interval is positive, periodically
+     *
+     * @param intervalMillis the time between reports, or 0 to only report on shutdown
+     */
+    public void setLatencyReport(long intervalMillis) {
+        this.latencyReportIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Serve metrics in Prometheus text format on http://host:port/metrics
+     */
+    public void setMetricsPort(int port) {
+        this.metricsPort = port;
+    }
+
+    public void setCompactEventLog(boolean compactEventLog) {
+        this.compactEventLog = compactEventLog;
+    }
+
+    /**
+     * Rebuild processor state from the active contract set, then stream transactions from the offset of that set,
+     * instead of replaying all transactions from the ledger begin. A checkpoint, if present, takes precedence
+     */
+    public void setBootstrapFromActiveContracts(boolean bootstrapFromActiveContracts) {
+        this.bootstrapFromActiveContracts = bootstrapFromActiveContracts;
+    }
+
+    /**
+     * Register the handler for create events of a template in the main package
+     */
+    void onCreated(String module, String entity, CreatedEventHandler handler) {
+        createdHandlers.register(identityOf(module, entity), new CreatedHandler(null, (workflowId, event, view) -> handler.process(workflowId, event)));
+    }
+
+    /**
+     * Register the handler for create events of a template in the main package, with the decoder of the view it works
+     * on. Events are decoded before they reach the processing stage, once for all the processors they are handed to
+     */
+    <V> void onCreated(String module, String entity, CreatedEventDecoder<V> decoder, DecodedEventHandler<V> handler) {
+        createdHandlers.register(identityOf(module, entity), new CreatedHandler(decoder, handler));
+    }
+
+    /**
+     * Return the decoder registered for the create events of a template, or null if there is none
+     */
+    CreatedEventDecoder<?> decoderFor(Identifier templateId) {
+        CreatedHandler handler = createdHandlers.lookup(templateId);
+        return handler == null ? null : handler.decoder;
+    }
+
+    /**
+     * Register the handler for archive events of a template in the main package
+     */
+    void onArchived(String module, String entity, ArchivedEventHandler handler) {
+        archivedHandlers.register(identityOf(module, entity), handler);
+    }
+
+    /**
+     * Process and react to a create event, using the handler registered for its template
+     */
+    Stream<Command> processCreatedEvent(String workflowId, CreatedEvent event) {
+        CreatedHandler handler = createdHandlers.lookup(event.getTemplateId());
+        if(handler == null) return Stream.empty();
+        return handler.handler.process(workflowId, event, handler.decoder == null ? null : handler.decoder.decode(event));
+    }
+
+    /**
+     * Process and react to the create event at an index of a decoded transaction, with its decoded view
+     */
+    private Stream<Command> processCreatedEvent(DecodedTransaction decoded, int index) {
+        CreatedEvent event = decoded.getTransaction().getEvents(index).getCreated();
+        CreatedHandler handler = createdHandlers.lookup(event.getTemplateId());
+        if(handler == null) return Stream.empty();
+        return handler.handler.process(decoded.getTransaction().getWorkflowId(), event, decoded.view(index, handler.decoder));
+    }
+
+    /**
+     * Process and react to an archive event, using the handler registered for its template
+     */
+    Stream<Command> processArchivedEvent(String workflowId, EventOuterClass.ArchivedEvent event) {
+        ArchivedEventHandler handler = archivedHandlers.lookup(event.getTemplateId());
+        return handler == null ? Stream.empty() : handler.process(workflowId, event);
+    }
+
+    /**
+     * Return the templates to subscribe to: those with a registered handler
+     */
+    List<Identifier> handledTemplates() {
+        List<Identifier> templates = new ArrayList<>(createdHandlers.templates());
+        archivedHandlers.templates().stream()
+            .filter(t -> !templates.contains(t))
+            .forEach(templates::add);
+        return templates;
+    }
+
+    /**
+     * Return the templates with a registered create handler: the active contracts a processor acts on as they are
+     * created
+     */
+    List<Identifier> createdTemplates() {
+        return new ArrayList<>(createdHandlers.templates());
+    }
+
+    /**
+     * Return the processor state to save with a checkpoint, or null to skip this checkpoint. Called on the processing
+     * thread; the state may be completed later, on another thread, but must reflect exactly the transactions processed
+     * when this is called. Processors that do not support checkpointing always return null, and always replay the
+     * ledger from the beginning
+     */
+    CompletableFuture<? extends Serializable> checkpointState() {
+        return null;
+    }
+
+    /**
+     * Restore the processor state saved with a checkpoint
+     *
+     * @throws IOException if the saved state cannot be restored
+     */
+    void restoreCheckpointState(Serializable state) throws IOException {
+    }
+
+    /**
+     * Return the templates whose active contracts are needed to rebuild the processor state. Processors that return
+     * an empty list cannot bootstrap from the active contract set and always replay the ledger from the beginning
+     */
+    List<Identifier> activeContractTemplates() {
+        return Collections.emptyList();
+    }
 
     public int run() {
 
         assert party != null;
 
-        setupTransactionService();
-        setupCompletionService();
+        LedgerOffsetOuterClass.LedgerOffset begin = restoreCheckpoint();
+        if(bootstrapFromActiveContracts && begin.getValueCase() != LedgerOffsetOuterClass.LedgerOffset.ValueCase.ABSOLUTE) {
+            begin = loadActiveContracts(begin);
+        }
+
+        if(latencyReportIntervalMillis >= 0) startLatencyReports();
+
+        if(metricsPort > 0 && !hosted) {
+            try {
+                new MetricsEndpoint(metricsPort, metricsLabels(), this::writeMetrics).start();
+            } catch (IOException e) {
+                logError(String.format("%s cannot serve metrics on port %d: %s", party, metricsPort, e.getMessage()));
+                return 1;
+            }
+        }
+
+        processingStage = new ProcessingStage<>(party + " processing", ingestionCapacity, this::processTransaction, this::stageFailed);
+        processingStage.start();
+        submissionStage.start();
+
+        if(hosted) {
+            subscriptionBegin = begin;
+            return 0;
+        }
+        setupTransactionService(begin);
+        setupCompletionService(begin);
 
         return 0;
     }
 
-    private void setupTransactionService() {
+    /**
+     * Run a task on the processing thread, which owns the processor state. Before the processor has started, the
+     * task runs on the calling thread
+     */
+    void runOnProcessingStage(Runnable task) {
+        if(processingStage == null || processingStage.isStageThread()) {
+            task.run();
+        } else {
+            processingStage.execute(task);
+        }
+    }
+
+    /**
+     * Restore processor state from the checkpoint file, if there is one
+     *
+     * @return the offset to resume streaming from
+     */
+    LedgerOffsetOuterClass.LedgerOffset restoreCheckpoint() {
+        LedgerOffsetOuterClass.LedgerOffset ledgerBegin = LedgerOffsetOuterClass.LedgerOffset.newBuilder()
+            .setBoundary(LedgerOffsetOuterClass.LedgerOffset.LedgerBoundary.LEDGER_BEGIN)
+            .build();
+
+        if(checkpointFile == null || !Files.exists(checkpointFile)) return ledgerBegin;
+
+        try {
+            Checkpoint checkpoint = Checkpoint.read(checkpointFile);
+            restoreCheckpointState(checkpoint.getState());
+            lastOffset = checkpoint.getOffset();
+            logProgress("%s resumes from checkpoint at offset " + lastOffset);
+            return LedgerOffsetOuterClass.LedgerOffset.newBuilder().setAbsolute(lastOffset).build();
+        } catch (IOException e) {
+            logError(checkpointFile + ": cannot read checkpoint, replaying from ledger begin: " + e.getMessage());
+            return ledgerBegin;
+        }
+    }
+
+    /**
+     * Feed the active contracts of the bootstrap templates through processCreatedEvent, and submit any resulting
+     * commands
+     *
+     * @param ledgerBegin the offset to use if the ledger has no active contracts for the processor
+     * @return the offset of the active contract set, to continue streaming from
+     */
+    private LedgerOffsetOuterClass.LedgerOffset loadActiveContracts(LedgerOffsetOuterClass.LedgerOffset ledgerBegin) {
+
+        List<Identifier> templates = activeContractTemplates();
+        if(templates.isEmpty()) {
+            logError(command + " cannot bootstrap from active contracts, replaying from ledger begin");
+            return ledgerBegin;
+        }
+
+        GetActiveContractsRequest request = GetActiveContractsRequest.newBuilder()
+            .setLedgerId(ledgerId)
+            .setFilter(TransactionFilterOuterClass.TransactionFilter.newBuilder()
+                .putFiltersByParty(party, filtersFor(templates)))
+            .setVerbose(verbose)
+            .build();
+
+        // The offset is only set on the last response of the stream
+        String acsOffset = null;
+        int contractCount = 0;
+        List<Command> commands = new ArrayList<>();
+
+        Iterator<GetActiveContractsResponse> responses = activeContractsService.getActiveContracts(request);
+        while(responses.hasNext()) {
+            GetActiveContractsResponse response = responses.next();
+            for(CreatedEvent event : response.getActiveContractsList()) {
+                processCreatedEvent(response.getWorkflowId(), event).forEach(commands::add);
+                contractCount++;
+            }
+            if(!response.getOffset().isEmpty()) {
+                acsOffset = response.getOffset();
+            }
+        }
+
+        if(acsOffset == null) {
+            logProgress("%s finds no active contracts, reading from ledger begin");
+            return ledgerBegin;
+        }
+
+        logProgress("%s " + String.format("loads %d active contracts at offset %s", contractCount, acsOffset));
+        lastOffset = acsOffset;
+        submitCommands("ActiveContracts", commands);
+
+        return LedgerOffsetOuterClass.LedgerOffset.newBuilder().setAbsolute(acsOffset).build();
+    }
+
+    /**
+     * Save a checkpoint if checkpointing is enabled and the checkpoint interval has passed. Must only be called
+     * between transactions, so the saved state reflects exactly the transactions up to lastOffset. The state is
+     * written once it is complete, off the processing thread; a checkpoint is skipped while the last is still pending
+     */
+    private void maybeCheckpoint() {
+        if(checkpointFile == null || lastOffset == null || failed) return;
+
+        long now = System.currentTimeMillis();
+        if(now - lastCheckpointMillis < checkpointIntervalMillis) return;
+        if(!checkpointPending.compareAndSet(false, true)) return;
+        lastCheckpointMillis = now;
+
+        String offset = lastOffset;
+        CompletableFuture<? extends Serializable> state = checkpointState();
+        if(state == null) {
+            checkpointPending.set(false);
+            return;
+        }
+
+        state.whenCompleteAsync((saved, t) -> {
+            try {
+                if(t != null) {
+                    log.error("{} cannot save its state for a checkpoint", party, t);
+                } else if(saved != null && !failed) {
+                    new Checkpoint(offset, saved).write(checkpointFile);
+                    log.debug("{} checkpoints at offset {}", party, offset);
+                }
+            } catch (IOException e) {
+                log.error("{} failed to write checkpoint {}", party, checkpointFile, e);
+            } finally {
+                checkpointPending.set(false);
+            }
+        });
+    }
+
+    private void setupTransactionService(LedgerOffsetOuterClass.LedgerOffset begin) {
         TransactionServiceOuterClass.GetTransactionsRequest transactionsRequest = TransactionServiceOuterClass.GetTransactionsRequest.newBuilder()
             .setLedgerId(ledgerId)
-            .setBegin(LedgerOffsetOuterClass.LedgerOffset.newBuilder().setBoundary(LedgerOffsetOuterClass.LedgerOffset.LedgerBoundary.LEDGER_BEGIN))
-            // we use the default filter since we don't want to filter out any contracts
+            .setBegin(begin)
+            // only subscribe to the templates the processor handles, so other events are never sent or parsed
             .setFilter(
                 TransactionFilterOuterClass.TransactionFilter.newBuilder()
-                    .putFiltersByParty(party, TransactionFilterOuterClass.Filters.getDefaultInstance()))
-            .setVerbose(true)
+                    .putFiltersByParty(party, filtersFor(handledTemplates())))
+            .setVerbose(verbose)
             .build();
 
         // this StreamObserver reacts to transactions and prints a message if an error occurs or the stream gets closed
         StreamObserver<TransactionServiceOuterClass.GetTransactionsResponse> transactionObserver = new StreamObserver<TransactionServiceOuterClass.GetTransactionsResponse>() {
             @Override
             public void onNext(TransactionServiceOuterClass.GetTransactionsResponse value) {
-                value.getTransactionsList().forEach(EventProcessor.this::processTransaction);
+                value.getTransactionsList().forEach(tx -> publish(new DecodedTransaction(tx).decodeFor(EventProcessor.this)));
             }
 
             @Override
@@ -169,11 +673,22 @@ abstract class EventProcessor {
         transactionService.getTransactions(transactionsRequest, transactionObserver);
     }
 
-    private void setupCompletionService() {
+    /**
+     * Return a filter selecting the given templates, or the default filter selecting all templates if none are given
+     */
+    private static TransactionFilterOuterClass.Filters filtersFor(List<Identifier> templates) {
+        if(templates.isEmpty()) return TransactionFilterOuterClass.Filters.getDefaultInstance();
+
+        return TransactionFilterOuterClass.Filters.newBuilder()
+            .setInclusive(TransactionFilterOuterClass.InclusiveFilters.newBuilder().addAllTemplateIds(templates))
+            .build();
+    }
+
+    private void setupCompletionService(LedgerOffsetOuterClass.LedgerOffset begin) {
         CommandCompletionServiceOuterClass.CompletionStreamRequest completionStreamRequest = CommandCompletionServiceOuterClass.CompletionStreamRequest.newBuilder()
             .setLedgerId(ledgerId)
             .setApplicationId(BondTradingMain.APP_ID)
-            .setOffset(LedgerOffsetOuterClass.LedgerOffset.newBuilder().setBoundary(LedgerOffsetOuterClass.LedgerOffset.LedgerBoundary.LEDGER_BEGIN))
+            .setOffset(begin)
             .addParties(party)
             .build();
 
@@ -197,42 +712,214 @@ abstract class EventProcessor {
         commandCompletionService.completionStream(completionStreamRequest,completionsObserver);
     }
 
-    private void processTransaction(Transaction tx) {
-        java.util.List<Command> commands = tx.getEventsList().stream()
-            .flatMap(e -> processEvent(tx, e))
+    /**
+     * Process the events of a transaction, and submit the commands they give rise to. Runs on the processing thread
+     */
+    void processTransaction(DecodedTransaction decoded) {
+        Transaction tx = decoded.getTransaction();
+        if(tx.hasEffectiveAt()) {
+            ledgerTimeMicros = tx.getEffectiveAt().getSeconds() * 1_000_000L + tx.getEffectiveAt().getNanos() / 1000;
+        }
+
+        java.util.List<Command> commands = IntStream.range(0, tx.getEventsCount())
+            .filter(i -> !hosted || witnesses(tx.getEvents(i)))
+            .boxed()
+            .flatMap(i -> processEvent(decoded, i))
             .collect(Collectors.toList());
 
         submitCommands(tx.getWorkflowId(),commands);
+
+        lastOffset = tx.getOffset();
+        maybeCheckpoint();
+    }
+
+    private boolean witnesses(Event event) {
+        return event.hasCreated()
+            ? event.getCreated().getWitnessPartiesList().contains(party)
+            : event.getArchived().getWitnessPartiesList().contains(party);
     }
 
-    private Stream<Command> processEvent(Transaction tx, Event event) {
+    private Stream<Command> processEvent(DecodedTransaction decoded, int index) {
+        Transaction tx = decoded.getTransaction();
+        Event event = tx.getEvents(index);
 
-        log.info("{} received event, transactionId={}, workflowid={}, {}", party, tx.getTransactionId(), tx.getWorkflowId(), eventDescription(event));
+        if(log.isInfoEnabled()) {
+            if(compactEventLog) {
+                logCompactEvent(tx, event);
+            } else {
+                log.info("{} received event, transactionId={}, workflowid={}, {}", party, tx.getTransactionId(), tx.getWorkflowId(), eventDescription(event));
+            }
+        }
 
         if (event.hasCreated()) {
-            return processCreatedEvent(tx.getWorkflowId(), event.getCreated());
+            if(metricsPort > 0) countEvent(createdEvents, event.getCreated().getTemplateId());
+            return processCreatedEvent(decoded, index);
         } else if(event.hasArchived()) {
+            if(metricsPort > 0) countEvent(archivedEvents, event.getArchived().getTemplateId());
             return processArchivedEvent(tx.getWorkflowId(), event.getArchived());
         }
         return Stream.empty(); //Should not happen
     }
 
+    private static void countEvent(Map<Identifier, LongAdder> counts, Identifier templateId) {
+        LongAdder counter = counts.get(templateId);
+        if(counter == null) counter = counts.computeIfAbsent(templateId, k -> new LongAdder());
+        counter.increment();
+    }
+
+    String metricsLabels() {
+        return "party=\"" + party + "\"";
+    }
+
+    /**
+     * Write the processor metrics for one scrape. Runs on the metrics server thread
+     */
+    void writeMetrics(MetricsEndpoint.Writer out) {
+
+        out.declare("events_total", "counter", "Events received, by template");
+        createdEvents.forEach((t, n) -> out.sample("events_total", n.sum(), "template", t.getModuleName() + ":" + t.getEntityName(), "event", "created"));
+        archivedEvents.forEach((t, n) -> out.sample("events_total", n.sum(), "template", t.getModuleName() + ":" + t.getEntityName(), "event", "archived"));
+
+        out.declare("commands_submitted_total", "counter", "Commands submitted").sample("commands_submitted_total", submittedCommands.sum());
+        out.declare("commands_failed_total", "counter", "Commands completed with an error").sample("commands_failed_total", failedCommands.sum());
+        out.declare("pending_commands", "gauge", "Submissions awaiting completion").sample("pending_commands", pendingCommands.size());
+
+        out.declare("stage_queue_depth", "gauge", "Work waiting for each processing stage")
+            .sample("stage_queue_depth", getIngestionQueueDepth(), "stage", "ingestion")
+            .sample("stage_queue_depth", getProcessingTaskDepth(), "stage", "processing")
+            .sample("stage_queue_depth", getSubmissionQueueDepth(), "stage", "submission");
+
+        out.declare("command_latency_seconds", "summary", "Command round trip latency, by template and choice");
+        latencies.forEach((key, h) -> {
+            out.sample("command_latency_seconds", h.percentileMicros(0.5) / 1e6, "command", key, "quantile", "0.5");
+            out.sample("command_latency_seconds", h.percentileMicros(0.99) / 1e6, "command", key, "quantile", "0.99");
+            out.sample("command_latency_seconds", h.percentileMicros(0.999) / 1e6, "command", key, "quantile", "0.999");
+        });
+
+        Long lag = streamLag();
+        if(lag != null) {
+            out.declare("stream_lag_offsets", "gauge", "Offsets between the last processed transaction and the ledger end")
+                .sample("stream_lag_offsets", lag);
+        }
+
+        // Processor state is owned by the processing thread: sample it there into a separate writer, without holding
+        // up the event path beyond the time taken to sample
+        MetricsEndpoint.Writer stateOut = out.fork();
+        CompletableFuture<MetricsEndpoint.Writer> stateMetrics = new CompletableFuture<>();
+        runOnProcessingStage(() -> {
+            writeStateMetrics(stateOut);
+            stateMetrics.complete(stateOut);
+        });
+        try {
+            out.merge(stateMetrics.get(METRICS_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            log.warn("{} processor state metrics unavailable: {}", party, e.toString());
+        }
+    }
+
+    /**
+     * Return the number of offsets by which processing trails the ledger end, or null if that is not known. Only
+     * ledgers with numeric offsets, such as the sandbox, are supported
+     */
+    private Long streamLag() {
+        String processed = lastOffset;
+        if(processed == null) return null;
+        try {
+            String end = ledgerEndService
+                .withDeadlineAfter(METRICS_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .getLedgerEnd(TransactionServiceOuterClass.GetLedgerEndRequest.newBuilder().setLedgerId(ledgerId).build())
+                .getOffset().getAbsolute();
+            return Math.max(0L, Long.parseLong(end) - Long.parseLong(processed));
+        } catch (NumberFormatException | StatusRuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write metrics on the processor state. Runs on the processing thread
+     */
+    void writeStateMetrics(MetricsEndpoint.Writer out) {
+    }
+
     private void processCompletion(Completion completion) {
         Status status = completion.getStatus();
+        // Counted before the command leaves pendingCommands, so a waiter sees one or the other until its callback has run
+        unprocessedCompletions.incrementAndGet();
         CompletionRecord completionRecord = pendingCommands.remove(completion.getCommandId());
+        if(commandRoutes != null) commandRoutes.remove(completion.getCommandId());
+        if(completionRecord != null) {
+            completionRecord.completedNanos = System.nanoTime();
+            if(completionRecord.submittedNanos > 0L) recordLatency(completionRecord, completionRecord.getRoundTripNanos());
+        }
+
+        // Completions for commands from earlier runs have no record, and hold no submission permit
+        if(completionRecord != null && submissionPermits != null) {
+            submissionPermits.release();
+        }
 
+        // Completion callbacks may use processor state, so they run on the processing thread
         if(status.getCode() > 0) {
             log.error("command {} submitted by {} completes with status {}: '{}'", completion.getCommandId(), party, status.getCode(), status.getMessage());
-            processCompletionError(completion,completionRecord);
+            failedCommands.add(completionRecord == null ? 1 : completionRecord.getCommands().size());
+            runOnProcessingStage(() -> {
+                try { processCompletionError(completion,completionRecord); } finally { unprocessedCompletions.decrementAndGet(); }
+            });
         } else {
             log.debug("command {} submitted by {} completes sucessfully", completion.getCommandId(), party);
-            processCompletionSuccess(completion,completionRecord);
+            runOnProcessingStage(() -> {
+                try { processCompletionSuccess(completion,completionRecord); } finally { unprocessedCompletions.decrementAndGet(); }
+            });
         }
     }
 
     void processCompletionSuccess(CompletionOuterClass.Completion completion, CompletionRecord completionRecord) {
     }
 
+    // The interface to a SharedSubscription
+
+    /**
+     * Leave subscribing to the SharedSubscription, recording each command submitted in its routes until the command
+     * completes. Must be called before run
+     */
+    void setHosted(Map<String, EventProcessor> commandRoutes) {
+        this.hosted = true;
+        this.commandRoutes = commandRoutes;
+    }
+
+    /**
+     * Return the offset a hosted processor needs transactions and completions from, once it has run
+     */
+    LedgerOffsetOuterClass.LedgerOffset getSubscriptionBegin() {
+        return subscriptionBegin;
+    }
+
+    TransactionFilterOuterClass.Filters transactionFilters() {
+        return filtersFor(handledTemplates());
+    }
+
+    boolean isVerbose() {
+        return verbose;
+    }
+
+    /**
+     * Hand a decoded transaction to the processing stage. Must only be called from the thread reading the transaction
+     * stream
+     */
+    void publish(DecodedTransaction decoded) {
+        processingStage.publish(decoded);
+    }
+
+    /**
+     * Process a completion if it is for a command this processor submitted
+     *
+     * @return true if the command was this processor's
+     */
+    boolean complete(Completion completion) {
+        if(!pendingCommands.containsKey(completion.getCommandId())) return false;
+        processCompletion(completion);
+        return true;
+    }
+
     void processCompletionError(CompletionOuterClass.Completion completion, CompletionRecord completionRecord) {
     }
 
@@ -267,31 +954,200 @@ abstract class EventProcessor {
             .build();
     }
 
-    void submitCommands(String workFlowId, java.util.List<Command> commands) {
+    /**
+     * Submit a list of commands as one ledger command
+     *
+     * @return the command ID, or null if there were no commands to submit
+     */
+    String submitCommands(String workFlowId, java.util.List<Command> commands) {
 
         if(! commands.isEmpty()) {
 
-            String commandId = UUID.randomUUID().toString();
+            String commandId = newCommandId();
+            submitCommands(commandId, workFlowId, commands);
+            return commandId;
+        }
+        return null;
+    }
 
+    /**
+     * Return a new, unique command ID
+     */
+    String newCommandId() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Submit a non-empty list of commands as one ledger command, with a command ID from newCommandId. May be called
+     * from any thread
+     */
+    void submitCommands(String commandId, String workFlowId, java.util.List<Command> commands) {
+        submitCommands(commandId, workFlowId, commands, 0L);
+    }
+
+    /**
+     * Submit a non-empty list of commands as one ledger command, measuring its latency from intendedNanos, the
+     * System.nanoTime at which an open-loop sender meant to send it. May be called from any thread
+     */
+    void submitCommands(String commandId, String workFlowId, java.util.List<Command> commands, long intendedNanos) {
+        submittedCommands.add(commands.size());
+
+        if(log.isDebugEnabled()) {
             commands.forEach(cmd -> log.debug("{} sending command {}, commandId={}", party, cmdDescription(cmd), commandId));
-            log.info("{} submits commands, commandId={}, workflowId={}", party, commandId, workFlowId);
+        }
+        log.info("{} submits commands, commandId={}, workflowId={}", party, commandId, workFlowId);
+
+        SubmitRequest request = SubmitRequest.newBuilder()
+            .setCommands(CommandsOuterClass.Commands.newBuilder()
+                .setCommandId(commandId)
+                .setWorkflowId(workFlowId)
+                .setLedgerId(ledgerId)
+                .setParty(party)
+                .setApplicationId(BondTradingMain.APP_ID)
+                .addAllCommands(commands)
+                .build())
+            .build();
 
-            SubmitRequest request = SubmitRequest.newBuilder()
-                .setCommands(CommandsOuterClass.Commands.newBuilder()
-                    .setCommandId(commandId)
-                    .setWorkflowId(workFlowId)
-                    .setLedgerId(ledgerId)
-                    .setParty(party)
-                    .setApplicationId(BondTradingMain.APP_ID)
-                    .addAllCommands(commands)
-                    .build())
-                .build();
+        pendingCommands.put(commandId,new CompletionRecord(workFlowId, commandId, commands, intendedNanos));
+        if(commandRoutes != null) commandRoutes.put(commandId, this);
+        submissionStage.enqueue(request);
+    }
+
+    /**
+     * Send a request to the ledger. Runs on the submission thread
+     */
+    private void submit(SubmitRequest request) {
+        String commandId = request.getCommands().getCommandId();
+
+        CompletionRecord completionRecord = pendingCommands.get(commandId);
+
+        // Round trips are timed from when the request is sent, not counting the wait for a free submission slot
+        if(submissionPermits != null) {
+            submissionPermits.acquireUninterruptibly();
+            if(completionRecord != null) completionRecord.submittedNanos = System.nanoTime();
+            asyncSubmissionService.submit(request, submissionObserver(commandId));
+        } else {
+            if(completionRecord != null) completionRecord.submittedNanos = System.nanoTime();
+            try {
+                submissionService.submit(request);
+            } catch (StatusRuntimeException e) {
+                submissionFailed(commandId, e);
+            }
+        }
+    }
+
+    /**
+     * Return an observer for an asynchronous submission
+     */
+    private StreamObserver<Empty> submissionObserver(String commandId) {
+        return new StreamObserver<Empty>() {
+            @Override
+            public void onNext(Empty value) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                submissionFailed(commandId, t);
+            }
 
-            pendingCommands.put(commandId,new CompletionRecord(workFlowId, commandId, commands));
-            submissionService.submit(request);
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+
+    /**
+     * A rejected submission will never see a completion, so one is synthesized from the gRPC status and sent through
+     * the normal completion processing
+     */
+    private void submissionFailed(String commandId, Throwable t) {
+        io.grpc.Status grpcStatus = io.grpc.Status.fromThrowable(t);
+        log.warn("{} submission of command {} failed, status={}", party, commandId, grpcStatus);
+        processCompletion(Completion.newBuilder()
+            .setCommandId(commandId)
+            .setStatus(Status.newBuilder()
+                .setCode(grpcStatus.getCode().value())
+                .setMessage(grpcStatus.getDescription() == null ? grpcStatus.getCode().name() : grpcStatus.getDescription()))
+            .build());
+    }
+
+    /**
+     * Wait until all queued submissions have been sent and completed, and their completion callbacks have run on the
+     * processing thread, or the timeout has expired
+     *
+     * @return true if there are no submissions still queued, in flight or awaiting their completion callback
+     */
+    boolean awaitPendingCommands(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if(!submissionStage.awaitIdle(timeout, unit)) return false;
+        try {
+            while(!pendingCommands.isEmpty() || unprocessedCompletions.get() > 0) {
+                if(System.nanoTime() - deadline >= 0L) return false;
+                Thread.sleep(10);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
+    /**
+     * Record the latency of a completed submission against each distinct template and choice it contains
+     */
+    private void recordLatency(CompletionRecord completionRecord, long nanos) {
+        List<Command> commands = completionRecord.getCommands();
+        for(int i = 0; i < commands.size(); i++) {
+            String key = latencyKey(commands.get(i));
+            if(i == 0 || !key.equals(latencyKey(commands.get(i - 1)))) {
+                latencies.computeIfAbsent(key, k -> new LatencyHistogram()).record(nanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private static String latencyKey(Command cmd) {
+        switch (cmd.getCommandCase()) {
+            case CREATE:
+                Identifier created = cmd.getCreate().getTemplateId();
+                return "create " + created.getModuleName() + ":" + created.getEntityName();
+            case EXERCISE:
+                ExerciseCommand exercise = cmd.getExercise();
+                Identifier exercised = exercise.getTemplateId();
+                return "exercise " + exercised.getModuleName() + ":" + exercised.getEntityName() + "." + exercise.getChoice();
+            default:
+                return cmd.getCommandCase().toString();
+        }
+    }
+
+    private void startLatencyReports() {
+        if(latencyReportIntervalMillis > 0) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, party + " latency report");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(this::reportLatencies, latencyReportIntervalMillis, latencyReportIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::reportLatencies, party + " latency report"));
+    }
+
+    /**
+     * Report count, p50, p99, p999 and max latency since startup for each template and choice
+     */
+    void reportLatencies() {
+        latencies.entrySet().stream()
+            .sorted(Map.Entry.comparingByKey())
+            .forEach(e -> {
+                LatencyHistogram h = e.getValue();
+                String report = String.format("%s latency %s: n=%d p50=%.1fms p99=%.1fms p999=%.1fms max=%.1fms",
+                    party, e.getKey(), h.count(),
+                    h.percentileMicros(0.50) / 1000.0, h.percentileMicros(0.99) / 1000.0,
+                    h.percentileMicros(0.999) / 1000.0, h.maxMicros() / 1000.0);
+                log.info(report);
+                BondTradingMain.logProgress(command, report);
+            });
+    }
+
     ValueOuterClass.Identifier identityOf(String module, String name) {
         return ValueOuterClass.Identifier.newBuilder()
             .setPackageId(packageId)
@@ -324,6 +1180,19 @@ abstract class EventProcessor {
         return "type="+event.getEventCase()+desc;
     }
 
+    /**
+     * Log an event as: party, offset, C(reated) or A(rchived), template entity and contract id
+     */
+    private void logCompactEvent(Transaction tx, Event event) {
+        if(event.hasCreated()) {
+            CreatedEvent ce = event.getCreated();
+            log.info("{} {} C {} {}", party, tx.getOffset(), ce.getTemplateId().getEntityName(), ce.getContractId());
+        } else if(event.hasArchived()) {
+            EventOuterClass.ArchivedEvent ae = event.getArchived();
+            log.info("{} {} A {} {}", party, tx.getOffset(), ae.getTemplateId().getEntityName(), ae.getContractId());
+        }
+    }
+
     private String cmdDescription(Command cmd) {
         String desc;
         switch (cmd.getCommandCase()) {
@@ -352,14 +1221,6 @@ abstract class EventProcessor {
         return "type="+cmd.getCommandCase()+desc;
     }
 
-    static Value getRecordValue(Record record, String fieldName) {
-        return record.getFieldsList().stream()
-            .filter(f -> f.getLabel().equals(fieldName))
-            .map(ValueOuterClass.RecordField::getValue)
-            .collect(Collectors.toList())
-            .get(0);
-    }
-
     void logProgress(String message) {
         BondTradingMain.logProgress(command, String.format(message, party));
     }
@@ -368,6 +1229,23 @@ abstract class EventProcessor {
         BondTradingMain.logError(command, message);
     }
 
+    /**
+     * Stop the processor after work on one of its stages threw. Nothing is checkpointed from then on, so a restart
+     * replays the transaction that failed
+     */
+    void stageFailed(Throwable t) {
+        failed = true;
+        logError(String.format("%s stops after a failure: %s", party, t));
+        terminate(1);
+    }
+
+    /**
+     * Stop the application with an exit code
+     */
+    void terminate(int exitCode) {
+        BondTradingMain.terminate(exitCode);
+    }
+
     String identifierToString (ValueOuterClass.Identifier identifier) {
         return identifier.getModuleName().concat(":").concat(identifier.getEntityName());
     }
@@ -0,0 +1,30 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import com.digitalasset.examples.bondTrading.processor.TradingPartyProcessor.Dvp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+ * Select DVPs from the head of the queue while the available assets cover them
+ */
+final class FifoSelection implements SelectionStrategy {
+
+    @Override
+    public List<Dvp> select(IndexedQueue<Dvp> dvps, Amount.Total available, String dvpLegSelector, int limit) {
+        List<Dvp> selected = new ArrayList<>();
+        Amount.Total required = new Amount.Total();
+
+        for(Iterator<Dvp> i = dvps.iterator(); selected.size() < limit && i.hasNext(); ) {
+            Dvp dvp = i.next();
+            if(!available.covers(required, dvp.getLegAmount(dvpLegSelector))) break;
+            required.add(dvp.getLegAmount(dvpLegSelector));
+            selected.add(dvp);
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,210 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/*
+ * An IndexedQueue is a FIFO queue of contracts that is also indexed by contract ID, so a contract anywhere in the
+ * queue can be removed in constant time when it is archived.
+ *
+ * Contracts without an ID are queued but not indexed. The queue is not thread safe: it is owned by the processing
+ * thread.
+ */
+public final class IndexedQueue<T extends IndexedQueue.Contract> extends AbstractQueue<T> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public interface Contract {
+        String getCid();
+    }
+
+    private static final class Node<T> {
+        final T item;
+        Node<T> prev;
+        Node<T> next;
+
+        Node(T item) {
+            this.item = item;
+        }
+    }
+
+    // The list and index are rebuilt on deserialization, so a long queue is not serialized recursively
+    private transient Node<T> head;
+    private transient Node<T> tail;
+    private transient Map<String, Node<T>> index = new HashMap<>();
+    private transient int size = 0;
+    private transient int modCount = 0;
+
+    @Override
+    public boolean offer(T item) {
+        if(item == null) throw new NullPointerException();
+        Node<T> node = new Node<>(item);
+        if(tail == null) {
+            head = node;
+        } else {
+            tail.next = node;
+            node.prev = tail;
+        }
+        tail = node;
+        if(item.getCid() != null) index.put(item.getCid(), node);
+        size++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Put contracts back at the head of the queue, ahead of those already queued, keeping the order of the list
+     */
+    public void offerFirst(List<? extends T> items) {
+        for(ListIterator<? extends T> i = items.listIterator(items.size()); i.hasPrevious(); ) {
+            T item = i.previous();
+            if(item == null) throw new NullPointerException();
+            Node<T> node = new Node<>(item);
+            if(head == null) {
+                tail = node;
+            } else {
+                head.prev = node;
+                node.next = head;
+            }
+            head = node;
+            if(item.getCid() != null) index.put(item.getCid(), node);
+            size++;
+            modCount++;
+        }
+    }
+
+    @Override
+    public T poll() {
+        if(head == null) return null;
+        T item = head.item;
+        unlink(head);
+        return item;
+    }
+
+    @Override
+    public T peek() {
+        return head == null ? null : head.item;
+    }
+
+    /**
+     * Return the contract with the given ID, or null if it is not in the queue
+     */
+    public T get(String cid) {
+        Node<T> node = index.get(cid);
+        return node == null ? null : node.item;
+    }
+
+    /**
+     * Remove the contract with the given ID
+     *
+     * @return the removed contract, or null if it was not in the queue
+     */
+    public T removeContract(String cid) {
+        Node<T> node = index.get(cid);
+        if(node == null) return null;
+        unlink(node);
+        return node.item;
+    }
+
+    /**
+     * Remove the given contracts, by contract ID or, for contracts without one, by identity
+     */
+    public void removeContracts(List<? extends T> items) {
+        List<T> unindexed = new ArrayList<>();
+        for(T item : items) {
+            if(item.getCid() == null || removeContract(item.getCid()) == null) unindexed.add(item);
+        }
+
+        // Contracts without a contract ID are only found by identity
+        for(Iterator<T> i = iterator(); !unindexed.isEmpty() && i.hasNext(); ) {
+            T item = i.next();
+            for(Iterator<T> u = unindexed.iterator(); u.hasNext(); ) {
+                if(u.next() == item) {
+                    i.remove();
+                    u.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private Node<T> next = head;
+            private Node<T> last = null;
+            private int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+                if(modCount != expectedModCount) throw new ConcurrentModificationException();
+                if(next == null) throw new NoSuchElementException();
+                last = next;
+                next = next.next;
+                return last.item;
+            }
+
+            @Override
+            public void remove() {
+                if(last == null) throw new IllegalStateException();
+                if(modCount != expectedModCount) throw new ConcurrentModificationException();
+                unlink(last);
+                last = null;
+                expectedModCount = modCount;
+            }
+        };
+    }
+
+    private void unlink(Node<T> node) {
+        if(node.prev == null) head = node.next; else node.prev.next = node.next;
+        if(node.next == null) tail = node.prev; else node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        String cid = node.item.getCid();
+        if(cid != null && index.get(cid) == node) index.remove(cid);
+        size--;
+        modCount++;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for(Node<T> node = head; node != null; node = node.next) {
+            out.writeObject(node.item);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        index = new HashMap<>();
+        int count = in.readInt();
+        for(int i = 0; i < count; i++) {
+            offer((T) in.readObject());
+        }
+    }
+}
@@ -0,0 +1,71 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A LatencyHistogram counts latencies, in microseconds, in log-linear buckets: each power of two is split into
+ * SUB_BUCKETS equal buckets, so any recorded value is reported to within about 6%.
+ *
+ * Recording is a bucket index computation and an atomic increment, so any thread may record without taking a lock.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long duration, TimeUnit unit) {
+        long micros = Math.max(0L, unit.toMicros(duration));
+        counts.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+
+        long m;
+        while(micros > (m = max.get()) && !max.compareAndSet(m, micros));
+    }
+
+    long count() {
+        return count.get();
+    }
+
+    long maxMicros() {
+        return max.get();
+    }
+
+    /**
+     * Return the value, in microseconds, at or below which the given fraction of recorded values lie
+     */
+    long percentileMicros(double fraction) {
+        long total = count.get();
+        if(total == 0) return 0L;
+
+        long target = Math.max(1L, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for(int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if(seen >= target) return Math.min(upperBoundOf(bucket), max.get());
+        }
+        return max.get();
+    }
+
+    private static int bucketOf(long micros) {
+        if(micros < SUB_BUCKETS) return (int) micros;
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if(bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -16,13 +16,11 @@ import com.daml.ledger.api.v1.ValueOuterClass.RecordField;
 import com.daml.ledger.api.v1.ValueOuterClass.Value;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -33,21 +31,28 @@ public class MarketSetupProcessor extends EventProcessor {
 
     private static final Logger log = LoggerFactory.getLogger(MarketSetupProcessor.class);
 
+    // The fields of an asset, in the order assets are handled in, whatever the order of the asset file's columns
+    static final String[] ASSET_FIELDS = {"party", "assetName", "symbol", "amount"};
+    static final int PARTY = 0, ASSET_NAME = 1, SYMBOL = 2, AMOUNT = 3;
+
     private String assetFilePath;
 
     public MarketSetupProcessor(ManagedChannel channel, String packageId, String ledgerId, String assetFilePath, Boolean useWallTime) {
         super("Market Setup", channel,packageId, ledgerId, BondTradingMain.BANK, useWallTime);
         this.assetFilePath = assetFilePath;
+
+        onCreated("Setup", "MarketSetupJob", this::setupJobCreated);
     }
 
-    private java.util.List<Map<String,String>> assets;
+    private java.util.List<String[]> assets;
 
     @Override
     public int run() {
 
         logProgress("%s starts market setup");
 
-        super.run();
+        int exitCode = super.run();
+        if(exitCode != 0) return exitCode;
 
         // Read in the asset list
 
@@ -64,33 +69,16 @@ public class MarketSetupProcessor extends EventProcessor {
         return 0;
     }
 
-    @Override
-    public Stream<Command> processCreatedEvent(String workflowId, EventOuterClass.CreatedEvent event) {
-
-
-        switch(identifierToString(event.getTemplateId())) {
-
-            case "Setup:MarketSetupJob":
-
-                logProgress("setup job created");
-
-                // Process the setup job when it is created
-                return Stream.of(buildExerciseCommand(
-                    event.getTemplateId(), event.getContractId(),
-                    "Process",
-                    nullArgument("Process"))
-                );
-
-            default:
-                break;
-        }
+    private Stream<Command> setupJobCreated(String workflowId, EventOuterClass.CreatedEvent event) {
 
-        return Stream.empty();
-    }
+        logProgress("setup job created");
 
-    @Override
-    public Stream<Command> processArchivedEvent(String workflowId, EventOuterClass.ArchivedEvent event) {
-        return Stream.empty();
+        // Process the setup job when it is created
+        return Stream.of(buildExerciseCommand(
+            event.getTemplateId(), event.getContractId(),
+            "Process",
+            nullArgument("Process"))
+        );
     }
 
     @Override
@@ -115,16 +103,15 @@ public class MarketSetupProcessor extends EventProcessor {
         BondTradingMain.terminate(1);
     }
 
-    private String [] headers = null;
-
-    private java.util.List<Map<String,String>> readAssetList() {
+    private java.util.List<String[]> readAssetList() {
 
-        headers = null;
+        try(CsvReader csv = CsvReader.open(Paths.get(assetFilePath))) {
+            int[] columns = csv.columns(ASSET_FIELDS);
 
-        try(Stream<String> stream = Files.lines(Paths.get(assetFilePath))) {
-            return stream
-                .map(this::asRecord)
-                .skip(1)
+            // A large asset file is parsed in chunks, in parallel; collecting keeps file order
+            return csv.rows()
+                .parallel()
+                .map(row -> row.select(columns))
                 .collect(Collectors.toList());
         } catch (NoSuchFileException e) {
             logError(assetFilePath+": no such file");
@@ -132,28 +119,22 @@ public class MarketSetupProcessor extends EventProcessor {
         catch (IOException e) {
             logError(assetFilePath+": IO Error:"+e.getMessage());
         }
+        catch (UncheckedIOException e) {
+            logError(assetFilePath+": IO Error:"+e.getCause().getMessage());
+        }
         return new ArrayList<>();
     }
 
-    private Map<String,String> asRecord(String line) {
-
-        String [] fields = line.split(",");
-        Map<String,String> record = new HashMap<>();
-
-        // On header (first) line, headers is null
-        if(headers == null) {
-            headers = fields;
-        } else {
-            for(int i = 0; i < headers.length; i++) {
-                record.put(headers[i],fields[i]);
-            }
-        }
-        return record;
-    };
-
 
     private Record.Builder marketSetupJob() {
 
+        // An entry for every party with assets, in the order they first appear in the asset file
+        List.Builder entries = List.newBuilder();
+        assets.stream()
+            .map(r -> r[PARTY])
+            .distinct()
+            .forEach(party -> entries.addElements(marketSetupEntry(party, bondEntries(party), cashEntries(party))));
+
         return Record.newBuilder()
             .setRecordId(identityOf("Setup", "MarketSetupJob"))
             .addFields(RecordField.newBuilder()
@@ -161,11 +142,7 @@ public class MarketSetupProcessor extends EventProcessor {
                 .setValue(Value.newBuilder().setParty(BondTradingMain.BANK)))
             .addFields(RecordField.newBuilder()
                 .setLabel("entries")
-                .setValue(Value.newBuilder().setList(
-                    List.newBuilder()
-                        .addElements(marketSetupEntry(BondTradingMain.BOB, bondEntries(BondTradingMain.BOB), cashEntries(BondTradingMain.BOB)))
-                        .addElements(marketSetupEntry(BondTradingMain.ALICE, bondEntries(BondTradingMain.ALICE), cashEntries(BondTradingMain.ALICE)))
-                )));
+                .setValue(Value.newBuilder().setList(entries)));
     }
 
     private Value.Builder marketSetupEntry(String party, List.Builder bondsEntries, List.Builder cashEntries) {
@@ -191,15 +168,15 @@ public class MarketSetupProcessor extends EventProcessor {
                         .setValue(Value.newBuilder().setList(cashEntries)))           );
     }
 
-    private Stream<Map<String,String>> assetsFor(String party, String assetName) {
+    private Stream<String[]> assetsFor(String party, String assetName) {
         return assets.stream()
-            .filter(r -> r.get("party").equals(party) && r.get("assetName").equals(assetName));
+            .filter(r -> r[PARTY].equals(party) && r[ASSET_NAME].equals(assetName));
     }
 
     private List.Builder bondEntries(String party) {
         List.Builder b = List.newBuilder();
         assetsFor(party,"Bond").forEach(r -> b.addElements(
-            bondEntry(r.get("symbol"),r.get("amount"))
+            bondEntry(r[SYMBOL],r[AMOUNT])
         ));
         return b;
     }
@@ -208,7 +185,7 @@ public class MarketSetupProcessor extends EventProcessor {
     private List.Builder cashEntries(String party) {
         List.Builder b = List.newBuilder();
         assetsFor(party,"Cash").forEach(r -> b.addElements(
-            cashEntry(r.get("symbol"),r.get("amount"))
+            cashEntry(r[SYMBOL],r[AMOUNT])
         ));
         return b;
     }
@@ -0,0 +1,153 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/*
+ * A MetricsEndpoint serves metrics in the Prometheus text exposition format on /metrics.
+ *
+ * Metrics are gathered on each scrape, on the HTTP server thread, by the source given on construction. Samples are
+ * written through a MetricsEndpoint.Writer.
+ */
+final class MetricsEndpoint {
+
+    private static final Logger log = LoggerFactory.getLogger(MetricsEndpoint.class);
+
+    static final String PREFIX = "bond_trading_";
+
+    /*
+     * Builds the text of one scrape. Samples are grouped under the declaration of their metric, whatever the order
+     * they are written in, so writers filled separately, for several parties or on several threads, can be merged
+     */
+    static final class Writer {
+
+        private static final class Family {
+            final StringBuilder declaration = new StringBuilder();
+            final StringBuilder samples = new StringBuilder();
+        }
+
+        private final Map<String, Family> families = new LinkedHashMap<>();
+        private final String commonLabels;
+
+        Writer(String commonLabels) {
+            this.commonLabels = commonLabels;
+        }
+
+        /**
+         * Declare a metric. A metric declared more than once keeps its first declaration
+         */
+        Writer declare(String name, String type, String help) {
+            StringBuilder declaration = family(name).declaration;
+            if(declaration.length() == 0) {
+                declaration.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+                declaration.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+            }
+            return this;
+        }
+
+        /**
+         * Write a sample of a metric, with label names and values given in pairs
+         */
+        Writer sample(String name, double value, String... labels) {
+            StringBuilder text = family(name).samples;
+            text.append(PREFIX).append(name).append('{').append(commonLabels);
+            for(int i = 0; i + 1 < labels.length; i += 2) {
+                if(i > 0 || !commonLabels.isEmpty()) text.append(',');
+                text.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+            }
+            text.append("} ");
+            if(value == Math.rint(value) && !Double.isInfinite(value)) {
+                text.append((long) value);
+            } else {
+                text.append(value);
+            }
+            text.append('\n');
+            return this;
+        }
+
+        /**
+         * Return an empty writer with the same common labels, for samples written on another thread
+         */
+        Writer fork() {
+            return new Writer(commonLabels);
+        }
+
+        /**
+         * Add the declarations and samples of another writer to this one
+         */
+        Writer merge(Writer other) {
+            other.families.forEach((name, theirs) -> {
+                Family mine = family(name);
+                if(mine.declaration.length() == 0) mine.declaration.append(theirs.declaration);
+                mine.samples.append(theirs.samples);
+            });
+            return this;
+        }
+
+        String text() {
+            StringBuilder text = new StringBuilder();
+            families.values().forEach(f -> text.append(f.declaration).append(f.samples));
+            return text.toString();
+        }
+
+        private Family family(String name) {
+            Family family = families.get(name);
+            if(family == null) {
+                family = new Family();
+                families.put(name, family);
+            }
+            return family;
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+    private final HttpServer server;
+
+    MetricsEndpoint(int port, String commonLabels, Consumer<Writer> source) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> scrape(exchange, commonLabels, source));
+    }
+
+    void start() {
+        server.start();
+        log.info("metrics available on port {}", server.getAddress().getPort());
+    }
+
+    private static void scrape(HttpExchange exchange, String commonLabels, Consumer<Writer> source) throws IOException {
+        byte[] body;
+        int status = 200;
+        try {
+            Writer writer = new Writer(commonLabels);
+            source.accept(writer);
+            body = writer.text().getBytes(StandardCharsets.UTF_8);
+        } catch (RuntimeException e) {
+            log.error("failed to gather metrics", e);
+            status = 500;
+            body = new byte[0];
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if(body.length > 0) {
+            try(OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        exchange.close();
+    }
+}
@@ -0,0 +1,72 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import com.digitalasset.examples.bondTrading.processor.TradingPartyProcessor.Dvp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Select DVPs in order of their leg amount, skipping any that no longer fit, so DVPs that fit are not held up behind
+ * one that does not.
+ *
+ * Taking the smallest first maximises the number of DVPs selected; taking the largest first is the first-fit
+ * decreasing heuristic for using as much of the available assets as possible. DVPs are only considered in queue order
+ * until the time budget is spent, so a very long queue bounds the cost of a call rather than the quality of the
+ * selection. DVPs of equal amount are taken in queue order.
+ */
+final class PackingSelection implements SelectionStrategy {
+
+    // Check the clock every CLOCK_INTERVAL DVPs considered
+    private static final int CLOCK_INTERVAL = 64;
+
+    private static final class Candidate {
+        final Dvp dvp;
+        final Amount amount;
+
+        Candidate(Dvp dvp, Amount amount) {
+            this.dvp = dvp;
+            this.amount = amount;
+        }
+    }
+
+    private final Comparator<Amount> order;
+    private final long budgetNanos;
+
+    PackingSelection(Comparator<Amount> order, long budgetNanos) {
+        this.order = order;
+        this.budgetNanos = budgetNanos;
+    }
+
+    @Override
+    public List<Dvp> select(IndexedQueue<Dvp> dvps, Amount.Total available, String dvpLegSelector, int limit) {
+        long deadline = System.nanoTime() + budgetNanos;
+
+        // Collect the DVPs that could be covered on their own, in queue order, until the budget is spent
+        List<Candidate> candidates = new ArrayList<>();
+        int considered = 0;
+        for(Dvp dvp : dvps) {
+            Amount amount = dvp.getLegAmount(dvpLegSelector);
+            if(available.covers(amount)) candidates.add(new Candidate(dvp, amount));
+            if(++considered % CLOCK_INTERVAL == 0 && System.nanoTime() > deadline) break;
+        }
+
+        // A stable sort keeps queue order among DVPs of equal amount
+        candidates.sort((a, b) -> order.compare(a.amount, b.amount));
+
+        List<Dvp> selected = new ArrayList<>();
+        Amount.Total required = new Amount.Total();
+        for(Candidate candidate : candidates) {
+            if(selected.size() == limit) break;
+            if(available.covers(required, candidate.amount)) {
+                required.add(candidate.amount);
+                selected.add(candidate.dvp);
+            }
+        }
+
+        return selected;
+    }
+}
@@ -0,0 +1,149 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/*
+ * A ProcessingStage owns a single thread that consumes items published by one ingestion thread through a ring
+ * buffer. Any thread may also hand the stage a task to run, so all work on state owned by the stage happens on its
+ * thread, without locks.
+ *
+ * Tasks run ahead of queued items. When the ring buffer is full the publisher waits, which pushes back on the
+ * producer of the items rather than growing the buffer.
+ *
+ * Work that throws stops the stage: the state it owns can no longer be trusted, so nothing more runs, the failure is
+ * handed to the failure handler, and items published afterwards are dropped.
+ */
+final class ProcessingStage<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(ProcessingStage.class);
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final String name;
+    private final RingBuffer<T> items;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger taskCount = new AtomicInteger();
+    private final Consumer<T> consumer;
+    private final Consumer<Throwable> onFailure;
+    private final Thread thread;
+
+    private volatile boolean idle = false;
+    private volatile boolean failed = false;
+
+    ProcessingStage(String name, int capacity, Consumer<T> consumer, Consumer<Throwable> onFailure) {
+        this.name = name;
+        this.items = new RingBuffer<>(capacity);
+        this.consumer = consumer;
+        this.onFailure = onFailure;
+        this.thread = new Thread(this::loop, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Hand an item to the stage, waiting while the buffer is full. Must only be called from the ingestion thread
+     */
+    void publish(T item) {
+        while(!items.offer(item)) {
+            if(failed) return;
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+        wake();
+    }
+
+    /**
+     * Run a task on the stage thread. May be called from any thread
+     */
+    void execute(Runnable task) {
+        taskCount.incrementAndGet();
+        tasks.add(task);
+        wake();
+    }
+
+    boolean isStageThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    int depth() {
+        return items.size();
+    }
+
+    boolean hasFailed() {
+        return failed;
+    }
+
+    int taskDepth() {
+        return taskCount.get();
+    }
+
+    /**
+     * Unpark the stage thread if it is idle. Called after publishing with a volatile write, which the read of idle
+     * cannot be reordered before
+     */
+    private void wake() {
+        if(idle) LockSupport.unpark(thread);
+    }
+
+    private void loop() {
+        while(true) {
+            boolean worked = false;
+
+            Runnable task;
+            while((task = tasks.poll()) != null) {
+                taskCount.decrementAndGet();
+                if(!run(task)) return;
+                worked = true;
+            }
+
+            T item = items.poll();
+            if(item != null) {
+                if(!run(() -> consumer.accept(item))) return;
+                worked = true;
+            }
+
+            if(!worked) {
+                // Set idle before checking for work again, so work published meanwhile either is seen here or wakes us
+                idle = true;
+                if(tasks.isEmpty() && items.isEmpty()) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                idle = false;
+            }
+        }
+    }
+
+    /**
+     * Run work on the stage thread, stopping the stage if it throws
+     *
+     * @return false if the work failed
+     */
+    private boolean run(Runnable work) {
+        try {
+            work.run();
+            return true;
+        } catch (Throwable t) {
+            failed = true;
+            log.error("{} failed to process work, and stops", name, t);
+            try {
+                onFailure.accept(t);
+            } catch (Throwable e) {
+                log.error("{} failed to report its failure", name, e);
+            }
+            return false;
+        }
+    }
+}
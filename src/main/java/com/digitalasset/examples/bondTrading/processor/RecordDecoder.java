@@ -0,0 +1,95 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import com.daml.ledger.api.v1.ValueOuterClass.Record;
+import com.daml.ledger.api.v1.ValueOuterClass.RecordField;
+import com.daml.ledger.api.v1.ValueOuterClass.Value;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/*
+ * A RecordDecoder extracts the fields of one DAML record type by position rather than by label.
+ *
+ * The Ledger API sends record fields in declaration order, so a decoder is declared with the field names of its record
+ * type in that order, and each field is read with a direct index into the record. This also works for non-verbose
+ * streams, where field labels are not sent.
+ *
+ * The first labelled record seen is used to check the declared layout. Should the labels not match - for example
+ * because the DAML model has changed - the field positions are resolved from the labels instead, once, and used from
+ * then on.
+ */
+final class RecordDecoder {
+
+    private static final Logger log = LoggerFactory.getLogger(RecordDecoder.class);
+
+    /*
+     * A field of the record type: get() returns the field value from a record without allocating
+     */
+    final class Field {
+
+        private final int slot;
+
+        private Field(int slot) {
+            this.slot = slot;
+        }
+
+        Value get(Record record) {
+            if(!verified) verify(record);
+            return record.getFields(positions[slot]).getValue();
+        }
+    }
+
+    private final String name;
+    private final String[] fieldNames;
+    private volatile int[] positions;
+    private volatile boolean verified = false;
+
+    RecordDecoder(String name, String... fieldNames) {
+        this.name = name;
+        this.fieldNames = fieldNames;
+        this.positions = new int[fieldNames.length];
+        for(int i = 0; i < fieldNames.length; i++) positions[i] = i;
+    }
+
+    Field field(String fieldName) {
+        int slot = Arrays.asList(fieldNames).indexOf(fieldName);
+        if(slot < 0) throw new IllegalArgumentException(name + " has no field " + fieldName);
+        return new Field(slot);
+    }
+
+    /**
+     * Check the declared layout against the labels of a record, resolving positions by label if they differ. Records
+     * without labels cannot be checked, and are read using the declared layout
+     */
+    private void verify(Record record) {
+        if(record.getFieldsCount() == 0 || record.getFields(0).getLabel().isEmpty()) return;
+
+        int[] resolved = new int[fieldNames.length];
+        boolean matches = true;
+        for(int slot = 0; slot < fieldNames.length; slot++) {
+            resolved[slot] = -1;
+            for(int i = 0; i < record.getFieldsCount(); i++) {
+                RecordField field = record.getFields(i);
+                if(field.getLabel().equals(fieldNames[slot])) {
+                    resolved[slot] = i;
+                    break;
+                }
+            }
+            if(resolved[slot] < 0) {
+                throw new IllegalStateException(name + " record has no field " + fieldNames[slot]);
+            }
+            matches &= resolved[slot] == slot;
+        }
+
+        if(!matches) {
+            log.warn("{} fields are not in declared order, using positions {}", name, Arrays.toString(resolved));
+            positions = resolved;
+        }
+        verified = true;
+    }
+}
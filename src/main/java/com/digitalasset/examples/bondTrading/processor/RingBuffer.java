@@ -0,0 +1,71 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * A bounded ring buffer for exactly one writer thread and one reader thread.
+ *
+ * The writer only advances the tail and the reader only advances the head, so neither side takes a lock. Capacity is
+ * rounded up to a power of two so slots are addressed with a mask.
+ *
+ * The tail is advanced with a volatile write, a full fence, so a writer that checks whether the reader is idle after
+ * offering, and a reader that sets its idle flag before checking for items, cannot both miss each other.
+ */
+final class RingBuffer<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();     // next slot to read, written by the reader only
+    private final AtomicLong tail = new AtomicLong();     // next slot to write, written by the writer only
+
+    RingBuffer(int capacity) {
+        assert capacity > 0;
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Add an item at the tail. Writer thread only
+     *
+     * @return false if the buffer is full
+     */
+    boolean offer(T item) {
+        long t = tail.get();
+        if(t - head.get() > mask) return false;
+        slots.lazySet((int) t & mask, item);
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Remove the item at the head. Reader thread only
+     *
+     * @return the item, or null if the buffer is empty
+     */
+    T poll() {
+        long h = head.get();
+        if(h == tail.get()) return null;
+        int slot = (int) h & mask;
+        T item = slots.get(slot);
+        slots.lazySet(slot, null);
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
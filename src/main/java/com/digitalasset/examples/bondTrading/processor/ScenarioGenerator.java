@@ -0,0 +1,261 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import com.digitalasset.examples.bondTrading.BondTradingMain;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/*
+ * A ScenarioGenerator produces a synthetic market: trades between a number of parties in a number of bonds, and the
+ * assets the parties need to settle all of them, in the formats of the trade and asset files.
+ *
+ * Everything is derived from the seed, so the same seed and settings always give the same scenario: trades can be
+ * written to a file, or generated again in memory by the injector, and match the assets written earlier. Each trade
+ * is drawn from a random generator seeded from the seed and its position, so any range of trades can be generated on
+ * its own, as by concurrent injection workers. Parties are named Trader1 to TraderN.
+ *
+ * The bond of each trade is drawn from a Zipf distribution over the ISINs, so with a positive skew a few bonds take
+ * most of the trades, as in a real market; a skew of 0 spreads trades evenly. Trade sizes are drawn uniformly, or
+ * log-uniformly for many small trades and few large ones. The buy ratio is the fraction of trades in which the
+ * lower-numbered of the two parties buys: at 0.5 each party buys as often as it sells, nearer 0 or 1 assets flow one
+ * way. Each ISIN has a fixed price, so cash amounts follow bond amounts.
+ */
+public final class ScenarioGenerator {
+
+    private final long seed;
+    private int partyCount = 2;
+    private int isinCount = 10;
+    private double skew = 0.0;
+    private long minSize = 1000L;
+    private long maxSize = 100000L;
+    private boolean logUniformSizes = false;
+    private double buyRatio = 0.5;
+
+    public ScenarioGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    public void setPartyCount(int partyCount) {
+        if(partyCount < 2) throw new IllegalArgumentException("a scenario needs at least 2 parties: " + partyCount);
+        this.partyCount = partyCount;
+    }
+
+    public void setIsinCount(int isinCount) {
+        if(isinCount < 1) throw new IllegalArgumentException("a scenario needs at least 1 ISIN: " + isinCount);
+        this.isinCount = isinCount;
+    }
+
+    public void setSkew(double skew) {
+        if(!(skew >= 0.0)) throw new IllegalArgumentException("ISIN skew must not be negative: " + skew);
+        this.skew = skew;
+    }
+
+    /**
+     * Draw trade sizes, in bonds, between minSize and maxSize inclusive from the named distribution: uniform or
+     * log-uniform
+     */
+    public void setSizes(String distribution, long minSize, long maxSize) {
+        if(minSize < 1 || maxSize < minSize) throw new IllegalArgumentException(String.format("bad trade size range %d to %d", minSize, maxSize));
+        switch (distribution) {
+            case "uniform":
+                logUniformSizes = false;
+                break;
+            case "log-uniform":
+                logUniformSizes = true;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown trade size distribution '" + distribution + "'");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    public void setBuyRatio(double buyRatio) {
+        if(!(buyRatio >= 0.0 && buyRatio <= 1.0)) throw new IllegalArgumentException("buy ratio must be between 0 and 1: " + buyRatio);
+        this.buyRatio = buyRatio;
+    }
+
+    public static String party(int index) {
+        return "Trader" + (index + 1);
+    }
+
+    String isin(int index) {
+        return String.format("US-%09d-0", index + 1);
+    }
+
+    /**
+     * Return the first count trades of the scenario, with their fields in TradeInjector.TRADE_FIELDS order
+     */
+    public Stream<String[]> trades(long count) {
+        return trades(0L, count);
+    }
+
+    /**
+     * Return trades from, inclusive, to to, exclusive, of the scenario
+     */
+    public Stream<String[]> trades(long from, long to) {
+        long[] prices = prices();
+        double[] cumulative = zipfCumulative();
+        return LongStream.range(from, to).mapToObj(i -> trade(new Random(tradeSeed(i)), prices, cumulative, i));
+    }
+
+    /**
+     * Write the first count trades to tradeFile, unless it is null, and the assets needed to settle them to assetFile:
+     * each party holds the cash for all its purchases, and the bonds of each ISIN for all its sales, in one contract
+     */
+    public void write(long count, Path assetFile, Path tradeFile) throws IOException {
+        Totals totals = new Totals();
+        if(tradeFile != null) {
+            try(BufferedWriter out = Files.newBufferedWriter(tradeFile)) {
+                writeLine(out, TradeInjector.TRADE_FIELDS);
+                for(String[] trade : (Iterable<String[]>) trades(count)::iterator) {
+                    totals.add(trade);
+                    writeLine(out, trade);
+                }
+            }
+        } else {
+            trades(count).forEach(totals::add);
+        }
+
+        try(BufferedWriter out = Files.newBufferedWriter(assetFile)) {
+            writeLine(out, MarketSetupProcessor.ASSET_FIELDS);
+            for(String[] asset : totals.assets()) writeLine(out, asset);
+        }
+    }
+
+    private String[] trade(Random random, long[] prices, double[] cumulative, long i) {
+        int isin = zipf(random, cumulative);
+        long size = size(random);
+
+        // Two distinct parties, the lower-numbered of which buys in buyRatio of trades
+        int a = random.nextInt(partyCount);
+        int b = random.nextInt(partyCount - 1);
+        if(b >= a) b++;
+        boolean lowerBuys = random.nextDouble() < buyRatio;
+        int buyer = lowerBuys ? Math.min(a, b) : Math.max(a, b);
+        int seller = lowerBuys ? Math.max(a, b) : Math.min(a, b);
+
+        String[] trade = new String[TradeInjector.TRADE_FIELDS.length];
+        trade[TradeInjector.BUYER] = party(buyer);
+        trade[TradeInjector.SELLER] = party(seller);
+        trade[TradeInjector.BOND_ISSUER] = BondTradingMain.BANK;
+        trade[TradeInjector.BOND_ISIN] = isin(isin);
+        trade[TradeInjector.BOND_AMOUNT] = Long.toString(size);
+        trade[TradeInjector.CASH_ISSUER] = BondTradingMain.BANK;
+        trade[TradeInjector.CASH_CURRENCY] = BondTradingMain.CURRENCY;
+        trade[TradeInjector.CASH_AMOUNT] = Long.toString(size * prices[isin]);
+        trade[TradeInjector.DVP_ID] = String.format("G%d-%d", seed, i + 1);
+        return trade;
+    }
+
+    /**
+     * Return the seed of trade i: the seed and i, mixed so neighbouring trades' generators are unrelated
+     */
+    private long tradeSeed(long i) {
+        long z = seed + (i + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Return a price per bond, between 90 and 110, for each ISIN. Drawn from a generator of its own, so prices do
+     * not depend on the number of trades
+     */
+    private long[] prices() {
+        Random random = new Random(~seed);
+        long[] prices = new long[isinCount];
+        for(int i = 0; i < isinCount; i++) prices[i] = 90 + random.nextInt(21);
+        return prices;
+    }
+
+    /**
+     * Return the cumulative probabilities of the ISINs, the ISIN of rank k having weight 1 / k^skew
+     */
+    private double[] zipfCumulative() {
+        double[] cumulative = new double[isinCount];
+        double sum = 0.0;
+        for(int k = 0; k < isinCount; k++) {
+            sum += 1.0 / Math.pow(k + 1, skew);
+            cumulative[k] = sum;
+        }
+        for(int k = 0; k < isinCount; k++) cumulative[k] /= sum;
+        return cumulative;
+    }
+
+    private static int zipf(Random random, double[] cumulative) {
+        int i = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(i >= 0 ? i + 1 : -i - 1, cumulative.length - 1);
+    }
+
+    private long size(Random random) {
+        double u = random.nextDouble();
+        if(logUniformSizes) {
+            double logMin = Math.log(minSize);
+            return Math.min(maxSize, Math.round(Math.exp(logMin + u * (Math.log(maxSize) - logMin))));
+        }
+        return minSize + (long) (u * (maxSize - minSize + 1));
+    }
+
+    private static void writeLine(BufferedWriter out, String[] values) throws IOException {
+        out.write(String.join(",", values));
+        out.newLine();
+    }
+
+    /**
+     * The cash bought and bonds sold by each party, over the trades added
+     */
+    private final class Totals {
+        final long[] cash = new long[partyCount];
+        final TreeMap<Long, Long> bonds = new TreeMap<>();     // by party * isinCount + isin
+
+        void add(String[] trade) {
+            int buyer = partyIndex(trade[TradeInjector.BUYER]);
+            int seller = partyIndex(trade[TradeInjector.SELLER]);
+            cash[buyer] += Long.parseLong(trade[TradeInjector.CASH_AMOUNT]);
+            long key = (long) seller * isinCount + isinIndex(trade[TradeInjector.BOND_ISIN]);
+            bonds.merge(key, Long.parseLong(trade[TradeInjector.BOND_AMOUNT]), Long::sum);
+        }
+
+        List<String[]> assets() {
+            List<String[]> assets = new ArrayList<>();
+            for(int p = 0; p < partyCount; p++) {
+                if(cash[p] > 0) assets.add(asset(party(p), "Cash", BondTradingMain.CURRENCY, cash[p]));
+                for(Map.Entry<Long, Long> e : bonds.subMap((long) p * isinCount, (long) (p + 1) * isinCount).entrySet()) {
+                    assets.add(asset(party(p), "Bond", isin((int) (e.getKey() % isinCount)), e.getValue()));
+                }
+            }
+            return assets;
+        }
+
+        private int partyIndex(String party) {
+            return Integer.parseInt(party.substring("Trader".length())) - 1;
+        }
+
+        private int isinIndex(String isin) {
+            return Integer.parseInt(isin.substring(3, 12)) - 1;
+        }
+
+        private String[] asset(String party, String assetName, String symbol, long amount) {
+            String[] asset = new String[MarketSetupProcessor.ASSET_FIELDS.length];
+            asset[MarketSetupProcessor.PARTY] = party;
+            asset[MarketSetupProcessor.ASSET_NAME] = assetName;
+            asset[MarketSetupProcessor.SYMBOL] = symbol;
+            asset[MarketSetupProcessor.AMOUNT] = Long.toString(amount);
+            return asset;
+        }
+    }
+}
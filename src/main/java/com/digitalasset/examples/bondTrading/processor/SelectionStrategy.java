@@ -0,0 +1,63 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import com.digitalasset.examples.bondTrading.processor.TradingPartyProcessor.Dvp;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A SelectionStrategy chooses which of the DVPs waiting on a symbol to allocate cash to, or settle, given the assets
+ * available.
+ *
+ * FIFO selects DVPs in the order they arrived, stopping at the first one that cannot be covered. The packing
+ * strategies look past a DVP that cannot be covered, so one large DVP does not hold up smaller ones behind it: they
+ * maximise either the number of DVPs or the asset amount selected, within a time budget per call.
+ */
+public interface SelectionStrategy {
+
+    /**
+     * Return at most limit DVPs of the queue, leaving the queue as it is. The leg amounts of the returned DVPs,
+     * selected with dvpLegSelector, must not exceed the available total
+     */
+    List<Dvp> select(IndexedQueue<Dvp> dvps, Amount.Total available, String dvpLegSelector, int limit);
+
+    static SelectionStrategy fifo() {
+        return new FifoSelection();
+    }
+
+    /**
+     * Select as many DVPs as possible, smallest first
+     */
+    static SelectionStrategy maxCount(long budget, TimeUnit unit) {
+        return new PackingSelection(Comparator.naturalOrder(), unit.toNanos(budget));
+    }
+
+    /**
+     * Select DVPs to use as much of the available assets as possible, largest first
+     */
+    static SelectionStrategy maxValue(long budget, TimeUnit unit) {
+        return new PackingSelection(Comparator.reverseOrder(), unit.toNanos(budget));
+    }
+
+    /**
+     * Return the strategy with the given name: fifo, count or value
+     *
+     * @throws IllegalArgumentException if there is no strategy of that name
+     */
+    static SelectionStrategy named(String name, long budget, TimeUnit unit) {
+        switch (name) {
+            case "fifo":
+                return fifo();
+            case "count":
+                return maxCount(budget, unit);
+            case "value":
+                return maxValue(budget, unit);
+            default:
+                throw new IllegalArgumentException("unknown selection strategy '" + name + "'");
+        }
+    }
+}
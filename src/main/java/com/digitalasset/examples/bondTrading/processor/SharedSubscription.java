@@ -0,0 +1,275 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import com.daml.ledger.api.v1.CommandCompletionServiceGrpc;
+import com.daml.ledger.api.v1.CommandCompletionServiceOuterClass;
+import com.daml.ledger.api.v1.CompletionOuterClass.Completion;
+import com.daml.ledger.api.v1.EventOuterClass.Event;
+import com.daml.ledger.api.v1.LedgerOffsetOuterClass.LedgerOffset;
+import com.daml.ledger.api.v1.TransactionFilterOuterClass;
+import com.daml.ledger.api.v1.TransactionOuterClass.Transaction;
+import com.daml.ledger.api.v1.TransactionServiceGrpc;
+import com.daml.ledger.api.v1.TransactionServiceOuterClass;
+import com.digitalasset.examples.bondTrading.BondTradingMain;
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * A SharedSubscription hosts processors for several parties in one JVM, over one transaction stream and one
+ * completion stream instead of a pair per party.
+ *
+ * The transaction stream is filtered by party for every hosted party, so each transaction is received, parsed and
+ * decoded once, then handed to the processors of the parties that witness its events. Completions are handed to the processor
+ * that submitted the command. Each processor keeps its own processing and submission stages, and state, so parties
+ * still process in parallel; all of them share the gRPC channel.
+ *
+ * The transaction stream is read on one thread which publishes to every hosted processor, so a processor whose
+ * ingestion buffer is full holds up the stream for all of them.
+ */
+public final class SharedSubscription {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedSubscription.class);
+
+    private final String ledgerId;
+    private final TransactionServiceGrpc.TransactionServiceStub transactionService;
+    private final CommandCompletionServiceGrpc.CommandCompletionServiceStub commandCompletionService;
+
+    private final List<? extends EventProcessor> processors;
+    private final Map<String, EventProcessor> processorsByParty = new HashMap<>();
+
+    // The processor that submitted each pending command, by command ID. Processors add their commands as they submit
+    // them, and remove them as they complete
+    private final Map<String, EventProcessor> commandRoutes = new ConcurrentHashMap<>();
+
+    // The offset each processor resumes after, if later than the start of the shared stream, by party
+    private final Map<String, Long> resumeAfter = new HashMap<>();
+
+    private int metricsPort = 0;
+
+    // Parties witnessing the transaction being dispatched. Only used on the transaction stream thread
+    private final Set<String> witnesses = new HashSet<>();
+
+    public SharedSubscription(ManagedChannel channel, String ledgerId, List<? extends EventProcessor> processors) {
+        this.ledgerId = ledgerId;
+        this.transactionService = TransactionServiceGrpc.newStub(channel);
+        this.commandCompletionService = CommandCompletionServiceGrpc.newStub(channel);
+        this.processors = processors;
+
+        processors.forEach(p -> {
+            p.setHosted(commandRoutes);
+            processorsByParty.put(p.getParty(), p);
+        });
+    }
+
+    /**
+     * Serve the metrics of every hosted processor, labelled by party, on one port
+     */
+    public void setMetricsPort(int port) {
+        this.metricsPort = port;
+    }
+
+    /**
+     * Run the hosted processors, then subscribe for all of them
+     *
+     * @return 0 if all processors started, otherwise the exit code of the first to fail
+     */
+    public int run() {
+        for(EventProcessor processor : processors) {
+            int exitCode = processor.run();
+            if(exitCode != 0) return exitCode;
+        }
+
+        String incomparable = incomparableOffset();
+        if(incomparable != null) {
+            BondTradingMain.logError("SharedSubscription", "hosted parties resume from different offsets, and offset "
+                + incomparable + " is not numeric so cannot be compared: resume every party from the same checkpoint, or run them separately");
+            return 1;
+        }
+        LedgerOffset begin = sharedBegin();
+
+        if(metricsPort > 0) {
+            try {
+                new MetricsEndpoint(metricsPort, "", this::writeMetrics).start();
+            } catch (IOException e) {
+                BondTradingMain.logError("SharedSubscription", String.format("cannot serve metrics on port %d: %s", metricsPort, e.getMessage()));
+                return 1;
+            }
+        }
+
+        setupTransactionService(begin);
+        setupCompletionService(begin);
+        return 0;
+    }
+
+    /**
+     * Return an offset that a processor resumes from that cannot be compared with the others, or null if all can be.
+     * Only numeric offsets, as on the sandbox, can be compared; processors all resuming from the same offset need not be
+     */
+    private String incomparableOffset() {
+        Set<LedgerOffset> begins = new HashSet<>();
+        processors.forEach(p -> begins.add(p.getSubscriptionBegin()));
+        if(begins.size() < 2) return null;
+
+        for(LedgerOffset begin : begins) {
+            if(isAbsolute(begin) && !isNumeric(begin.getAbsolute())) return begin.getAbsolute();
+        }
+        return null;
+    }
+
+    private static boolean isNumeric(String offset) {
+        // At most 18 digits, so it fits in a long
+        if(offset.isEmpty() || offset.length() > 18) return false;
+        for(int i = 0; i < offset.length(); i++) {
+            if(!Character.isDigit(offset.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return the earliest offset any processor needs, and record the later offsets others resume after. Offsets
+     * have been checked to be comparable
+     */
+    private LedgerOffset sharedBegin() {
+        LedgerOffset earliest = null;
+        for(EventProcessor processor : processors) {
+            LedgerOffset begin = processor.getSubscriptionBegin();
+            if(earliest == null || isBefore(begin, earliest)) earliest = begin;
+        }
+
+        for(EventProcessor processor : processors) {
+            LedgerOffset begin = processor.getSubscriptionBegin();
+            if(isBefore(earliest, begin)) resumeAfter.put(processor.getParty(), Long.parseLong(begin.getAbsolute()));
+        }
+        return earliest;
+    }
+
+    private static boolean isBefore(LedgerOffset a, LedgerOffset b) {
+        if(!isAbsolute(a)) return isAbsolute(b);    // the ledger begin precedes every absolute offset
+        if(!isAbsolute(b)) return false;
+        if(a.getAbsolute().equals(b.getAbsolute())) return false;
+        return Long.parseLong(a.getAbsolute()) < Long.parseLong(b.getAbsolute());
+    }
+
+    private static boolean isAbsolute(LedgerOffset offset) {
+        return offset.getValueCase() == LedgerOffset.ValueCase.ABSOLUTE;
+    }
+
+    private void setupTransactionService(LedgerOffset begin) {
+        TransactionFilterOuterClass.TransactionFilter.Builder filter = TransactionFilterOuterClass.TransactionFilter.newBuilder();
+        processors.forEach(p -> filter.putFiltersByParty(p.getParty(), p.transactionFilters()));
+
+        TransactionServiceOuterClass.GetTransactionsRequest transactionsRequest = TransactionServiceOuterClass.GetTransactionsRequest.newBuilder()
+            .setLedgerId(ledgerId)
+            .setBegin(begin)
+            .setFilter(filter)
+            .setVerbose(processors.stream().anyMatch(EventProcessor::isVerbose))
+            .build();
+
+        StreamObserver<TransactionServiceOuterClass.GetTransactionsResponse> transactionObserver = new StreamObserver<TransactionServiceOuterClass.GetTransactionsResponse>() {
+            @Override
+            public void onNext(TransactionServiceOuterClass.GetTransactionsResponse value) {
+                value.getTransactionsList().forEach(SharedSubscription.this::dispatch);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.warn("shared subscription encountered an error while processing transactions", t);
+            }
+
+            @Override
+            public void onCompleted() {
+                log.info("shared transaction stream completed");
+            }
+        };
+        log.info("shared subscription starts reading transactions for {}", processorsByParty.keySet());
+        transactionService.getTransactions(transactionsRequest, transactionObserver);
+    }
+
+    /**
+     * Hand a transaction to the processor of each party witnessing any of its events. Its create events are decoded
+     * once, by the first processor registering a decoder for their template, and the views handed to every processor
+     */
+    private void dispatch(Transaction tx) {
+        DecodedTransaction decoded = new DecodedTransaction(tx);
+        witnesses.clear();
+        for(Event event : tx.getEventsList()) {
+            witnesses.addAll(event.hasCreated() ? event.getCreated().getWitnessPartiesList() : event.getArchived().getWitnessPartiesList());
+        }
+
+        for(String party : witnesses) {
+            EventProcessor processor = processorsByParty.get(party);
+            if(processor == null) continue;
+
+            Long after = resumeAfter.get(party);
+            if(after != null) {
+                if(isNumeric(tx.getOffset())) {
+                    if(Long.parseLong(tx.getOffset()) <= after) continue;
+                } else {
+                    // Not expected once the checkpoint offsets were numeric: pass it on rather than stop dispatching
+                    log.warn("{} cannot tell whether transaction offset {} is after its checkpoint, and processes it", party, tx.getOffset());
+                }
+                resumeAfter.remove(party);
+            }
+            processor.publish(decoded.decodeFor(processor));
+        }
+    }
+
+    private void setupCompletionService(LedgerOffset begin) {
+        CommandCompletionServiceOuterClass.CompletionStreamRequest completionStreamRequest = CommandCompletionServiceOuterClass.CompletionStreamRequest.newBuilder()
+            .setLedgerId(ledgerId)
+            .setApplicationId(BondTradingMain.APP_ID)
+            .setOffset(begin)
+            .addAllParties(processorsByParty.keySet())
+            .build();
+
+        StreamObserver<CommandCompletionServiceOuterClass.CompletionStreamResponse> completionsObserver = new StreamObserver<CommandCompletionServiceOuterClass.CompletionStreamResponse>() {
+            @Override
+            public void onNext(CommandCompletionServiceOuterClass.CompletionStreamResponse value) {
+                value.getCompletionsList().forEach(SharedSubscription.this::dispatch);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.error("shared subscription encountered an error while processing completions", t);
+            }
+
+            @Override
+            public void onCompleted() {
+                log.info("shared completion stream completed");
+            }
+        };
+
+        commandCompletionService.completionStream(completionStreamRequest, completionsObserver);
+    }
+
+    /**
+     * Hand a completion to the processor that submitted the command. Completions do not name the submitting party,
+     * so it is looked up by command ID; completions for commands from earlier runs are dropped
+     */
+    private void dispatch(Completion completion) {
+        EventProcessor processor = commandRoutes.get(completion.getCommandId());
+        if(processor == null || !processor.complete(completion)) {
+            log.debug("no hosted party submitted command {}", completion.getCommandId());
+        }
+    }
+
+    private void writeMetrics(MetricsEndpoint.Writer out) {
+        processors.forEach(p -> {
+            MetricsEndpoint.Writer partyOut = new MetricsEndpoint.Writer(p.metricsLabels());
+            p.writeMetrics(partyOut);
+            out.merge(partyOut);
+        });
+    }
+}
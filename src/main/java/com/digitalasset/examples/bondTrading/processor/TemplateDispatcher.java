@@ -0,0 +1,49 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import com.daml.ledger.api.v1.ValueOuterClass.Identifier;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A TemplateDispatcher maps template identifiers of one DAML package to handlers.
+ *
+ * Lookups compare the package ID first, so events from other packages are dropped without a table lookup, and then
+ * index by module and entity name directly, without building a combined name for every event.
+ */
+final class TemplateDispatcher<H> {
+
+    private final String packageId;
+    private final Map<String, Map<String, H>> handlers = new HashMap<>();      // module name -> entity name -> handler
+    private final List<Identifier> templates = new ArrayList<>();
+
+    TemplateDispatcher(String packageId) {
+        this.packageId = packageId;
+    }
+
+    void register(Identifier templateId, H handler) {
+        assert templateId.getPackageId().equals(packageId);
+        H previous = handlers
+            .computeIfAbsent(templateId.getModuleName(), k -> new HashMap<>())
+            .put(templateId.getEntityName(), handler);
+        if(previous == null) templates.add(templateId);
+    }
+
+    /**
+     * Return the handler for a template, or null if there is none
+     */
+    H lookup(Identifier templateId) {
+        if(!packageId.equals(templateId.getPackageId())) return null;
+        Map<String, H> entities = handlers.get(templateId.getModuleName());
+        return entities == null ? null : entities.get(templateId.getEntityName());
+    }
+
+    List<Identifier> templates() {
+        return templates;
+    }
+}
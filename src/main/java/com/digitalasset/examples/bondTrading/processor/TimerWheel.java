@@ -0,0 +1,117 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+ * A TimerWheel holds items until their deadline: a hashed timing wheel of slots, each covering one tick of time. An
+ * item goes in the slot of its deadline's tick, and stays there for as many turns of the wheel as its deadline is
+ * ahead, so scheduling is constant time and expiring visits only the slots of the ticks that have passed.
+ *
+ * Deadlines and times are in whatever unit the tick is given in. A TimerWheel is used on one thread only.
+ */
+final class TimerWheel<T extends Serializable> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final class Entry<T> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final T item;
+        final long deadline;
+
+        Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tick;
+    private final List<List<Entry<T>>> slots;
+    private long currentTick = 0L;      // items in the slots of earlier ticks have all expired
+    private int size = 0;
+
+    TimerWheel(long tick, int slotCount) {
+        if(tick <= 0 || slotCount <= 0) throw new IllegalArgumentException("tick and slot count must be positive");
+        this.tick = tick;
+        this.slots = new ArrayList<>(slotCount);
+        for(int i = 0; i < slotCount; i++) slots.add(new ArrayList<>());
+    }
+
+    int size() {
+        return size;
+    }
+
+    void schedule(T item, long deadline) {
+        // An item already due goes in the current slot, to expire on the next call to expire
+        slotOf(Math.max(deadline / tick, currentTick)).add(new Entry<>(item, deadline));
+        size++;
+    }
+
+    /**
+     * Remove every item whose deadline is at or before now, passing each to expired in deadline order
+     */
+    void expire(long now, Consumer<T> expired) {
+        long nowTick = now / tick;
+        if(size > 0) {
+            // One turn of the wheel visits every slot, however long it is since the last call. After more than a turn,
+            // a slot visited early may hold items due after those in later slots, so all are sorted together
+            long last = Math.min(nowTick, currentTick + slots.size() - 1);
+            List<Entry<T>> due = new ArrayList<>();
+            for(long t = currentTick; t <= last && size > 0; t++) {
+                for(Iterator<Entry<T>> i = slotOf(t).iterator(); i.hasNext(); ) {
+                    Entry<T> entry = i.next();
+                    if(entry.deadline <= now) {
+                        i.remove();
+                        size--;
+                        due.add(entry);
+                    }
+                }
+            }
+            due.sort((a, b) -> Long.compare(a.deadline, b.deadline));
+            due.forEach(e -> expired.accept(e.item));
+        }
+        currentTick = Math.max(currentTick, nowTick);
+    }
+
+    /**
+     * Return the earliest deadline of the items held, or Long.MAX_VALUE if there are none
+     */
+    long nextDeadline() {
+        if(size == 0) return Long.MAX_VALUE;
+
+        // The first slot, in tick order, holding an item due in its tick this turn holds the earliest deadline
+        for(long t = currentTick; t < currentTick + slots.size(); t++) {
+            long earliest = Long.MAX_VALUE;
+            for(Entry<T> entry : slotOf(t)) {
+                if(entry.deadline / tick <= t) earliest = Math.min(earliest, entry.deadline);
+            }
+            if(earliest != Long.MAX_VALUE) return earliest;
+        }
+
+        // Nothing is due within a turn of the wheel
+        long earliest = Long.MAX_VALUE;
+        for(List<Entry<T>> slot : slots) {
+            for(Entry<T> entry : slot) earliest = Math.min(earliest, entry.deadline);
+        }
+        return earliest;
+    }
+
+    /**
+     * Pass every item held to action, in no particular order
+     */
+    void forEach(Consumer<T> action) {
+        slots.forEach(slot -> slot.forEach(e -> action.accept(e.item)));
+    }
+
+    private List<Entry<T>> slotOf(long tick) {
+        return slots.get((int) Math.floorMod(tick, (long) slots.size()));
+    }
+}
@@ -3,7 +3,6 @@
 
 package com.digitalasset.examples.bondTrading.processor;
 
-import com.digitalasset.examples.bondTrading.BondTradingMain;
 import com.daml.ledger.api.v1.CommandsOuterClass.Command;
 import com.daml.ledger.api.v1.CompletionOuterClass;
 import com.daml.ledger.api.v1.EventOuterClass;
@@ -19,27 +18,114 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Stream;
 
+/*
+ * A TradeInjector proposes the DVPs in a trade file for which its party is the buyer.
+ *
+ * By default trades are sent one after another, with an optional delay between them, so the rate falls whenever the
+ * ledger slows down. With an arrival schedule, trades are sent open-loop at the scheduled times whatever the ledger
+ * does, and latency is measured from the scheduled time of each trade.
+ *
+ * Trades may be sent in batches, several DvpProposal creates to one command, so a burst of trades takes one ledger
+ * transaction instead of one each. A partial batch is sent when the trades end, or once it has waited the linger time
+ * for more. A batch is timed from the scheduled time of its first trade.
+ *
+ * Instead of a trade file, trades may come from a ScenarioGenerator, generated as they are sent.
+ *
+ * Trades are sent by workers on an executor of their own, off the transaction stream and processing threads, so
+ * events and completions are processed while trades are sent. Each worker sends a contiguous share of the trades, at
+ * its share of the rate, with its own batches; trades are in file order within a share, but not across shares.
+ */
 public class TradeInjector extends EventProcessor {
 
     private static final Logger log = LoggerFactory.getLogger(TradeInjector.class);
 
+    // How long to wait for asynchronously submitted trades to complete before terminating
+    private static final long COMPLETION_TIMEOUT_S = 60L;
+
+
+    // The fields of a trade, in the order trades are handled in, whatever the order of the trade file's columns
+    static final String[] TRADE_FIELDS = {"buyer", "seller", "bondIssuer", "bondIsin", "bondAmount", "cashIssuer", "cashCurrency", "cashAmount", "dvpId"};
+    static final int BUYER = 0, SELLER = 1, BOND_ISSUER = 2, BOND_ISIN = 3, BOND_AMOUNT = 4, CASH_ISSUER = 5, CASH_CURRENCY = 6, CASH_AMOUNT = 7, DVP_ID = 8;
 
-    private String [] headers = null;
     private String delay_mS = null;
     private String tradeFilePath;
     private long cmdDelay = 0L;
+    private ArrivalSchedule arrivals = null;
+    private ScenarioGenerator generator = null;
+    private long generatedTradeCount = 0L;
+
+    private int workerCount = 1;
+    private int batchSize = 1;
+    private long lingerNanos = -1L;             // how long a partial batch waits for more trades, or -1 to wait until full
+    private boolean injectionStarted = false;   // only used on the processing thread
+    private volatile boolean completionFailed = false;
+
+    // When the open-loop schedule started, for every worker
+    private long scheduleStartNanos;
 
     public TradeInjector(ManagedChannel channel, String packageId, String ledgerId, String party, String tradeFilePath, String delay_mS, Boolean useWallTime) {
         super("Trade Injection", channel, packageId, ledgerId, party, useWallTime);
         this.tradeFilePath = tradeFilePath;
         this.delay_mS = delay_mS;
+
+        // Injection starts when my SettlementProcessor is created - nothing else is of interest
+        onCreated("Settlement", "SettlementProcessor", this::settlementProcessorCreated);
+    }
+
+    /**
+     * Send trades open-loop at the times given by the schedule, instead of one after another
+     */
+    public void setArrivalSchedule(ArrivalSchedule arrivals) {
+        this.arrivals = arrivals;
+    }
+
+    /**
+     * Send trades from workerCount concurrent workers, each with a contiguous share of the trades. When sending
+     * open-loop, each worker sends the party's trades in its share at an equal share of the rate, so the total rate
+     * holds only while every worker still has trades: one whose share holds fewer of the party's trades finishes early
+     */
+    public void setWorkers(int workerCount) {
+        if(workerCount < 1) throw new IllegalArgumentException("injection workers must be positive: " + workerCount);
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Send up to batchSize trades in one command
+     */
+    public void setBatchSize(int batchSize) {
+        if(batchSize < 1) throw new IllegalArgumentException("trade batch size must be positive: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Send a partial batch once it has waited linger for more trades
+     */
+    public void setLinger(long linger, TimeUnit unit) {
+        if(linger < 0) throw new IllegalArgumentException("linger must not be negative: " + linger);
+        this.lingerNanos = unit.toNanos(linger);
+    }
+
+    /**
+     * Inject the first tradeCount trades of a generated scenario, instead of the trades in the trade file
+     */
+    public void setGenerator(ScenarioGenerator generator, long tradeCount) {
+        this.generator = generator;
+        this.generatedTradeCount = tradeCount;
     }
 
     @Override
@@ -47,7 +133,7 @@ public class TradeInjector extends EventProcessor {
 
         // Verify trade file
 
-        if(!new File(tradeFilePath).exists()) {
+        if(generator == null && !new File(tradeFilePath).exists()) {
             logError("Trade file "+tradeFilePath+" does not exist");
             return 1;
         }
@@ -60,63 +146,183 @@ public class TradeInjector extends EventProcessor {
                 return 1;
             }
         }
-        super.run();
-
-        return 0;
+        return super.run();
     }
 
-    private int tradeCount = 0;
+    /**
+     * Sends one share of the trades, on a thread of the injection executor
+     */
+    private final class Worker implements Runnable {
+
+        private final Stream<String[]> trades;
+        private final ArrivalSchedule arrivals;     // null to send one after another
+        private int tradeCount = 0;
+        private long maxLagNanos = 0L;              // the furthest behind schedule a trade was sent
+
+        // Trades waiting to be sent together. The first was added at batchStartNanos, and scheduled for
+        // batchIntendedNanos (0 if not sending open-loop)
+        private final List<Command> batch = new ArrayList<>();
+        private long batchStartNanos;
+        private long batchIntendedNanos;
+
+        Worker(Stream<String[]> trades, ArrivalSchedule arrivals) {
+            this.trades = trades;
+            this.arrivals = arrivals;
+        }
 
-    private Command countTrades(Command c) {
-        tradeCount++;
-        return c;
-    };
+        @Override
+        public void run() {
+            Iterator<Command> commands = trades
+                .filter(t -> t[BUYER].equals(getParty()))
+                .map(TradeInjector.this::asCommand)
+                .iterator();
+
+            // Stop sending once interrupted, as when injection is shut down after another worker failed
+            while(commands.hasNext() && !Thread.currentThread().isInterrupted()) {
+                Command c = commands.next();
+                tradeCount++;
+                if(arrivals != null) {
+                    sendOnSchedule(c);
+                } else {
+                    delayCommand(c);
+                    send(c, 0L);
+                }
+            }
+            if(!Thread.currentThread().isInterrupted()) flushBatch();
+        }
 
-    private Command delayCommand(Command c) {
+        private void delayCommand(Command c) {
 
-        if(delay_mS != null) {
-            try {
-                Thread.sleep(cmdDelay);
-            } catch (InterruptedException e) {
-                // Do nothing
+            if(delay_mS != null) {
+                waitUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(cmdDelay));
             }
         }
-        return c;
-    }
 
-    private void streamTrades() {
-        try(Stream<String> stream = Files.lines(Paths.get(tradeFilePath))) {
-            stream.map(this::asRecord)
-                .filter(r -> !r.isEmpty() && r.get("buyer").equals(getParty()))
-                .map(this::asCommand)
-                .map(this::countTrades)
-                .map(this::delayCommand)
-                .forEach(cmd -> submitCommands("TradeInjection", Collections.singletonList(cmd)));
-        } catch (IOException e) {
-            logError(tradeFilePath+": IO Error: "+e.getMessage());
-            logProgress("%s"+String.format(" trade injection terminated after %d",tradeCount));
-            BondTradingMain.terminate(2);
+        /**
+         * Wait until the trade's scheduled time and send it, or send it at once if the schedule has been overrun
+         */
+        private void sendOnSchedule(Command c) {
+            long intended = scheduleStartNanos + arrivals.nextNanos();
+            long lag = waitUntil(intended);
+            if(Thread.currentThread().isInterrupted()) return;
+            maxLagNanos = Math.max(maxLagNanos, lag);
+            send(c, intended);
+        }
+
+        /**
+         * Add a trade to the batch, and send the batch once it is full
+         */
+        private void send(Command c, long intendedNanos) {
+            if(!batch.isEmpty() && lingerNanos >= 0L && System.nanoTime() - batchStartNanos >= lingerNanos) flushBatch();
+            if(batch.isEmpty()) {
+                batchStartNanos = System.nanoTime();
+                batchIntendedNanos = intendedNanos;
+            }
+            batch.add(c);
+            if(batch.size() >= batchSize) flushBatch();
         }
-        logProgress("%s"+String.format(" trade injection complete, %d trades",tradeCount));
-    }
 
-    private Map<String,String> asRecord(String line) {
+        private void flushBatch() {
+            if(batch.isEmpty()) return;
+            submitCommands(newCommandId(), "TradeInjection", new ArrayList<>(batch), batchIntendedNanos);
+            batch.clear();
+        }
 
-        String [] fields = line.split(",");
-        Map<String,String> record = new HashMap<>();
+        /**
+         * Wait until deadline, a System.nanoTime, sending the partial batch if its linger expires meanwhile. Returns
+         * early, leaving the thread interrupted, if it is interrupted
+         *
+         * @return how long after the deadline the wait ended
+         */
+        private long waitUntil(long deadline) {
+            long wait;
+            while((wait = deadline - System.nanoTime()) > 0L && !Thread.currentThread().isInterrupted()) {
+                if(!batch.isEmpty() && lingerNanos >= 0L) {
+                    long lingerWait = batchStartNanos + lingerNanos - System.nanoTime();
+                    if(lingerWait <= 0L) {
+                        flushBatch();
+                        continue;
+                    }
+                    wait = Math.min(wait, lingerWait);
+                }
+                LockSupport.parkNanos(wait);
+            }
+            return -wait;
+        }
+    }
 
-        // On header (first) line, headers is null
-        if(headers == null) {
-            headers = fields;
-        } else {
-            for(int i = 0; i < headers.length; i++) {
-                record.put(headers[i],fields[i]);
+    /**
+     * Send every trade, from workers on an executor of their own, and return when all of them are done
+     *
+     * @return false if injection failed, and the application is terminating
+     */
+    boolean injectTrades() {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread thread = new Thread(r, getParty() + " trade injection " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        String source = generator != null ? "generated trades" : tradeFilePath;
+        List<Worker> workers = new ArrayList<>();
+        CsvReader csv = null;
+        try {
+            List<Stream<String[]>> shares = new ArrayList<>();
+            if(generator != null) {
+                for(int k = 0; k < workerCount; k++) {
+                    shares.add(generator.trades(generatedTradeCount * k / workerCount, generatedTradeCount * (k + 1) / workerCount));
+                }
+            } else {
+                csv = CsvReader.open(Paths.get(tradeFilePath));
+                int[] columns = csv.columns(TRADE_FIELDS);
+                csv.partitions(workerCount).forEach(rows -> shares.add(rows.map(row -> row.select(columns))));
             }
+
+            // Take workers as they finish, so the first to fail stops the others however late it was submitted
+            CompletionService<Void> done = new ExecutorCompletionService<>(executor);
+            scheduleStartNanos = System.nanoTime();
+            for(int k = 0; k < shares.size(); k++) {
+                Worker worker = new Worker(shares.get(k), arrivals == null ? null : arrivals.share(k, workerCount));
+                workers.add(worker);
+                done.submit(worker, null);
+            }
+            for(int k = 0; k < workers.size(); k++) done.take().get();
+        } catch (IOException | UncheckedIOException | ExecutionException e) {
+            executor.shutdownNow();
+            Throwable t = e instanceof ExecutionException ? e.getCause() : e;
+            if(t instanceof UncheckedIOException) t = t.getCause();
+            if(t instanceof IOException) {
+                logError(source+": IO Error: "+t.getMessage());
+            } else {
+                log.error("{} trade injection from {} failed", getParty(), source, t);
+                logError(source+": trade injection failed: "+t);
+            }
+            logProgress("%s"+String.format(" trade injection terminated after %d",sentTrades(workers)));
+            terminate(t instanceof IOException ? 2 : 1);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            executor.shutdownNow();
+            if(csv != null) csv.close();
+        }
+
+        int tradeCount = sentTrades(workers);
+        logProgress("%s"+String.format(" trade injection complete, %d trades",tradeCount));
+        if(arrivals != null) {
+            double elapsedS = (System.nanoTime() - scheduleStartNanos) / 1e9;
+            long maxLagNanos = workers.stream().mapToLong(w -> w.maxLagNanos).max().orElse(0L);
+            logProgress("%s"+String.format(" sent %.1f trades/s, at most %.1fms behind schedule", tradeCount / elapsedS, maxLagNanos / 1e6));
         }
-        return record;
-    };
+        return true;
+    }
 
-    private Command asCommand(Map<String, String> record) {
+    private static int sentTrades(List<Worker> workers) {
+        return workers.stream().mapToInt(w -> w.tradeCount).sum();
+    }
+
+    Command asCommand(String[] trade) {
         ValueOuterClass.Identifier templateId = identityOf("Dvp", "DvpProposal");
         return buildCreateCommand(
                 templateId,
@@ -124,11 +330,11 @@ public class TradeInjector extends EventProcessor {
                     .setRecordId(templateId)
                 .addFields(RecordField.newBuilder()
                     .setLabel("c")
-                    .setValue(Value.newBuilder().setRecord(dvpTermsFrom(record)))
+                    .setValue(Value.newBuilder().setRecord(dvpTermsFrom(trade)))
                     .build()));
     }
 
-    private Record dvpTermsFrom(Map<String,String> record) {
+    private Record dvpTermsFrom(String[] trade) {
 
         long settlementTime = getUseWallTime() ? (System.currentTimeMillis() - (1000 * 60)) * 1000 : 0L; // settlement time is an hour ago if we are doing real time.
 
@@ -136,59 +342,56 @@ public class TradeInjector extends EventProcessor {
             .setRecordId(identityOf("DvpTerms", "DvpTerms"))
             .addFields(ValueOuterClass.RecordField.newBuilder()
                 .setLabel("buyer")
-                .setValue(ValueOuterClass.Value.newBuilder().setParty(record.get("buyer"))))
+                .setValue(ValueOuterClass.Value.newBuilder().setParty(trade[BUYER])))
             .addFields(ValueOuterClass.RecordField.newBuilder()
                 .setLabel("seller")
-                .setValue(ValueOuterClass.Value.newBuilder().setParty(record.get("seller"))))
+                .setValue(ValueOuterClass.Value.newBuilder().setParty(trade[SELLER])))
             .addFields(ValueOuterClass.RecordField.newBuilder()
                 .setLabel("bondIssuer")
-                .setValue(ValueOuterClass.Value.newBuilder().setParty(record.get("bondIssuer"))))
+                .setValue(ValueOuterClass.Value.newBuilder().setParty(trade[BOND_ISSUER])))
             .addFields(ValueOuterClass.RecordField.newBuilder()
                 .setLabel("bondIsin")
-                .setValue(ValueOuterClass.Value.newBuilder().setText(record.get("bondIsin"))))
+                .setValue(ValueOuterClass.Value.newBuilder().setText(trade[BOND_ISIN])))
             .addFields(ValueOuterClass.RecordField.newBuilder()
                 .setLabel("bondAmount")
-                .setValue(ValueOuterClass.Value.newBuilder().setNumeric(record.get("bondAmount"))))
+                .setValue(ValueOuterClass.Value.newBuilder().setNumeric(trade[BOND_AMOUNT])))
             .addFields(ValueOuterClass.RecordField.newBuilder()
                 .setLabel("cashIssuer")
-                .setValue(ValueOuterClass.Value.newBuilder().setParty(record.get("cashIssuer"))))
+                .setValue(ValueOuterClass.Value.newBuilder().setParty(trade[CASH_ISSUER])))
             .addFields(ValueOuterClass.RecordField.newBuilder()
                 .setLabel("cashCurrency")
-                .setValue(ValueOuterClass.Value.newBuilder().setText(record.get("cashCurrency"))))
+                .setValue(ValueOuterClass.Value.newBuilder().setText(trade[CASH_CURRENCY])))
             .addFields(ValueOuterClass.RecordField.newBuilder()
                 .setLabel("cashAmount")
-                .setValue(ValueOuterClass.Value.newBuilder().setNumeric(record.get("cashAmount"))))
+                .setValue(ValueOuterClass.Value.newBuilder().setNumeric(trade[CASH_AMOUNT])))
             .addFields(ValueOuterClass.RecordField.newBuilder()
                 .setLabel("settleTime")
                 .setValue(ValueOuterClass.Value.newBuilder().setTimestamp(settlementTime)))
             .addFields(ValueOuterClass.RecordField.newBuilder()
                 .setLabel("dvpId")
-                .setValue(ValueOuterClass.Value.newBuilder().setText(record.get("dvpId"))))
+                .setValue(ValueOuterClass.Value.newBuilder().setText(trade[DVP_ID])))
             .build();
     }
 
-    @Override
-    Stream<Command> processCreatedEvent(String workflowId, EventOuterClass.CreatedEvent event) {
-
-        switch(identifierToString(event.getTemplateId())) {
+    private Stream<Command> settlementProcessorCreated(String workflowId, EventOuterClass.CreatedEvent event) {
 
-            case "Settlement:SettlementProcessor":
+        // Trades are injected once, even if the SettlementProcessor is seen again
+        if(injectionStarted) return Stream.empty();
+        injectionStarted = true;
 
-                logProgress("%s starts trade injection");
+        logProgress("%s starts trade injection");
 
-                // I can start streaming my trades when I see my Helper created
-                streamTrades();
-                BondTradingMain.terminate(0);
-                break;
-
-            default:
-                break;
-        }
-        return Stream.empty();
-    }
-
-    @Override
-    Stream<Command> processArchivedEvent(String workflowId, EventOuterClass.ArchivedEvent event) {
+        // I can start streaming my trades when I see my Helper created. Injection runs on threads of its own, so the
+        // processing thread remains free to report completions while trades are streamed
+        Thread injection = new Thread(() -> {
+            if(!injectTrades()) return;
+            if(!awaitPendingCommands(COMPLETION_TIMEOUT_S, TimeUnit.SECONDS)) {
+                logError(String.format("%s: trade injection commands still pending after %d seconds", getParty(), COMPLETION_TIMEOUT_S));
+            }
+            // A failed completion has already terminated with its own exit code
+            if(!completionFailed) terminate(0);
+        }, getParty() + " trade injection");
+        injection.start();
         return Stream.empty();
     }
 
@@ -196,16 +399,26 @@ public class TradeInjector extends EventProcessor {
     void processCompletionError(CompletionOuterClass.Completion completion, CompletionRecord completionRecord) {
         log.error("Command ID {} completed with error, status={}, message={}",completion.getCommandId(),completion.getStatus().getCode(),completion.getStatus().getMessage());
         if(completionRecord != null) {
-            completionRecord.getCommands().forEach((c -> {
-                String tradeId = c.getCreate().getCreateArguments().getFieldsList().stream()
-                    .filter(f -> f.getLabel().equals("dvpId"))
-                    .collect(Collectors.toList()).get(0).getValue().getText();
-
-                logError(String.format("trade injection of trade %s failed with status %d: '%s'", tradeId, completion.getStatus().getCode(), completion.getStatus().getMessage()));
-                BondTradingMain.terminate(1);
-            }));
+            completionFailed = true;
+            // Every trade in a failed batch fails with it
+            completionRecord.getCommands().forEach(c ->
+                logError(String.format("trade injection of trade %s failed with status %d: '%s'", dvpIdOf(c), completion.getStatus().getCode(), completion.getStatus().getMessage())));
+            terminate(1);
         } else {
             logError("%s "+String.format("trade injection command %s failed with status %d: '%s'", completion.getCommandId(), completion.getStatus().getCode(), completion.getStatus().getMessage()));
         }
     }
+
+    /**
+     * Return the dvpId of a DvpProposal create command, from the DvpTerms in its c field
+     */
+    private static String dvpIdOf(Command c) {
+        return c.getCreate().getCreateArguments().getFieldsList().stream()
+            .filter(f -> f.getLabel().equals("c"))
+            .flatMap(f -> f.getValue().getRecord().getFieldsList().stream())
+            .filter(f -> f.getLabel().equals("dvpId"))
+            .map(f -> f.getValue().getText())
+            .findFirst()
+            .orElse("<unknown>");
+    }
 }
@@ -3,8 +3,8 @@
 
 package com.digitalasset.examples.bondTrading.processor;
 
-import com.digitalasset.examples.bondTrading.BondTradingMain;
 import com.daml.ledger.api.v1.CommandsOuterClass.Command;
+import com.daml.ledger.api.v1.CompletionOuterClass;
 import com.daml.ledger.api.v1.EventOuterClass.CreatedEvent;
 import com.daml.ledger.api.v1.EventOuterClass.ArchivedEvent;
 import com.daml.ledger.api.v1.EventOuterClass.ExercisedEvent;
@@ -17,30 +17,86 @@ import io.grpc.ManagedChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.BigDecimal;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.sql.Timestamp;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class TradingPartyProcessor extends EventProcessor {
 
-    public static class Asset {
+    // Decoders for the records read by the settlement bot, with fields in DAML declaration order. Transfer requests
+    // and DVP contracts share the leading fields that are read
+
+    private static final RecordDecoder CASH = new RecordDecoder("Cash.Cash", "issuer", "owner", "currency", "amount", "locker");
+    private static final RecordDecoder.Field CASH_ISSUER = CASH.field("issuer");
+    private static final RecordDecoder.Field CASH_OWNER = CASH.field("owner");
+    private static final RecordDecoder.Field CASH_CURRENCY = CASH.field("currency");
+    private static final RecordDecoder.Field CASH_AMOUNT = CASH.field("amount");
+    private static final RecordDecoder.Field CASH_LOCKER = CASH.field("locker");
+
+    private static final RecordDecoder BOND = new RecordDecoder("Bond.Bond", "issuer", "owner", "isin", "amount");
+    private static final RecordDecoder.Field BOND_ISSUER = BOND.field("issuer");
+    private static final RecordDecoder.Field BOND_OWNER = BOND.field("owner");
+    private static final RecordDecoder.Field BOND_ISIN = BOND.field("isin");
+    private static final RecordDecoder.Field BOND_AMOUNT = BOND.field("amount");
+
+    private static final RecordDecoder TRANSFER_REQUEST = new RecordDecoder("TransferRequest", "issuer", "owner", "newOwner");
+    private static final RecordDecoder.Field TRANSFER_NEW_OWNER = TRANSFER_REQUEST.field("newOwner");
+
+    private static final RecordDecoder DVP_CONTRACT = new RecordDecoder("Dvp", "c");
+    private static final RecordDecoder.Field DVP_TERMS = DVP_CONTRACT.field("c");
+
+    private static final RecordDecoder TERMS = new RecordDecoder("DvpTerms.DvpTerms",
+        "buyer", "seller", "bondIssuer", "bondIsin", "bondAmount", "cashIssuer", "cashCurrency", "cashAmount", "settleTime", "dvpId");
+    private static final RecordDecoder.Field TERMS_BUYER = TERMS.field("buyer");
+    private static final RecordDecoder.Field TERMS_SELLER = TERMS.field("seller");
+    private static final RecordDecoder.Field TERMS_BOND_ISSUER = TERMS.field("bondIssuer");
+    private static final RecordDecoder.Field TERMS_BOND_ISIN = TERMS.field("bondIsin");
+    private static final RecordDecoder.Field TERMS_BOND_AMOUNT = TERMS.field("bondAmount");
+    private static final RecordDecoder.Field TERMS_CASH_ISSUER = TERMS.field("cashIssuer");
+    private static final RecordDecoder.Field TERMS_CASH_CURRENCY = TERMS.field("cashCurrency");
+    private static final RecordDecoder.Field TERMS_CASH_AMOUNT = TERMS.field("cashAmount");
+    private static final RecordDecoder.Field TERMS_SETTLE_TIME = TERMS.field("settleTime");
+    private static final RecordDecoder.Field TERMS_DVP_ID = TERMS.field("dvpId");
+
+    // The views of the create events handled, decoded once for all the processors witnessing an event
+    private static final CreatedEventDecoder<String> NEW_OWNER_VIEW = e -> TRANSFER_NEW_OWNER.get(e.getCreateArguments()).getParty();
+    private static final CreatedEventDecoder<Asset> CASH_VIEW = Asset::cashFrom;
+    private static final CreatedEventDecoder<Asset> BOND_VIEW = Asset::bondFrom;
+    private static final CreatedEventDecoder<Dvp> DVP_VIEW = Dvp::new;
+
+    public static class Asset implements IndexedQueue.Contract, Serializable {
+
+        private static final long serialVersionUID = 2L;
 
         public static Asset zero(String symbol) {
-            return new Asset(null, BigDecimal.ZERO, symbol, null, null);
+            return new Asset(null, Amount.ZERO, symbol, null, null);
         }
 
         private final String cid;
-        private final BigDecimal amount;
+        private final Amount amount;
         private final String symbol;
         private final String owner;
         private final String issuer;
 
-        Asset(String cid, BigDecimal amount, String symbol, String owner, String issuer) {
+        Asset(String cid, Amount amount, String symbol, String owner, String issuer) {
             this.cid = cid;
             this.amount = amount;
             this.symbol = symbol;
@@ -48,7 +104,7 @@ public class TradingPartyProcessor extends EventProcessor {
             this.issuer = issuer;
         }
 
-        Asset(BigDecimal amount, String symbol) {
+        Asset(Amount amount, String symbol) {
             this.cid = null;
             this.amount = amount;
             this.symbol = symbol;
@@ -57,14 +113,19 @@ public class TradingPartyProcessor extends EventProcessor {
         }
 
         public Asset(Integer amount, String symbol) {
-            this(new BigDecimal(amount), symbol);
+            this(Amount.of(amount), symbol);
+        }
+
+        // Really for testing
+        public Asset(String cid, Integer amount, String symbol) {
+            this(cid, Amount.of(amount), symbol, null, null);
         }
 
         public String getCid() {
             return cid;
         }
 
-        public BigDecimal getAmount() {
+        public Amount getAmount() {
             return amount;
         }
 
@@ -88,34 +149,39 @@ public class TradingPartyProcessor extends EventProcessor {
 
         @Override
         public String toString() {
-            return String.format("%,.0f %s", amount, symbol);
+            return String.format("%,.0f %s", amount.toBigDecimal(), symbol);
         }
 
         public String logString() {
-            return String.format("[%,.0f %s, owner=%s, issuer=%s cid=%s]", amount, symbol, owner, issuer, cid);
+            return String.format("[%,.0f %s, owner=%s, issuer=%s cid=%s]", amount.toBigDecimal(), symbol, owner, issuer, cid);
         }
 
         public static Asset cashFrom(CreatedEvent event) {
+            Record cash = event.getCreateArguments();
             return new Asset(
                 event.getContractId(),
-                new BigDecimal(getRecordValue(event.getCreateArguments(),"amount").getNumeric()),
-                getRecordValue(event.getCreateArguments(),"currency").getText(),
-                getRecordValue(event.getCreateArguments(),"owner").getParty(),
-                getRecordValue(event.getCreateArguments(),"issuer").getParty()
+                Amount.parse(CASH_AMOUNT.get(cash).getNumeric()),
+                CASH_CURRENCY.get(cash).getText(),
+                CASH_OWNER.get(cash).getParty(),
+                CASH_ISSUER.get(cash).getParty()
             );
         }
 
         public static Asset bondFrom(CreatedEvent event) {
+            Record bond = event.getCreateArguments();
             return  new Asset(
                 event.getContractId(),
-                new BigDecimal(getRecordValue(event.getCreateArguments(),"amount").getNumeric()),
-                getRecordValue(event.getCreateArguments(),"isin").getText(),
-                getRecordValue(event.getCreateArguments(),"owner").getParty(),
-                getRecordValue(event.getCreateArguments(),"issuer").getParty()            );
+                Amount.parse(BOND_AMOUNT.get(bond).getNumeric()),
+                BOND_ISIN.get(bond).getText(),
+                BOND_OWNER.get(bond).getParty(),
+                BOND_ISSUER.get(bond).getParty()
+            );
         }
     }
 
-    public static class Dvp {
+    public static class Dvp implements IndexedQueue.Contract, Serializable {
+
+        private static final long serialVersionUID = 1L;
 
         private final String cid;
         private final String buyer;
@@ -125,42 +191,67 @@ public class TradingPartyProcessor extends EventProcessor {
         private final Asset cashLeg;
         private final Asset bondLeg;
 
+        // Kept as settlement commands fail, and not checkpointed, so a restarted processor gives every dvp a fresh start
+        private transient int splitLimit = 0;           // The most dvps to settle with this one after a failed batch, or 0
+        private transient int settlementFailures = 0;   // Settlement commands that failed with this dvp alone
+
         public Dvp(CreatedEvent event) {
 
+            Record terms = dvpTerms(event);
+
             this.cid = event.getContractId();
-            this.buyer = getDvpTermValue(event,"buyer").getParty();
-            this.seller = getDvpTermValue(event,"seller").getParty();
-            this.settleTime = getDvpTermValue(event, "settleTime").getTimestamp();
-            this.dvpId = getDvpTermValue(event,"dvpId").getText();
+            this.buyer = TERMS_BUYER.get(terms).getParty();
+            this.seller = TERMS_SELLER.get(terms).getParty();
+            this.settleTime = TERMS_SETTLE_TIME.get(terms).getTimestamp();
+            this.dvpId = TERMS_DVP_ID.get(terms).getText();
 
             this.cashLeg = new Asset(
                 null,
-                new BigDecimal(getDvpTermValue(event,"cashAmount").getNumeric()),
-                getDvpTermValue(event,"cashCurrency").getText(),
-                getDvpTermValue(event,"buyer").getParty(),
-                getDvpTermValue(event,"cashIssuer").getParty()
+                Amount.parse(TERMS_CASH_AMOUNT.get(terms).getNumeric()),
+                TERMS_CASH_CURRENCY.get(terms).getText(),
+                buyer,
+                TERMS_CASH_ISSUER.get(terms).getParty()
             );
 
             this.bondLeg = new Asset(
                 null,
-                new BigDecimal(getDvpTermValue(event,"bondAmount").getNumeric()),
-                getDvpTermValue(event,"bondIsin").getText(),
-                getDvpTermValue(event,"seller").getParty(),
-                getDvpTermValue(event,"bondIssuer").getParty()
+                Amount.parse(TERMS_BOND_AMOUNT.get(terms).getNumeric()),
+                TERMS_BOND_ISIN.get(terms).getText(),
+                seller,
+                TERMS_BOND_ISSUER.get(terms).getParty()
             );
         }
 
         // Really for testing
         public Dvp(Asset cashLeg, Asset bondLeg) {
-            this.cid = null;
+            this(cashLeg, bondLeg, 0L);
+        }
+
+        public Dvp(Asset cashLeg, Asset bondLeg, long settleTime) {
+            this(null, cashLeg, bondLeg, settleTime);
+        }
+
+        public Dvp(String cid, Asset cashLeg, Asset bondLeg, long settleTime) {
+            this.cid = cid;
             this.buyer = null;
             this.seller = null;
-            this.settleTime = 0L;
+            this.settleTime = settleTime;
             this.dvpId = null;
             this.cashLeg = cashLeg;
             this.bondLeg = bondLeg;
         }
 
+        // A dvp with the same terms, and its own settlement failures, to keep in place of a decoded view
+        Dvp(Dvp terms) {
+            this.cid = terms.cid;
+            this.buyer = terms.buyer;
+            this.seller = terms.seller;
+            this.settleTime = terms.settleTime;
+            this.dvpId = terms.dvpId;
+            this.cashLeg = terms.cashLeg;
+            this.bondLeg = terms.bondLeg;
+        }
+
         public String getCid() {
             return cid;
         }
@@ -190,7 +281,15 @@ public class TradingPartyProcessor extends EventProcessor {
             return bondLeg;
         }
 
-        BigDecimal getLegAmount(String legName) {
+        public int getSplitLimit() {
+            return splitLimit;
+        }
+
+        public int getSettlementFailures() {
+            return settlementFailures;
+        }
+
+        Amount getLegAmount(String legName) {
             assert legName.equals("cash") || legName.equals("bond");
             return (legName.equals("cash") ? cashLeg : bondLeg).getAmount();
         }
@@ -206,13 +305,6 @@ public class TradingPartyProcessor extends EventProcessor {
         public String logString() {
             return "Dvp("+dvpId+", cash="+cashLeg.logString()+", bond="+bondLeg.logString()+", cid="+cid+")";
         }
-
-        private Value getDvpTermValue(CreatedEvent dvpCreated, String field) {
-            return getRecordValue(
-                getRecordValue(dvpCreated.getCreateArguments(),"c").getRecord(),
-                field
-            );
-        }
     }
 
     public static class MatchResult {
@@ -271,62 +363,422 @@ public class TradingPartyProcessor extends EventProcessor {
         }
     }
 
-    public static class SettlementState {
+    public static class SettlementState implements Serializable {
+
+        private static final long serialVersionUID = 7L;
+
+        // The timer wheel holding dvps until their settle time has ticks of SETTLE_TICK_MICROS, and turns every
+        // SETTLE_SLOTS ticks
+        private static final long SETTLE_TICK_MICROS = 10_000L;
+        private static final int SETTLE_SLOTS = 512;
+
+        // A dvp whose settlement fails this many times when it is settled alone is set aside
+        public static final int MAX_SETTLE_FAILURES = 5;
+
+        public final Map<String,IndexedQueue<Asset>> cash = new HashMap<>();        // Cash I own, indexec by currency
+        public final Map<String,IndexedQueue<Asset>> bonds = new HashMap<>();       // Bonds I own, indexed by ISIN
+        public final Map<String,IndexedQueue<Dvp>> acceptedDvps = new HashMap<>();  // Dvps I'm a buyer on, indexed by currency - these are accepted proposals
+        public final Map<String,IndexedQueue<Dvp>> allocatedDvps = new HashMap<>(); // Dvps I'm a seller on, indexed by ISIN - these have cash allocated ready for settlement
+        public final IndexedQueue<Dvp> failedAcceptedDvps = new IndexedQueue<>();   // Dvps set aside after failing to settle alone too often,
+        public final IndexedQueue<Dvp> failedAllocatedDvps = new IndexedQueue<>();  // out of selection until archived or the processor restarts
+
+        // The queue holding each contract, by contract ID, so archives do not search the queues
+        private final Map<String,IndexedQueue<?>> contracts = new HashMap<>();
+
+        // Running totals of the cash and bonds held, by symbol, updated as assets are added, archived and allocated
+        private final Map<String,Amount.Total> cashTotals = new HashMap<>();
+        private final Map<String,Amount.Total> bondTotals = new HashMap<>();
+
+        /*
+         * The contracts taken from the queues for one settlement command. They are held until the command completes:
+         * if it fails they go back on the queues, otherwise they are dropped as their archives arrive
+         */
+        private static class Reservation implements Serializable {
+
+            private static final long serialVersionUID = 1L;
+
+            final List<Asset> cash = new ArrayList<>();
+            final List<Asset> bonds = new ArrayList<>();
+            final List<Dvp> acceptedDvps = new ArrayList<>();
+            final List<Dvp> allocatedDvps = new ArrayList<>();
+
+            boolean isEmpty() {
+                return cash.isEmpty() && bonds.isEmpty() && acceptedDvps.isEmpty() && allocatedDvps.isEmpty();
+            }
+
+            Stream<IndexedQueue.Contract> contracts() {
+                return Stream.of(cash, bonds, acceptedDvps, allocatedDvps).flatMap(List::stream);
+            }
+        }
+
+        private final Map<String,Reservation> reservations = new HashMap<>();  // Reserved contracts, by command ID
+        private final Map<String,String> reservedBy = new HashMap<>();          // Command ID, by reserved contract ID
+
+        /*
+         * A dvp held out of the queues until its settle time, when settling it would fail
+         */
+        private static class HeldDvp implements Serializable {
+
+            private static final long serialVersionUID = 1L;
+
+            final Dvp dvp;
+            final boolean allocated;    // whether the dvp is for allocatedDvps, rather than acceptedDvps
+            boolean archived = false;
+
+            HeldDvp(Dvp dvp, boolean allocated) {
+                this.dvp = dvp;
+                this.allocated = allocated;
+            }
+        }
+
+        private final TimerWheel<HeldDvp> heldDvps = new TimerWheel<>(SETTLE_TICK_MICROS, SETTLE_SLOTS);
+        private final Map<String,HeldDvp> heldByCid = new HashMap<>();
+
+        // The ledger time, in microseconds, used to decide whether a dvp may settle yet. Without a clock this follows
+        // the wall clock, as the ledger does when run in wall clock time
+        private transient LongSupplier clock = null;
+
+        // Contracts selected since the last command was submitted, not yet reserved for it
+        private transient Reservation selections = new Reservation();
+
+        public void addCash(Asset asset) {
+            hold(asset, cash, asset.getSymbol());
+            cashTotals.computeIfAbsent(asset.getSymbol(), k -> new Amount.Total()).add(asset.getAmount());
+        }
+
+        public void addBond(Asset asset) {
+            hold(asset, bonds, asset.getSymbol());
+            bondTotals.computeIfAbsent(asset.getSymbol(), k -> new Amount.Total()).add(asset.getAmount());
+        }
+
+        public void addAcceptedDvp(Dvp dvp) {
+            if(dvp.getSettleTime() > now()) {
+                holdUntilSettleTime(dvp, false);
+            } else {
+                hold(dvp, acceptedDvps, dvp.getCashLeg().getSymbol());
+            }
+        }
+
+        public void addAllocatedDvp(Dvp dvp) {
+            if(dvp.getSettleTime() > now()) {
+                holdUntilSettleTime(dvp, true);
+            } else {
+                hold(dvp, allocatedDvps, dvp.getBondLeg().getSymbol());
+            }
+        }
+
+        private void holdUntilSettleTime(Dvp dvp, boolean allocated) {
+            HeldDvp held = new HeldDvp(dvp, allocated);
+            heldDvps.schedule(held, dvp.getSettleTime());
+            if(dvp.getCid() != null) heldByCid.put(dvp.getCid(), held);
+        }
+
+        /**
+         * Move dvps whose settle time has come into the queues
+         *
+         * @return the number of dvps released
+         */
+        public int releaseDueDvps() {
+            int[] released = {0};
+            heldDvps.expire(now(), held -> {
+                if(held.archived) return;
+                if(held.dvp.getCid() != null) heldByCid.remove(held.dvp.getCid());
+                if(held.allocated) {
+                    addAllocatedDvp(held.dvp);
+                } else {
+                    addAcceptedDvp(held.dvp);
+                }
+                released[0]++;
+            });
+            return released[0];
+        }
+
+        /**
+         * Return the earliest settle time of the dvps held, in microseconds, or Long.MAX_VALUE if none are held
+         */
+        public long nextSettleTime() {
+            return heldDvps.nextDeadline();
+        }
+
+        /**
+         * Return the dvps held until their settle time, accepted or allocated
+         */
+        public List<Dvp> getHeldDvps(boolean allocated) {
+            List<Dvp> dvps = new ArrayList<>();
+            heldDvps.forEach(held -> {
+                if(held.allocated == allocated && !held.archived) dvps.add(held.dvp);
+            });
+            return dvps;
+        }
+
+        /**
+         * Set the clock giving the ledger time in microseconds
+         */
+        public void setClock(LongSupplier clock) {
+            this.clock = clock;
+        }
+
+        /**
+         * Return the ledger time in microseconds, from the clock if one is set
+         */
+        public long now() {
+            return clock == null ? System.currentTimeMillis() * 1000L : clock.getAsLong();
+        }
+
+        private <T extends IndexedQueue.Contract> void hold(T contract, Map<String,IndexedQueue<T>> queues, String symbol) {
+            IndexedQueue<T> queue = queues.computeIfAbsent(symbol, k -> new IndexedQueue<>());
+            queue.add(contract);
+            if(contract.getCid() != null) contracts.put(contract.getCid(), queue);
+        }
+
+        // Put contracts back at the head of their queues, keeping their order
+        private <T extends IndexedQueue.Contract> void holdFirst(List<T> items, Map<String,IndexedQueue<T>> queues, Function<T,String> symbolOf) {
+            Map<String,List<T>> bySymbol = items.stream().collect(Collectors.groupingBy(symbolOf, LinkedHashMap::new, Collectors.toList()));
+            bySymbol.forEach((symbol, list) -> {
+                IndexedQueue<T> queue = queues.computeIfAbsent(symbol, k -> new IndexedQueue<>());
+                queue.offerFirst(list);
+                list.forEach(c -> {
+                    if(c.getCid() != null) contracts.put(c.getCid(), queue);
+                });
+            });
+        }
+
+        /**
+         * Remove an archived contract from whichever queue holds it
+         *
+         * @return true if the contract was held
+         */
+        public boolean archive(String cid) {
+            IndexedQueue<?> queue = contracts.remove(cid);
+            if(reservedBy.remove(cid) != null) {
+                // Consumed by the command it was reserved for: the reservation is committed
+                return true;
+            }
+            HeldDvp held = heldByCid.remove(cid);
+            if(held != null) {
+                // Left on the timer wheel, to be dropped when its settle time comes
+                held.archived = true;
+                return true;
+            }
+            if(queue == null) return false;
+
+            IndexedQueue.Contract removed = queue.removeContract(cid);
+            if(removed instanceof Asset) {
+                Asset asset = (Asset) removed;
+                debit(cash.get(asset.getSymbol()) == queue ? cashTotals : bondTotals, asset.getSymbol(), asset.getAmount());
+            }
+            return removed != null;
+        }
+
+        // How dvps are chosen for allocation and settlement. This is configuration, not state, so is not checkpointed
+        private transient SelectionStrategy selectionStrategy = null;
 
-        public final Map<String,Queue<Asset>> cash = new HashMap<>();        // Cash I own, indexec by currency
-        public final Map<String,Queue<Asset>> bonds = new HashMap<>();       // Bonds I own, indexed by ISIN
-        public final Map<String,Queue<Dvp>> acceptedDvps = new HashMap<>();  // Dvps I'm a buyer on, indexed by currency - these are accepted proposals
-        public final Map<String,Queue<Dvp>> allocatedDvps = new HashMap<>(); // Dvps I'm a seller on, indexed by ISIN - these have cash allocated ready for settlement
+        public void setSelectionStrategy(SelectionStrategy selectionStrategy) {
+            this.selectionStrategy = selectionStrategy;
+        }
+
+        SelectionStrategy getSelectionStrategy() {
+            if(selectionStrategy == null) selectionStrategy = SelectionStrategy.fifo();
+            return selectionStrategy;
+        }
 
         public MatchResult allocateBonds(String isin) {
-            return matchAssets(bonds.get(isin), allocatedDvps.get(isin), "bond", isin);
+            return allocateBonds(isin, Integer.MAX_VALUE);
+        }
+
+        public MatchResult allocateBonds(String isin, int maxDvps) {
+            MatchResult result = matchAssets(bonds.get(isin), bondTotals.get(isin), allocatedDvps.get(isin), "bond", isin, maxDvps);
+            debit(bondTotals, isin, result.getAssetTotal().getAmount());
+            getSelections().bonds.addAll(result.assetList);
+            getSelections().allocatedDvps.addAll(result.dvpList);
+            return result;
         }
 
         public MatchResult allocateCash(String currency) {
-            return matchAssets(cash.get(currency), acceptedDvps.get(currency), "cash", currency);
+            return allocateCash(currency, Integer.MAX_VALUE);
+        }
+
+        public MatchResult allocateCash(String currency, int maxDvps) {
+            MatchResult result = matchAssets(cash.get(currency), cashTotals.get(currency), acceptedDvps.get(currency), "cash", currency, maxDvps);
+            debit(cashTotals, currency, result.getAssetTotal().getAmount());
+            getSelections().cash.addAll(result.assetList);
+            getSelections().acceptedDvps.addAll(result.dvpList);
+            return result;
+        }
+
+        private Reservation getSelections() {
+            if(selections == null) selections = new Reservation();
+            return selections;
         }
 
         /**
-         * Return the sum of all cash items
+         * Reserve the contracts selected since the last call for a submitted command. They are out of the queues
+         * until the command is committed or released
          *
-         * @return
+         * @param commandId the command that uses them, or null if none was submitted
          */
-        Asset getCashTotal(String currency) {
-            assert cash.containsKey(currency);
-            return cash.get(currency).stream().reduce(Asset.zero(currency), Asset::sum);
+        public void reserveSelections(String commandId) {
+            Reservation reservation = getSelections();
+            selections = new Reservation();
+            if(reservation.isEmpty()) return;
+            if(commandId == null) {
+                // Nothing was submitted for the selections, so they are still free
+                restore(reservation, null);
+                return;
+            }
+            reservations.put(commandId, reservation);
+            reservation.contracts().forEach(c -> {
+                if(c.getCid() != null) reservedBy.put(c.getCid(), commandId);
+            });
         }
 
-        Asset getBondTotal(String isin) {
-            assert bonds.containsKey(isin);
-            return bonds.get(isin).stream().reduce(Asset.zero(isin), Asset::sum);
+        /**
+         * Drop the reservation of a command that succeeded. Its contracts are consumed
+         */
+        public void commit(String commandId) {
+            Reservation reservation = reservations.remove(commandId);
+            if(reservation == null) return;
+            reservation.contracts().forEach(c -> {
+                if(c.getCid() != null && commandId.equals(reservedBy.get(c.getCid()))) {
+                    reservedBy.remove(c.getCid());
+                    contracts.remove(c.getCid());
+                }
+            });
+        }
+
+        /**
+         * Put the contracts reserved for a command that did not run, or lost out on contention, back at the head of
+         * their queues
+         *
+         * @return true if any contracts were released
+         */
+        public boolean release(String commandId) {
+            Reservation reservation = reservations.remove(commandId);
+            if(reservation == null) return false;
+            restore(reservation, commandId);
+            return !reservation.isEmpty();
+        }
+
+        /**
+         * Put the contracts reserved for a command that failed back at the head of their queues, as release does, and
+         * narrow down which dvp failed it. The dvps of a failed batch are settled in batches of at most half its size,
+         * until each failing dvp is settled alone. Only then is the failure counted against the dvp, which is set aside
+         * after MAX_SETTLE_FAILURES failures
+         *
+         * @return true if any contracts were released
+         */
+        public boolean fail(String commandId) {
+            Reservation reservation = reservations.remove(commandId);
+            if(reservation == null) return false;
+
+            List<Dvp> dvps = new ArrayList<>(reservation.acceptedDvps);
+            dvps.addAll(reservation.allocatedDvps);
+            if(dvps.size() > 1) {
+                int limit = dvps.size() / 2;
+                dvps.forEach(d -> d.splitLimit = limit);
+            } else if(dvps.size() == 1) {
+                Dvp dvp = dvps.get(0);
+                boolean live = dvp.getCid() == null || commandId.equals(reservedBy.get(dvp.getCid()));
+                if(live && ++dvp.settlementFailures >= MAX_SETTLE_FAILURES) {
+                    log.warn("dvp {} is set aside after failing to settle {} times", dvp.logString(), dvp.settlementFailures);
+                    if(dvp.getCid() != null) reservedBy.remove(dvp.getCid());
+                    boolean allocated = reservation.acceptedDvps.isEmpty();
+                    (allocated ? reservation.allocatedDvps : reservation.acceptedDvps).clear();
+                    setAside(dvp, allocated);
+                }
+            }
+            restore(reservation, commandId);
+            return !reservation.isEmpty();
+        }
+
+        private void setAside(Dvp dvp, boolean allocated) {
+            IndexedQueue<Dvp> queue = allocated ? failedAllocatedDvps : failedAcceptedDvps;
+            queue.add(dvp);
+            if(dvp.getCid() != null) contracts.put(dvp.getCid(), queue);
+        }
+
+        /**
+         * Release every reservation, as none of their commands can still complete
+         */
+        public void releaseAll() {
+            new ArrayList<>(reservations.keySet()).forEach(this::release);
+        }
+
+        // Re-add the contracts of a reservation that have not been archived since they were reserved, ahead of those
+        // added since
+        private void restore(Reservation reservation, String commandId) {
+            Predicate<IndexedQueue.Contract> held = c ->
+                c.getCid() == null || commandId == null || commandId.equals(reservedBy.remove(c.getCid()));
+            restoreAssets(reservation.cash.stream().filter(held).collect(Collectors.toList()), cash, cashTotals);
+            restoreAssets(reservation.bonds.stream().filter(held).collect(Collectors.toList()), bonds, bondTotals);
+            holdFirst(reservation.acceptedDvps.stream().filter(held).collect(Collectors.toList()), acceptedDvps, d -> d.getCashLeg().getSymbol());
+            holdFirst(reservation.allocatedDvps.stream().filter(held).collect(Collectors.toList()), allocatedDvps, d -> d.getBondLeg().getSymbol());
+        }
+
+        private void restoreAssets(List<Asset> assets, Map<String,IndexedQueue<Asset>> queues, Map<String,Amount.Total> totals) {
+            holdFirst(assets, queues, Asset::getSymbol);
+            assets.forEach(a -> totals.computeIfAbsent(a.getSymbol(), k -> new Amount.Total()).add(a.getAmount()));
+        }
+
+        /**
+         * Return the number of commands holding reservations
+         */
+        int reservationCount() {
+            return reservations.size();
+        }
+
+        /**
+         * Return the total of the cash held in a currency, and not allocated to a settlement command
+         */
+        public Asset getCashTotal(String currency) {
+            Amount.Total total = cashTotals.get(currency);
+            return new Asset(total == null ? Amount.ZERO : total.toAmount(), currency);
+        }
+
+        public Asset getBondTotal(String isin) {
+            Amount.Total total = bondTotals.get(isin);
+            return new Asset(total == null ? Amount.ZERO : total.toAmount(), isin);
+        }
+
+        Map<String,Amount.Total> getCashTotals() {
+            return cashTotals;
+        }
+
+        Map<String,Amount.Total> getBondTotals() {
+            return bondTotals;
+        }
+
+        private static void debit(Map<String,Amount.Total> totals, String symbol, Amount amount) {
+            Amount.Total total = totals.get(symbol);
+            if(total != null) total.subtract(amount);
         }
 
         /**
          * Return a set of ISINs that should be considered for settlement: that is,
-         * there are at least SETTLEMENT_BATCH_SIZE dvps for that ISIN waiting for
-         * settlement or allocation
+         * the batching policy finds enough dvps for that ISIN waiting for
+         * settlement, or that they have waited long enough
          *
          * @return a Set<String> of ISINs
          */
-        public Set<String> activeIsins() {
+        public Set<String> activeIsins(BatchingPolicy policy, long nowNanos) {
             Set<String> isins = new HashSet<>();
             allocatedDvps.forEach((isin, dvps) -> {
-                if (dvps.size() >= BondTradingMain.SETTLEMENT_BATCH_SIZE) isins.add(isin);
+                if (policy.ready(dvps, dvps.size(), nowNanos)) isins.add(isin);
             });
             return isins;
         }
 
         /**
-         * Return a set of ISINs that should be considered for settlement: that is,
-         * there are at least SETTLEMENT_BATCH_SIZE dvps for that ISIN waiting for
-         * settlement or allocation
+         * Return a set of currencies that should be considered for allocation: that is,
+         * the batching policy finds enough dvps in that currency waiting for
+         * allocation, or that they have waited long enough
          *
-         * @return a Set<String> of ISINs
+         * @return a Set<String> of currencies
          */
-        public Set<String> activeCurrencies() {
+        public Set<String> activeCurrencies(BatchingPolicy policy, long nowNanos) {
             Set<String> currencies = new HashSet<>();
             acceptedDvps.forEach((currency, dvps) -> {
-                if (dvps.size() >= BondTradingMain.SETTLEMENT_BATCH_SIZE) currencies.add(currency);
+                if (policy.ready(dvps, dvps.size(), nowNanos)) currencies.add(currency);
             });
             return currencies;
         }
@@ -335,9 +787,9 @@ public class TradingPartyProcessor extends EventProcessor {
          * Run the settlement algorithm by considering the current cash, and and dvp state, and generate
          * appropriate commands if any dvps can be allocated or settled from the current bond and cash state
          *
-         * This is done by looking at the set of dvps and related assets, and seeing if there are enough assets to
-         * satisfy the demand from the dvp set. The asset amounts are totalled, and enough dvps selected so that when assets
-         * are consumed, the residual asset is not enough to satisfy the next dvp currently held.
+         * This is done by letting the selection strategy choose dvps whose total demand can be met from the available
+         * assets, then taking assets in order until that demand is covered. Any residual is split off by the
+         * settlement choice.
          *
          * This algorithm can be applied to both cash allocation and bond settlement by using the correct dvp leg selector
          * used for amount comparison
@@ -346,57 +798,273 @@ public class TradingPartyProcessor extends EventProcessor {
          *
          */
 
-        private static MatchResult matchAssets(Queue<Asset> assetQueue, Queue<Dvp> dvpQueue, String dvpLegSelector, String symbol) {
+        private MatchResult matchAssets(IndexedQueue<Asset> assetQueue, Amount.Total available, IndexedQueue<Dvp> dvpQueue, String dvpLegSelector, String symbol, int maxDvps) {
 
-            if(assetQueue == null || dvpQueue == null) {
+            if(assetQueue == null || available == null || dvpQueue == null || dvpQueue.isEmpty()) {
                 // No assets or dvps to process - return empty
                 return new MatchResult(symbol);
             }
 
-            List<Asset> selectedAssets = new LinkedList<>();
-            List<Dvp> selectedDvps = new LinkedList<>();
-            BigDecimal assetTotal = BigDecimal.ZERO;
-            BigDecimal dvpTotal = BigDecimal.ZERO;
+            List<Dvp> selectedDvps = getSelectionStrategy().select(dvpQueue, available, dvpLegSelector, maxDvps);
+            if(selectedDvps.isEmpty()) return new MatchResult(symbol);
+
+            // Dvps from a batch that failed go in smaller batches, until the dvp that failed it is settled alone
+            int splitLimit = selectedDvps.stream().mapToInt(Dvp::getSplitLimit).filter(l -> l > 0).min().orElse(Integer.MAX_VALUE);
+            if(splitLimit < selectedDvps.size()) selectedDvps = new ArrayList<>(selectedDvps.subList(0, splitLimit));
+
+            Amount.Total dvpTotal = new Amount.Total();
+            selectedDvps.forEach(dvp -> dvpTotal.add(dvp.getLegAmount(dvpLegSelector)));
+
+            // Amounts are summed in fixed point totals, so the loop does not allocate other than to grow the result
+            List<Asset> selectedAssets = new ArrayList<>();
+            Amount.Total assetTotal = new Amount.Total();
+            while(!assetTotal.covers(dvpTotal) && !assetQueue.isEmpty()) {
+                Asset asset = assetQueue.poll();
+                assetTotal.add(asset.getAmount());
+                selectedAssets.add(asset);
+            }
+
+            if(!assetTotal.covers(dvpTotal)) {
+                // The running total overstated the assets held: put the assets back at the head of their queue, and
+                // leave the dvps where they are, rather than submit a failing command
+                log.warn("{} assets do not cover the selected dvps, expected {} but found {}", symbol, available, assetTotal);
+                assetQueue.offerFirst(selectedAssets);
+                return new MatchResult(symbol);
+            }
+            dvpQueue.removeContracts(selectedDvps);
+            return new MatchResult(selectedAssets,selectedDvps, new Asset(assetTotal.toAmount(),symbol));
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(TradingPartyProcessor.class);
+
+    /*
+     * The SettlementState of the symbols that hash to one shard. All work on the state runs on the shard's own thread,
+     * so shards match and submit settlement commands in parallel while each state has a single writer. A shard
+     * without a thread runs its work on the processing thread.
+     *
+     * Cash allocation for a currency reads only the cash and accepted dvps in that currency, and settlement for an
+     * ISIN only the bonds and allocated dvps of that ISIN, so no settlement spans shards.
+     */
+    private final class SettlementShard {
+
+        private final int index;
+        private final SettlementState state = new SettlementState();
+        private final BatchingPolicy batchingPolicy;
+        private final WorkerStage<Runnable> worker;     // null to run on the processing thread
+
+        private boolean wakeSet = false;                // shard thread: whether settlement is due to run by timer,
+        private long wakeAt = 0L;                       // and when
+        private boolean changed = false;                // processing thread: set when settlement may have work
+        private volatile long nextSettleTime = Long.MAX_VALUE;  // the earliest settle time of the dvps held, as of the last settlement
+
+        SettlementShard(int index, boolean threaded) {
+            this.index = index;
+            state.setSelectionStrategy(selectionStrategy);
+            state.setClock(TradingPartyProcessor.this::ledgerTimeMicros);
+            batchingPolicy = TradingPartyProcessor.this.batchingPolicy.copy();
+            worker = threaded ? new WorkerStage<>(getParty() + " settlement " + index, Runnable::run, TradingPartyProcessor.this::stageFailed) : null;
+            if(worker != null) worker.start();
+        }
+
+        void execute(Runnable task) {
+            if(worker == null) {
+                runOnProcessingStage(task);
+            } else {
+                worker.enqueue(task);
+            }
+        }
 
-            boolean done = assetQueue.isEmpty() || dvpQueue.isEmpty();
+        int depth() {
+            return worker == null ? 0 : worker.depth();
+        }
 
-            while(!done) {
-                BigDecimal assetSum = BigDecimal.ZERO;
-                List<Asset> assetList = new ArrayList<>();
+        /**
+         * Allocate and settle whatever the batching policy finds ready, in commands of at most the maximum batch of
+         * dvps each. Runs on the shard thread
+         */
+        void settle() {
+            if(settlementProcessorContractId == null) return;
+
+            long now = System.nanoTime();
+            int maxBatch = batchingPolicy.getMaxBatch();
+
+            int released = state.releaseDueDvps();
+            if(released > 0) logProgress("%s " + String.format("releases %d dvps at their settle time", released));
+
+            if(log.isDebugEnabled()) {
+                log.debug("{} now has balances cash={}, bonds={}",
+                    getParty(),
+                    String.join(", ", state.getCashTotals().keySet().stream()
+                        .map(k -> state.getCashTotal(k).toString())
+                        .collect(Collectors.toList())),
+                    String.join(", ", state.getBondTotals().keySet().stream()
+                        .map(k -> state.getBondTotal(k).toString())
+                        .collect(Collectors.toList())));
+            }
 
-                while(assetSum.add(assetTotal).compareTo(dvpQueue.peek().getLegAmount(dvpLegSelector).add(dvpTotal)) < 0 && !assetQueue.isEmpty()) {
-                    // While the sum of extracted assets is not enough to satisfy nextDvp, or we run out of assets/dvps...
-                    assetSum = assetSum.add(assetQueue.peek().getAmount());   // Update the cash sum
-                    assetList.add(assetQueue.poll());                    // Pull the selected asset and add to the assetList
+            // Every command is submitted on its own. Commands for different symbols, and successive chunks of one
+            // symbol, never share contracts, so a command that fails does not take others down with it. Chunks are
+            // taken until a symbol runs out of dvps, or of assets not already in flight, or the dvps left are too few
+            // for the batching policy to settle yet
+            for(String currency : state.activeCurrencies(batchingPolicy, now)) {
+                IndexedQueue<Dvp> dvps = state.acceptedDvps.get(currency);
+                MatchResult matchResult;
+                while((matchResult = state.allocateCash(currency, maxBatch)).hasSelections()) {
+                    logProgress(settlementLogMessageFor(matchResult, "allocates"));
+                    submitSettlement(settlementCommandFor(matchResult,"AllocateCash","cashCids", "dvpCids"));
+                    batchingPolicy.submitted(dvps);
+                    if(!batchingPolicy.ready(dvps, dvps.size(), now)) break;
                 }
-                if(assetSum.add(assetTotal).compareTo(dvpQueue.peek().getLegAmount(dvpLegSelector).add(dvpTotal)) >= 0) {
-                    // We have enough assets to allocate or settle nextDvp - add to the result
-                    assetTotal = assetTotal.add(assetSum);
-                    dvpTotal = dvpTotal.add(dvpQueue.peek().getLegAmount(dvpLegSelector));
-                    selectedAssets.addAll(assetList);
-                    selectedDvps.add(dvpQueue.poll());
-                    done = assetQueue.isEmpty() || dvpQueue.isEmpty();
-                } else {
-                    // Push back the assets and dvp's extacted so far and mark done
-                    assetQueue.addAll(assetList);
-                    done = true;
+            }
+            for(String isin : state.activeIsins(batchingPolicy, now)) {
+                IndexedQueue<Dvp> dvps = state.allocatedDvps.get(isin);
+                MatchResult matchResult;
+                while((matchResult = state.allocateBonds(isin, maxBatch)).hasSelections()) {
+                    logProgress(settlementLogMessageFor(matchResult, "settles"));
+                    submitSettlement(settlementCommandFor(matchResult,"SettleMany","bondCids", "dvpAllocatedCids"));
+                    batchingPolicy.submitted(dvps);
+                    if(!batchingPolicy.ready(dvps, dvps.size(), now)) break;
                 }
             }
-            return new MatchResult(selectedAssets,selectedDvps, new Asset(assetTotal,symbol));
+            nextSettleTime = state.nextSettleTime();
+            setWakeTimer(now);
+        }
+
+        private void submitSettlement(Command command) {
+            // Reserve the selections, and make the command's completion find this shard, before it can complete
+            String commandId = newCommandId();
+            commandShards.put(commandId, this);
+            state.reserveSelections(commandId);
+            submitCommands(commandId, "Settlement - " + getParty(), Collections.singletonList(command));
+        }
+
+        /**
+         * Make sure settlement runs again when dvps held back for a batch reach the maximum wait, or, in wall clock
+         * time, when the next dvp held until its settle time is due. In static time, held dvps are released as
+         * transactions show the ledger time has moved on
+         */
+        private void setWakeTimer(long now) {
+            long delay = batchingPolicy.nanosToNextDeadline(now);
+
+            long settleTime = state.nextSettleTime();
+            if(settleTime != Long.MAX_VALUE && Boolean.TRUE.equals(getUseWallTime())) {
+                // Measured on the clock the state releases held dvps by, so the timer fires when they are due
+                long settleDelay = TimeUnit.MICROSECONDS.toNanos(Math.max(0L, settleTime - state.now()));
+                delay = delay < 0 ? settleDelay : Math.min(delay, settleDelay);
+            }
+            if(delay < 0) return;
+
+            // A timer already due no later does the job. One due later still fires, and settles again harmlessly
+            long deadline = now + delay;
+            if(wakeSet && deadline - wakeAt >= 0) return;
+            wakeSet = true;
+            wakeAt = deadline;
+            batchTimer().schedule(() -> execute(() -> {
+                if(wakeAt == deadline) wakeSet = false;
+                settle();
+            }), delay, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Write metrics on the shard state. Runs on the shard thread
+         */
+        void writeMetrics(MetricsEndpoint.Writer out) {
+            out.declare("settlement_queue_depth", "gauge", "Contracts held for settlement, by queue and symbol");
+            writeDepths(out, "cash", state.cash);
+            writeDepths(out, "bonds", state.bonds);
+            writeDepths(out, "acceptedDvps", state.acceptedDvps);
+            writeDepths(out, "allocatedDvps", state.allocatedDvps);
+
+            out.declare("settlement_balance", "gauge", "Unallocated assets held, by symbol");
+            state.getCashTotals().forEach((symbol, total) -> out.sample("settlement_balance", total.doubleValue(), "asset", "cash", "symbol", symbol));
+            state.getBondTotals().forEach((symbol, total) -> out.sample("settlement_balance", total.doubleValue(), "asset", "bond", "symbol", symbol));
+
+            out.declare("settlement_reservations", "gauge", "Settlement commands in flight holding reserved contracts, by shard");
+            out.sample("settlement_reservations", state.reservationCount(), "shard", Integer.toString(index));
+
+            out.declare("settlement_held_dvps", "gauge", "Dvps held until their settle time, by shard");
+            out.sample("settlement_held_dvps", state.getHeldDvps(false).size() + state.getHeldDvps(true).size(), "shard", Integer.toString(index));
+
+            out.declare("settlement_set_aside_dvps", "gauge", "Dvps set aside after failing to settle, by shard");
+            out.sample("settlement_set_aside_dvps", state.failedAcceptedDvps.size() + state.failedAllocatedDvps.size(), "shard", Integer.toString(index));
         }
     }
 
-    private static final Logger log = LoggerFactory.getLogger(TradingPartyProcessor.class);
+    /*
+     * The settlement state saved with a checkpoint: my SettlementProcessor, and the serialized state of each shard
+     */
+    private static final class SettlementCheckpoint implements Serializable {
+
+        private static final long serialVersionUID = 2L;
+
+        private final String settlementProcessorContractId;
+        private final List<byte[]> shards = new ArrayList<>();
+
+        SettlementCheckpoint(String settlementProcessorContractId) {
+            this.settlementProcessorContractId = settlementProcessorContractId;
+        }
+    }
 
-    private String settlementProcessorContractId;
+    // Wait for shards to sample their metrics for at most this long
+    private static final long SHARD_METRICS_TIMEOUT_MS = 1000L;
 
-    private SettlementState state = new SettlementState();
+    private volatile String settlementProcessorContractId;
+
+    private SelectionStrategy selectionStrategy = SelectionStrategy.fifo();
+    private BatchingPolicy batchingPolicy = BatchingPolicy.immediate();
+
+    // Settlement state is partitioned by symbol into shards, each with its own thread when shardThreads > 0. Shards
+    // are created when the processor starts
+    private int shardThreads = 0;
+    private SettlementShard[] shards = null;
+
+    // The shard holding each contract, by contract ID, so archives are routed without the contract's symbol. Only
+    // used on the processing thread
+    private final Map<String,SettlementShard> contractShards = new HashMap<>();
+
+    // The shard that submitted each settlement command still pending, by command ID
+    private final Map<String,SettlementShard> commandShards = new ConcurrentHashMap<>();
+
+    // Runs settlement when held back dvps reach the maximum batch wait or their settle time, if no transaction arrives
+    // first
+    private ScheduledExecutorService batchTimer = null;
 
     public TradingPartyProcessor(ManagedChannel channel, String packageId, String ledgerId, String party, Boolean useWallTime) {
         super("Settlement", channel,packageId, ledgerId, party, useWallTime);
 
-        submitCommands(
-            "SettlementProcessor - " + party,
+        onCreated("Bond", "BondTransferRequest", NEW_OWNER_VIEW, this::transferRequestCreated);
+        onCreated("Cash", "CashTransferRequest", NEW_OWNER_VIEW, this::transferRequestCreated);
+        onCreated("Settlement", "SettlementProcessor", this::settlementProcessorCreated);
+        onCreated("Cash", "Cash", CASH_VIEW, this::cashCreated);
+        onCreated("Bond", "Bond", BOND_VIEW, this::bondCreated);
+        onCreated("Dvp", "DvpProposal", DVP_VIEW, this::dvpProposalCreated);
+        onCreated("Dvp", "Dvp", DVP_VIEW, this::dvpCreated);
+        onCreated("Dvp", "DvpAllocated", DVP_VIEW, this::dvpAllocatedCreated);
+        onCreated("Dvp", "DvpNotification", this::dvpNotificationCreated);
+
+        onArchived("Cash", "Cash", this::cashArchived);
+        onArchived("Bond", "Bond", this::bondArchived);
+        onArchived("Dvp", "Dvp", this::dvpArchived);
+        onArchived("Dvp", "DvpAllocated", this::dvpAllocatedArchived);
+    }
+
+    @Override
+    public int run() {
+
+        log.debug("Starting Trading Party processing for "+getParty());
+
+        createShards();
+
+        int exitCode = super.run();
+        if(exitCode != 0) return exitCode;
+
+        // Create my settlement helper, unless one was loaded from the active contract set or a checkpoint: settlement
+        // starts once it is seen on the transaction stream. Submission routes settlement to the shards it has given
+        // work, so it is done on the processing thread
+        if(settlementProcessorContractId != null) return 0;
+        runOnProcessingStage(() -> submitCommands(
+            "SettlementProcessor - " + getParty(),
             Collections.singletonList(
                 buildCreateCommand(
                     identityOf("Settlement", "SettlementProcessor"),
@@ -404,180 +1072,363 @@ public class TradingPartyProcessor extends EventProcessor {
                         .setRecordId(identityOf("Settlement", "SettlementProcessor"))
                         .addFields(RecordField.newBuilder()
                             .setLabel("party")
-                            .setValue(Value.newBuilder().setParty(party)))
-                )));
+                            .setValue(Value.newBuilder().setParty(getParty())))
+                ))));
+        return 0;
     }
 
     @Override
-    public int run() {
-
-        log.debug("Starting Trading Party processing for "+getParty());
+    CompletableFuture<SettlementCheckpoint> checkpointState() {
+        // Each shard serializes its state on its own thread, once it has applied every transaction processed so far.
+        // The checkpoint is assembled as the last shard finishes, so the processing thread does not wait
+        String contractId = settlementProcessorContractId;
+        List<CompletableFuture<byte[]>> saved = new ArrayList<>();
+        for(SettlementShard shard : shards) {
+            CompletableFuture<byte[]> bytes = new CompletableFuture<>();
+            shard.execute(() -> {
+                try {
+                    bytes.complete(serialize(shard.state));
+                } catch (IOException e) {
+                    bytes.completeExceptionally(e);
+                }
+            });
+            saved.add(bytes);
+        }
 
-        super.run();
-        return 0;
+        return CompletableFuture.allOf(saved.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            SettlementCheckpoint checkpoint = new SettlementCheckpoint(contractId);
+            saved.forEach(bytes -> checkpoint.shards.add(bytes.join()));
+            return checkpoint;
+        });
     }
 
     @Override
-    Stream<Command> processCreatedEvent(String workflowId, CreatedEvent event) {
+    void restoreCheckpointState(Serializable checkpointState) throws IOException {
+        if(!(checkpointState instanceof SettlementCheckpoint)) throw new IOException("not a settlement checkpoint");
+        SettlementCheckpoint checkpoint = (SettlementCheckpoint) checkpointState;
+        List<SettlementState> saved = new ArrayList<>();
+        for(byte[] bytes : checkpoint.shards) saved.add(deserialize(bytes));
+
+        // Settle with the SettlementProcessor seen before the checkpoint, which the replayed transactions will not show
+        settlementProcessorContractId = checkpoint.settlementProcessorContractId;
+
+        // Commands in flight when the checkpoint was taken either archived their contracts in the transactions
+        // replayed after it, or never will. Contracts are spread over the shards afresh, as the number of shards
+        // may have changed
+        for(SettlementState state : saved) {
+            state.releaseAll();
+            state.cash.values().forEach(q -> q.forEach(c -> updateShard(c.getSymbol(), c.getCid(), s -> s.addCash(c))));
+            state.bonds.values().forEach(q -> q.forEach(b -> updateShard(b.getSymbol(), b.getCid(), s -> s.addBond(b))));
+            state.acceptedDvps.values().forEach(q -> q.forEach(d -> updateShard(d.getCashLeg().getSymbol(), d.getCid(), s -> s.addAcceptedDvp(d))));
+            state.allocatedDvps.values().forEach(q -> q.forEach(d -> updateShard(d.getBondLeg().getSymbol(), d.getCid(), s -> s.addAllocatedDvp(d))));
+            state.getHeldDvps(false).forEach(d -> updateShard(d.getCashLeg().getSymbol(), d.getCid(), s -> s.addAcceptedDvp(d)));
+            state.getHeldDvps(true).forEach(d -> updateShard(d.getBondLeg().getSymbol(), d.getCid(), s -> s.addAllocatedDvp(d)));
+
+            // Dvps set aside after failing to settle are tried again, as whatever failed them may have been fixed
+            state.failedAcceptedDvps.forEach(d -> updateShard(d.getCashLeg().getSymbol(), d.getCid(), s -> s.addAcceptedDvp(d)));
+            state.failedAllocatedDvps.forEach(d -> updateShard(d.getBondLeg().getSymbol(), d.getCid(), s -> s.addAllocatedDvp(d)));
+        }
+    }
 
-        Stream<Command> cmdStream = Stream.empty();
+    private static byte[] serialize(SettlementState state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(state);
+        }
+        return bytes.toByteArray();
+    }
 
-        switch(identifierToString(event.getTemplateId())) {
+    private static SettlementState deserialize(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (SettlementState) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("not a settlement state: " + e.getMessage(), e);
+        }
+    }
 
-            case "Bond:BondTransferRequest":
-            case "Cash:CashTransferRequest":
+    /**
+     * Settle on this many shards, each with its own thread, with symbols spread over them by hash. With 0, the
+     * default, settlement runs on the processing thread
+     */
+    public void setSettlementShards(int shardThreads) {
+        if(shardThreads < 0) {
+            throw new IllegalArgumentException("the number of settlement shards must not be negative");
+        }
+        this.shardThreads = shardThreads;
+    }
 
-                log.debug("{} receives {} transfer request, accepting",
-                        getParty(),
-                        event.getTemplateId().getEntityName().substring(0, 4)
-                );
-                String newOwner = getRecordValue(event.getCreateArguments(), "newOwner").getParty();
+    /**
+     * Create the settlement shards, with the batching policy and selection strategy set so far. Called as the
+     * processor starts, before any state is restored
+     */
+    void createShards() {
+        shards = new SettlementShard[Math.max(1, shardThreads)];
+        for(int i = 0; i < shards.length; i++) {
+            shards[i] = new SettlementShard(i, shardThreads > 0);
+        }
+    }
 
-                // Only respond to transfer requests if we are the newOwner
-                if (newOwner.equals(getParty())) {
-                    cmdStream = Stream.of(
-                            buildExerciseCommand(
-                                    event.getTemplateId(), event.getContractId(),
-                                    "Accept", nullArgument("Accept")));
-                }
-                break;
+    /**
+     * Return the settlement state of each shard. The states are owned by the shard threads: only read them once the
+     * shards are idle
+     */
+    List<SettlementState> shardStates() {
+        return Arrays.stream(shards).map(shard -> shard.state).collect(Collectors.toList());
+    }
+
+    /**
+     * Wait until every shard has run the work handed to it, or the timeout expires
+     *
+     * @return true if the shards are idle
+     */
+    boolean awaitShards(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for(SettlementShard shard : shards) {
+            if(shard.worker != null && !shard.worker.awaitIdle(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private SettlementShard shardFor(String symbol) {
+        return shards[Math.floorMod(symbol.hashCode(), shards.length)];
+    }
 
-            case "Settlement:SettlementProcessor":
+    /**
+     * Apply a change to the state of the shard holding a symbol, and remember that the shard holds the contract.
+     * Runs on the processing thread
+     */
+    private void updateShard(String symbol, String cid, Consumer<SettlementState> change) {
+        SettlementShard shard = shardFor(symbol);
+        if(cid != null) contractShards.put(cid, shard);
+        shard.changed = true;
+        shard.execute(() -> change.accept(shard.state));
+    }
 
-                logProgress("settlement Processor for %s created");
-                // Save my Helper contract for use in settlement
-                settlementProcessorContractId = event.getContractId();
-                break;
+    private void archive(String cid) {
+        SettlementShard shard = contractShards.remove(cid);
+        if(shard != null) shard.execute(() -> shard.state.archive(cid));
+    }
 
-            // Save Bonds and Cash as they are received, ignoring locked (allocated) cash
-            case "Cash:Cash":
+    private synchronized ScheduledExecutorService batchTimer() {
+        if(batchTimer == null) {
+            batchTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, getParty() + " batch timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return batchTimer;
+    }
 
-                log.debug("{} receives cash id={} {}", getParty(), event.getContractId(), cashDetails(event));
-                Asset thisCash = Asset.cashFrom(event);
-                // Only save unlocked cash: isUnlocked c = c.owner == c.locker
-                if (thisCash.getOwner().equals(getParty()) && getRecordValue(event.getCreateArguments(), "locker").getParty().equals(getParty())) {
-                    logProgress("%s " + String.format("receives cash %s", thisCash));
-                    state.cash.computeIfAbsent(thisCash.symbol, k -> new ConcurrentLinkedQueue<Asset>()).add(Asset.cashFrom(event));
-                }
-                break;
+    /**
+     * Set the policy deciding when, and how many, accepted and allocated dvps are settled together
+     */
+    public void setBatchingPolicy(BatchingPolicy batchingPolicy) {
+        this.batchingPolicy = batchingPolicy;
+    }
 
-            case "Bond:Bond":
+    /**
+     * Set the strategy choosing which accepted and allocated dvps to settle, given the cash and bonds held
+     */
+    public void setSelectionStrategy(SelectionStrategy selectionStrategy) {
+        this.selectionStrategy = selectionStrategy;
+    }
 
-                log.debug("{} receives bond id= {} {}", getParty(), event.getContractId(), bondDetails(event));
-                Asset thisBond = Asset.bondFrom(event);
-                if (thisBond.getOwner().equals(getParty())) {
-                    logProgress("%s " + String.format("receives bonds of %s", thisBond));
-                    state.bonds.computeIfAbsent(thisBond.getSymbol(), k -> new ConcurrentLinkedQueue<Asset>()).add(thisBond);
-                }
-                break;
+    @Override
+    void writeStateMetrics(MetricsEndpoint.Writer out) {
+        // Each shard samples its own state, on its own thread, into its own writer
+        List<CompletableFuture<MetricsEndpoint.Writer>> sampled = new ArrayList<>();
+        for(SettlementShard shard : shards) {
+            MetricsEndpoint.Writer shardOut = out.fork();
+            CompletableFuture<MetricsEndpoint.Writer> samples = new CompletableFuture<>();
+            shard.execute(() -> {
+                shard.writeMetrics(shardOut);
+                samples.complete(shardOut);
+            });
+            sampled.add(samples);
+        }
 
-            case "Dvp:DvpProposal":
+        try {
+            for(CompletableFuture<MetricsEndpoint.Writer> samples : sampled) {
+                out.merge(samples.get(SHARD_METRICS_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            }
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            log.warn("{} settlement metrics unavailable: {}", getParty(), e.toString());
+        }
 
-                log.debug("{} receives proposal {}", getParty(), dvpDetails(event));
+        out.declare("settlement_shard_queue_depth", "gauge", "Work waiting for each settlement shard thread");
+        for(int i = 0; i < shards.length; i++) {
+            out.sample("settlement_shard_queue_depth", shards[i].depth(), "shard", Integer.toString(i));
+        }
+    }
 
-                // If I am the seller, accept proposals to sell
-                cmdStream = Stream.empty();
-                Dvp dvp = new Dvp(event);
+    private static void writeDepths(MetricsEndpoint.Writer out, String queue, Map<String, ? extends Queue<?>> queues) {
+        queues.forEach((symbol, q) -> out.sample("settlement_queue_depth", q.size(), "queue", queue, "symbol", symbol));
+    }
 
-                if (dvp.getSeller().equals(getParty())) {
-                    logProgress("%s accepts proposal to trade: " + dvp.toString());
-                    cmdStream = Stream.of(
-                            buildExerciseCommand(
-                                    event.getTemplateId(), event.getContractId(),
-                                    "Accept", nullArgument("Accept")));
-                }
-                break;
+    @Override
+    List<ValueOuterClass.Identifier> activeContractTemplates() {
+        // Every template with a create handler, as subscribed to: the contracts that rebuild the settlement state, and
+        // proposals and transfer requests still waiting to be accepted
+        return createdTemplates();
+    }
 
-            case "Dvp:Dvp":
+    private Stream<Command> transferRequestCreated(String workflowId, CreatedEvent event, String newOwner) {
 
-                log.debug("{} receives accepted proposal {}", getParty(), dvpDetails(event));
+        log.debug("{} receives {} transfer request, accepting",
+                getParty(),
+                event.getTemplateId().getEntityName().substring(0, 4)
+        );
 
-                // If I am the buyer collect and allocate Dvp's as they come in
-                dvp = new Dvp(event);
+        // Only respond to transfer requests if we are the newOwner
+        if (newOwner.equals(getParty())) {
+            return Stream.of(
+                    buildExerciseCommand(
+                            event.getTemplateId(), event.getContractId(),
+                            "Accept", nullArgument("Accept")));
+        }
+        return Stream.empty();
+    }
 
-                if (dvp.getBuyer().equals(getParty())) {
-                    state.acceptedDvps
-                            .computeIfAbsent(dvp.getCashLeg().getSymbol(), k -> new ConcurrentLinkedQueue<Dvp>())
-                            .add(new Dvp(event));
-                }
-                break;
+    private Stream<Command> settlementProcessorCreated(String workflowId, CreatedEvent event) {
 
-            case "Dvp:DvpAllocated":
+        // SettlementProcessors are never archived: keep the first seen, so replaying the ledger leaves the ID unchanged
+        if(settlementProcessorContractId != null) {
+            log.debug("{} already has settlement processor {}, ignoring {}", getParty(), settlementProcessorContractId, event.getContractId());
+            return Stream.empty();
+        }
 
-                log.debug("{} receives allocated trade {}", getParty(), dvpDetails(event));
+        logProgress("settlement Processor for %s created");
+        // Save my Helper contract for use in settlement, and settle anything held while waiting for it
+        settlementProcessorContractId = event.getContractId();
+        for(SettlementShard shard : shards) shard.changed = true;
+        return Stream.empty();
+    }
 
-                // If I am the seller, collect and settle allocated Dvp's as they come in
-                dvp = new Dvp(event);
-                if (dvp.getSeller().equals(getParty())) {
-                    state.allocatedDvps
-                            .computeIfAbsent(dvp.getBondLeg().getSymbol(), k -> new ConcurrentLinkedQueue<Dvp>())
-                            .add(new Dvp(event));
-                }
-                break;
+    // Save Bonds and Cash as they are received, ignoring locked (allocated) cash
 
-            case "Dvp:DvpNotification":
+    private Stream<Command> cashCreated(String workflowId, CreatedEvent event, Asset thisCash) {
 
-                log.debug("{} receives settled trade {}", getParty(), dvpDetails(event));
-                dvp = new Dvp(event);
-                logProgress("%s " + String.format("settles trade %s", dvp.getDvpId()));
-                break;
+        if(log.isDebugEnabled()) {
+            log.debug("{} receives cash id={} {}", getParty(), event.getContractId(), cashDetails(event));
+        }
+        // Only save unlocked cash: isUnlocked c = c.owner == c.locker
+        if (thisCash.getOwner().equals(getParty()) && CASH_LOCKER.get(event.getCreateArguments()).getParty().equals(getParty())) {
+            logProgress("%s " + String.format("receives cash %s", thisCash));
+            updateShard(thisCash.getSymbol(), thisCash.getCid(), s -> s.addCash(thisCash));
+        }
+        return Stream.empty();
+    }
+
+    private Stream<Command> bondCreated(String workflowId, CreatedEvent event, Asset thisBond) {
 
-            default:
-                break;
+        if(log.isDebugEnabled()) {
+            log.debug("{} receives bond id= {} {}", getParty(), event.getContractId(), bondDetails(event));
         }
-        return cmdStream;
+        if (thisBond.getOwner().equals(getParty())) {
+            logProgress("%s " + String.format("receives bonds of %s", thisBond));
+            updateShard(thisBond.getSymbol(), thisBond.getCid(), s -> s.addBond(thisBond));
+        }
+        return Stream.empty();
     }
 
-    @Override
-    Stream<Command> processArchivedEvent(String workflowId, ArchivedEvent event) {
-        log.debug("{} receives an archive event templateId={}, contractId={}",
-            getParty(),event.getTemplateId(),event.getContractId()
-        );
+    private Stream<Command> dvpProposalCreated(String workflowId, CreatedEvent event, Dvp dvp) {
 
-        switch(identifierToString(event.getTemplateId())) {
-            case "Cash:Cash":
-                log.debug("{}: cash {} archived", getParty(), event.getContractId());
-                state.cash.forEach((s, q) -> q.removeIf(a -> a.cid == event.getContractId()));
-                break;
+        if(log.isDebugEnabled()) {
+            log.debug("{} receives proposal {}", getParty(), dvpDetails(event));
+        }
 
-            case "Bond:Bond":
-                log.debug("{}: bond {} archived", getParty(), event.getContractId());
-                state.bonds.forEach((s, q) -> q.removeIf(a -> a.cid == event.getContractId()));
-                break;
+        // If I am the seller, accept proposals to sell
+        if (dvp.getSeller().equals(getParty())) {
+            logProgress("%s accepts proposal to trade: " + dvp.toString());
+            return Stream.of(
+                    buildExerciseCommand(
+                            event.getTemplateId(), event.getContractId(),
+                            "Accept", nullArgument("Accept")));
+        }
+        return Stream.empty();
+    }
 
-            case "Dvp:Dvp":
-                log.debug("{}: accepted Dvp {} archived", getParty(), event.getContractId());
-                state.acceptedDvps.forEach((s, q) -> q.removeIf(a -> a.cid == event.getContractId()));
-                break;
+    private Stream<Command> dvpCreated(String workflowId, CreatedEvent event, Dvp terms) {
 
-            case "Dvp:DvpAllocated":
-                log.debug("{}: allocated Dvp {} archived", getParty(), event.getContractId());
-                state.allocatedDvps.forEach((s, q) -> q.removeIf(a -> a.cid == event.getContractId()));
-                break;
+        if(log.isDebugEnabled()) {
+            log.debug("{} receives accepted proposal {}", getParty(), dvpDetails(event));
         }
 
+        // If I am the buyer collect and allocate Dvp's as they come in
+        if (terms.getBuyer().equals(getParty())) {
+            Dvp dvp = new Dvp(terms);
+            updateShard(dvp.getCashLeg().getSymbol(), dvp.getCid(), s -> s.addAcceptedDvp(dvp));
+        }
         return Stream.empty();
     }
 
-    @Override
-    void submitCommands(String workFlowId, List<Command> commands) {
+    private Stream<Command> dvpAllocatedCreated(String workflowId, CreatedEvent event, Dvp terms) {
 
-        // log the cash and bond balances adter every transaction has processed
+        if(log.isDebugEnabled()) {
+            log.debug("{} receives allocated trade {}", getParty(), dvpDetails(event));
+        }
 
-        logProgress("%s "+
-            String.format(
-                "now has balances cash=%s, bonds=%s",
-                String.join(", ", state.cash.keySet().stream()
-                    .map(k -> state.getCashTotal(k).toString())
-                    .collect(Collectors.toList())),
-                String.join(", ", state.bonds.keySet().stream()
-                    .map(k -> state.getBondTotal(k).toString())
-                    .collect(Collectors.toList()))
-            ));
-        // After processing a transaction result, run settlement for any accepted or allocated DvPs
-        commands.addAll(runSettlement().collect(Collectors.toList()));
+        // If I am the seller, collect and settle allocated Dvp's as they come in
+        if (terms.getSeller().equals(getParty())) {
+            Dvp dvp = new Dvp(terms);
+            updateShard(dvp.getBondLeg().getSymbol(), dvp.getCid(), s -> s.addAllocatedDvp(dvp));
+        }
+        return Stream.empty();
+    }
 
-        super.submitCommands(workFlowId, commands);
+    private Stream<Command> dvpNotificationCreated(String workflowId, CreatedEvent event) {
+
+        if(log.isDebugEnabled()) {
+            log.debug("{} receives settled trade {}", getParty(), dvpDetails(event));
+        }
+        logProgress("%s " + String.format("settles trade %s", dvpTradeId(event)));
+        return Stream.empty();
+    }
+
+    private Stream<Command> cashArchived(String workflowId, ArchivedEvent event) {
+        log.debug("{}: cash {} archived", getParty(), event.getContractId());
+        archive(event.getContractId());
+        return Stream.empty();
+    }
+
+    private Stream<Command> bondArchived(String workflowId, ArchivedEvent event) {
+        log.debug("{}: bond {} archived", getParty(), event.getContractId());
+        archive(event.getContractId());
+        return Stream.empty();
+    }
+
+    private Stream<Command> dvpArchived(String workflowId, ArchivedEvent event) {
+        log.debug("{}: accepted Dvp {} archived", getParty(), event.getContractId());
+        archive(event.getContractId());
+        return Stream.empty();
+    }
+
+    private Stream<Command> dvpAllocatedArchived(String workflowId, ArchivedEvent event) {
+        log.debug("{}: allocated Dvp {} archived", getParty(), event.getContractId());
+        archive(event.getContractId());
+        return Stream.empty();
+    }
+
+    @Override
+    String submitCommands(String workFlowId, List<Command> commands) {
+        String commandId = super.submitCommands(workFlowId, commands);
+
+        // After processing a transaction, run settlement on each shard it may have given work, or whose held dvps are
+        // due at the ledger time it moved to. Settlement needs my SettlementProcessor, which may not have been seen yet
+        // when bootstrapping
+        if(settlementProcessorContractId != null) {
+            long ledgerTime = ledgerTimeMicros();
+            for(SettlementShard shard : shards) {
+                if(shard.changed || ledgerTime >= shard.nextSettleTime) {
+                    shard.changed = false;
+                    shard.execute(shard::settle);
+                }
+            }
+        }
+        return commandId;
     }
 
 
@@ -602,25 +1453,36 @@ public class TradingPartyProcessor extends EventProcessor {
             );
     }
 
-    private Stream<Command> runSettlement() {
-        Stream<Command> allocateCommands =  state.activeCurrencies().stream()
-            .map(state::allocateCash)
-            .filter(MatchResult::hasSelections)
-            .map((MatchResult matchResult) -> {
-                logProgress(settlementLogMessageFor(matchResult, "allocates"));
-                return settlementCommandFor(
-                        matchResult,"AllocateCash","cashCids", "dvpCids");
-            });
-        Stream<Command> settleCommands =  state.activeIsins().stream()
-            .map(state::allocateBonds)
-            .filter(MatchResult::hasSelections)
-            .map((MatchResult matchResult) -> {
-                logProgress(settlementLogMessageFor(matchResult, "settles"));
-                return settlementCommandFor(
-                        matchResult,"SettleMany","bondCids", "dvpAllocatedCids");
-            });
+    @Override
+    void processCompletionSuccess(CompletionOuterClass.Completion completion, CompletionRecord completionRecord) {
+        SettlementShard shard = commandShards.remove(completion.getCommandId());
+        if(shard == null) return;
+
+        long latency = completionRecord == null ? 0L : completionRecord.getRoundTripNanos();
+        shard.execute(() -> {
+            shard.batchingPolicy.recordLatency(latency);
+            shard.state.commit(completion.getCommandId());
+        });
+    }
 
-        return Stream.concat(allocateCommands, settleCommands);
+    @Override
+    void processCompletionError(CompletionOuterClass.Completion completion, CompletionRecord completionRecord) {
+        SettlementShard shard = commandShards.remove(completion.getCommandId());
+        if(shard == null) return;
+
+        // The contracts the command would have consumed are still live: put them back and settle again, rather than
+        // wait for the next transaction. A command that lost out on contention is retried as it was. Any other failure
+        // may recur, so its dvps are split into smaller batches until the one that fails it is found
+        boolean contention = completion.getStatus().getCode() == io.grpc.Status.Code.ABORTED.value();
+        long latency = completionRecord == null ? 0L : completionRecord.getRoundTripNanos();
+        shard.execute(() -> {
+            shard.batchingPolicy.recordLatency(latency);
+            String commandId = completion.getCommandId();
+            if(contention ? shard.state.release(commandId) : shard.state.fail(commandId)) {
+                log.info("{} released contracts reserved for failed command {}", getParty(), commandId);
+                shard.settle();
+            }
+        });
     }
 
 
@@ -630,48 +1492,48 @@ public class TradingPartyProcessor extends EventProcessor {
         return b;
     }
 
-     private static String cashDetails(CreatedEvent cashEvent) {
+    private static Record dvpTerms(CreatedEvent dvpEvent) {
+        return DVP_TERMS.get(dvpEvent.getCreateArguments()).getRecord();
+    }
+
+    private static String cashDetails(CreatedEvent cashEvent) {
         assert cashEvent.getTemplateId().getEntityName().equals("Cash.Cash");
         Record cash = cashEvent.getCreateArguments();
         return String.format("%s %s owned by %s, issued by %s, locked=%s",
-            getRecordValue(cash,"amount").getNumeric(),
-            getRecordValue(cash,"currency").getText(),
-            getRecordValue(cash,"owner").getParty(),
-            getRecordValue(cash,"issuer").getParty(),
-            getRecordValue(cash,"locker").getParty()
+            CASH_AMOUNT.get(cash).getNumeric(),
+            CASH_CURRENCY.get(cash).getText(),
+            CASH_OWNER.get(cash).getParty(),
+            CASH_ISSUER.get(cash).getParty(),
+            CASH_LOCKER.get(cash).getParty()
         );
     }
 
     private static String bondDetails(CreatedEvent bondEvent) {
         assert bondEvent.getTemplateId().getEntityName().equals("Bond.Bond");
-        Record cash = bondEvent.getCreateArguments();
+        Record bond = bondEvent.getCreateArguments();
         return String.format("%s %s, owned by %s, issued by %s",
-            getRecordValue(cash,"amount").getNumeric(),
-            getRecordValue(cash,"isin").getText(),
-            getRecordValue(cash,"owner").getParty(),
-            getRecordValue(cash,"issuer").getParty()
+            BOND_AMOUNT.get(bond).getNumeric(),
+            BOND_ISIN.get(bond).getText(),
+            BOND_OWNER.get(bond).getParty(),
+            BOND_ISSUER.get(bond).getParty()
         );
     }
 
     private static String dvpDetails(CreatedEvent dvpEvent) {
-        Record dvpTerms = getRecordValue(dvpEvent.getCreateArguments(),"c").getRecord();
+        Record dvpTerms = dvpTerms(dvpEvent);
         return String.format("%s buys %s %s from %s for %s%s, dvpId=%s, settling at %s",
-            getRecordValue(dvpTerms,"buyer").getParty(),
-            getRecordValue(dvpTerms, "bondAmount").getNumeric(),
-            getRecordValue(dvpTerms,"bondIsin").getText(),
-            getRecordValue(dvpTerms,"seller").getParty(),
-            getRecordValue(dvpTerms,"cashAmount").getNumeric(),
-            getRecordValue(dvpTerms,"cashCurrency").getText(),
-            getRecordValue(dvpTerms,"dvpId").getText(),
-            new Timestamp(getRecordValue(dvpTerms,"settleTime").getTimestamp()/1000).toInstant()
+            TERMS_BUYER.get(dvpTerms).getParty(),
+            TERMS_BOND_AMOUNT.get(dvpTerms).getNumeric(),
+            TERMS_BOND_ISIN.get(dvpTerms).getText(),
+            TERMS_SELLER.get(dvpTerms).getParty(),
+            TERMS_CASH_AMOUNT.get(dvpTerms).getNumeric(),
+            TERMS_CASH_CURRENCY.get(dvpTerms).getText(),
+            TERMS_DVP_ID.get(dvpTerms).getText(),
+            new Timestamp(TERMS_SETTLE_TIME.get(dvpTerms).getTimestamp()/1000).toInstant()
         );
     }
 
     private static String dvpTradeId(CreatedEvent dvpEvent) {
-        Record dvpTerms = getRecordValue(dvpEvent.getCreateArguments(),"c").getRecord();
-        return getRecordValue(
-            (getRecordValue(dvpEvent.getCreateArguments(), "c").getRecord()),
-            "dvpId"
-        ).getText();
+        return TERMS_DVP_ID.get(dvpTerms(dvpEvent)).getText();
     }
 }
@@ -0,0 +1,101 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/*
+ * A WorkerStage owns a single thread that consumes items, in order, from a queue that any number of threads may
+ * enqueue to.
+ *
+ * An item that throws stops the stage: nothing more is consumed, and the failure is handed to the failure handler.
+ */
+final class WorkerStage<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(WorkerStage.class);
+
+    private final String name;
+    private final LinkedBlockingQueue<T> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger outstanding = new AtomicInteger();    // enqueued and not yet fully consumed
+    private final Consumer<T> consumer;
+    private final Consumer<Throwable> onFailure;
+    private final Thread thread;
+
+    private volatile boolean failed = false;
+
+    WorkerStage(String name, Consumer<T> consumer, Consumer<Throwable> onFailure) {
+        this.name = name;
+        this.consumer = consumer;
+        this.onFailure = onFailure;
+        this.thread = new Thread(this::loop, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void enqueue(T item) {
+        outstanding.incrementAndGet();
+        queue.add(item);
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Wait until every enqueued item has been consumed, or the timeout expires
+     *
+     * @return true if the stage is idle, false if it timed out or has failed
+     */
+    boolean awaitIdle(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(outstanding.get() > 0) {
+            if(failed || System.nanoTime() > deadline) return false;
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void loop() {
+        while(true) {
+            T item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                consumer.accept(item);
+            } catch (Throwable t) {
+                failed = true;
+                log.error("{} failed to process work, and stops", name, t);
+                try {
+                    onFailure.accept(t);
+                } catch (Throwable e) {
+                    log.error("{} failed to report its failure", name, e);
+                }
+                return;
+            } finally {
+                outstanding.decrementAndGet();
+            }
+        }
+    }
+}
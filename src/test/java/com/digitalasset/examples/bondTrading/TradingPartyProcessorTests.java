@@ -12,12 +12,19 @@ import org.junit.jupiter.api.Test;
 import org.junit.platform.runner.JUnitPlatform;
 import org.junit.runner.RunWith;
 
+import com.digitalasset.examples.bondTrading.processor.Amount;
+import com.digitalasset.examples.bondTrading.processor.SelectionStrategy;
 import com.digitalasset.examples.bondTrading.processor.TradingPartyProcessor.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(JUnitPlatform.class)
 @DisplayName("A TradingPartyProcessor")
@@ -70,7 +77,7 @@ public class TradingPartyProcessorTests {
                     new Asset(10000, BondTradingMain.CURRENCY),
                     new Asset(10000, ISIN)
                 );
-                state.acceptedDvps.put(BondTradingMain.CURRENCY, new ConcurrentLinkedQueue<Dvp>(Collections.singletonList(dvp)));
+                state.addAcceptedDvp(dvp);
             }
 
             @Test
@@ -108,7 +115,7 @@ public class TradingPartyProcessorTests {
             void createEmpty() {
                 state = new SettlementState();
                 asset = new Asset(10000, BondTradingMain.CURRENCY);
-                state.cash.computeIfAbsent(asset.getSymbol(), k -> new ConcurrentLinkedQueue<>()).add(asset);
+                state.addCash(asset);
             }
 
             @Test
@@ -154,11 +161,8 @@ public class TradingPartyProcessorTests {
                 @BeforeEach
                 void setup() {
                     state = new SettlementState();
-                    state.cash.computeIfAbsent(BondTradingMain.CURRENCY, k -> new ConcurrentLinkedQueue<>()).addAll(assets);
-                    state.acceptedDvps.put(
-                            BondTradingMain.CURRENCY,
-                        new ConcurrentLinkedQueue<Dvp>(
-                            Collections.singletonList(dvp)));
+                    assets.forEach(state::addCash);
+                    state.addAcceptedDvp(dvp);
                 }
 
                 @Test
@@ -199,11 +203,8 @@ public class TradingPartyProcessorTests {
                 @BeforeEach
                 void setup() {
                     state = new SettlementState();
-                    state.cash.computeIfAbsent(BondTradingMain.CURRENCY, k -> new ConcurrentLinkedQueue<>()).addAll(assets);
-                    state.acceptedDvps.put(
-                            BondTradingMain.CURRENCY,
-                        new ConcurrentLinkedQueue<Dvp>(
-                            Collections.singletonList(dvp)));
+                    assets.forEach(state::addCash);
+                    state.addAcceptedDvp(dvp);
                 }
 
                 @Test
@@ -246,11 +247,8 @@ public class TradingPartyProcessorTests {
                 @BeforeEach
                 void setup() {
                     state = new SettlementState();
-                    state.cash.computeIfAbsent(BondTradingMain.CURRENCY, k -> new ConcurrentLinkedQueue<>()).addAll(assets);
-                    state.acceptedDvps.put(
-                            BondTradingMain.CURRENCY,
-                        new ConcurrentLinkedQueue<Dvp>(
-                            Collections.singletonList(dvp)));
+                    assets.forEach(state::addCash);
+                    state.addAcceptedDvp(dvp);
                 }
 
                 @Test
@@ -291,11 +289,8 @@ public class TradingPartyProcessorTests {
                 @BeforeEach
                 void setup() {
                     state = new SettlementState();
-                    state.cash.computeIfAbsent(BondTradingMain.CURRENCY, k -> new ConcurrentLinkedQueue<>()).addAll(assets);
-                    state.acceptedDvps.put(
-                        BondTradingMain.CURRENCY,
-                        new ConcurrentLinkedQueue<Dvp>(
-                            Collections.singletonList(dvp)));
+                    assets.forEach(state::addCash);
+                    state.addAcceptedDvp(dvp);
                 }
 
                 @Test
@@ -319,6 +314,373 @@ public class TradingPartyProcessorTests {
             }
         }
 
+        @Nested
+        @DisplayName("and a large dvp is ahead of smaller ones")
+        class HeadOfLine {
+
+            List<Asset> assets = Arrays.asList(
+                new Asset(25000,BondTradingMain.CURRENCY));
+
+            List<Dvp> dvps = Arrays.asList(
+                new Dvp(new Asset(30000, BondTradingMain.CURRENCY), new Asset(100000, ISIN)),
+                new Dvp(new Asset(5000, BondTradingMain.CURRENCY), new Asset(100000, ISIN)),
+                new Dvp(new Asset(20000, BondTradingMain.CURRENCY), new Asset(100000, ISIN)),
+                new Dvp(new Asset(10000, BondTradingMain.CURRENCY), new Asset(100000, ISIN)),
+                new Dvp(new Asset(12000, BondTradingMain.CURRENCY), new Asset(100000, ISIN)));
+
+            @BeforeEach
+            void setup() {
+                state = new SettlementState();
+                assets.forEach(state::addCash);
+                dvps.forEach(state::addAcceptedDvp);
+            }
+
+            @Test
+            @DisplayName("then FIFO selection is blocked")
+            void fifoIsBlocked() {
+                state.setSelectionStrategy(SelectionStrategy.fifo());
+                MatchResult m = state.allocateCash(BondTradingMain.CURRENCY);
+                assertFalse(m.hasSelections());
+                assertTrue(state.acceptedDvps.get(BondTradingMain.CURRENCY).size() == 5);
+            }
+
+            @Test
+            @DisplayName("then count selection settles the most dvps")
+            void countSelectsMost() {
+                state.setSelectionStrategy(SelectionStrategy.maxCount(1, TimeUnit.SECONDS));
+                MatchResult m = state.allocateCash(BondTradingMain.CURRENCY);
+                assertEquals(Arrays.asList(dvps.get(1), dvps.get(3)), m.dvpList);
+                assertEquals(Arrays.asList(assets.get(0)), m.assetList);
+                assertTrue(state.acceptedDvps.get(BondTradingMain.CURRENCY).size() == 3);
+                assertTrue(state.acceptedDvps.get(BondTradingMain.CURRENCY).peek() == dvps.get(0));
+            }
+
+            @Test
+            @DisplayName("then value selection uses the most cash")
+            void valueSelectsLargest() {
+                state.setSelectionStrategy(SelectionStrategy.maxValue(1, TimeUnit.SECONDS));
+                MatchResult m = state.allocateCash(BondTradingMain.CURRENCY);
+                assertEquals(Arrays.asList(dvps.get(2), dvps.get(1)), m.dvpList);
+                assertTrue(state.acceptedDvps.get(BondTradingMain.CURRENCY).size() == 3);
+            }
+
+            @Test
+            @DisplayName("then dvps keep their place if the assets do not cover them")
+            void uncoveredKeepOrder() {
+                // Take the cash off its queue behind the running total's back, so the total overstates the cash held
+                state.cash.get(BondTradingMain.CURRENCY).poll();
+                state.setSelectionStrategy(SelectionStrategy.maxCount(1, TimeUnit.SECONDS));
+                MatchResult m = state.allocateCash(BondTradingMain.CURRENCY);
+                assertFalse(m.hasSelections());
+                assertEquals(dvps, new ArrayList<>(state.acceptedDvps.get(BondTradingMain.CURRENCY)));
+            }
+        }
+
+        @Nested
+        @DisplayName("and a settlement command completes")
+        class Reservations {
+
+            Asset cash = new Asset(25000, BondTradingMain.CURRENCY);
+            Dvp dvp = new Dvp(new Asset(20000, BondTradingMain.CURRENCY), new Asset(100000, ISIN));
+
+            @BeforeEach
+            void setup() {
+                state = new SettlementState();
+                state.addCash(cash);
+                state.addAcceptedDvp(dvp);
+                assertTrue(state.allocateCash(BondTradingMain.CURRENCY).hasSelections());
+                state.reserveSelections("command-1");
+            }
+
+            @Test
+            @DisplayName("with an error then its contracts are released")
+            void releasesOnError() {
+                assertTrue(state.release("command-1"));
+                assertTrue(state.cash.get(BondTradingMain.CURRENCY).peek() == cash);
+                assertTrue(state.acceptedDvps.get(BondTradingMain.CURRENCY).peek() == dvp);
+                assertTrue(state.allocateCash(BondTradingMain.CURRENCY).hasSelections());
+            }
+
+            @Test
+            @DisplayName("successfully then its contracts are not released")
+            void commitsOnSuccess() {
+                state.commit("command-1");
+                assertFalse(state.release("command-1"));
+                assertTrue(state.cash.get(BondTradingMain.CURRENCY).isEmpty());
+                assertTrue(state.acceptedDvps.get(BondTradingMain.CURRENCY).isEmpty());
+            }
+
+            @Test
+            @DisplayName("with an error then its contracts go back ahead of those added since")
+            void releasesToHead() {
+                Asset laterCash = new Asset(5000, BondTradingMain.CURRENCY);
+                Dvp laterDvp = new Dvp(new Asset(5000, BondTradingMain.CURRENCY), new Asset(100000, ISIN));
+                state.addCash(laterCash);
+                state.addAcceptedDvp(laterDvp);
+                assertTrue(state.release("command-1"));
+                assertEquals(Arrays.asList(cash, laterCash), new ArrayList<>(state.cash.get(BondTradingMain.CURRENCY)));
+                assertEquals(Arrays.asList(dvp, laterDvp), new ArrayList<>(state.acceptedDvps.get(BondTradingMain.CURRENCY)));
+            }
+        }
+
+        @Nested
+        @DisplayName("and a settlement command fails")
+        class Failures {
+
+            // One bad dvp among good ones: every command including it fails
+            List<Dvp> dvps = new ArrayList<>();
+            Dvp bad;
+            List<Dvp> settled = new ArrayList<>();
+
+            @BeforeEach
+            void setup() {
+                state = new SettlementState();
+                for(int i = 0; i < 4; i++) {
+                    Dvp dvp = new Dvp(new Asset(10000, BondTradingMain.CURRENCY), new Asset(100000, ISIN));
+                    dvps.add(dvp);
+                    state.addCash(new Asset(10000, BondTradingMain.CURRENCY));
+                    state.addAcceptedDvp(dvp);
+                }
+                bad = dvps.get(1);
+            }
+
+            // Allocate, and submit as the given command, returning the dvps selected
+            List<Dvp> submit(String commandId) {
+                List<Dvp> selected = state.allocateCash(BondTradingMain.CURRENCY).dvpList;
+                state.reserveSelections(commandId);
+                return selected;
+            }
+
+            // Settle until no dvps can be, failing every command that includes the bad dvp
+            void settleMixed() {
+                int command = 0;
+                List<Dvp> selected;
+                while(!(selected = submit("command-" + ++command)).isEmpty()) {
+                    if(selected.contains(bad)) {
+                        assertTrue(state.fail("command-" + command));
+                    } else {
+                        state.commit("command-" + command);
+                        settled.addAll(selected);
+                    }
+                }
+            }
+
+            @Test
+            @DisplayName("with several dvps then they go back to settle in batches of half its size")
+            void splitsBatch() {
+                assertEquals(dvps, submit("command-1"));
+                assertTrue(state.fail("command-1"));
+
+                assertEquals(dvps, new ArrayList<>(state.acceptedDvps.get(BondTradingMain.CURRENCY)));
+                dvps.forEach(d -> assertEquals(2, d.getSplitLimit()));
+                dvps.forEach(d -> assertEquals(0, d.getSettlementFailures()));
+                assertEquals(dvps.subList(0, 2), submit("command-2"));
+                assertEquals(dvps.subList(2, 4), submit("command-3"));
+            }
+
+            @Test
+            @DisplayName("with good and bad dvps then the good ones settle and only the bad one counts failures")
+            void isolatesBadDvp() {
+                settleMixed();
+
+                assertEquals(Arrays.asList(dvps.get(0), dvps.get(2), dvps.get(3)), settled);
+                dvps.stream().filter(d -> d != bad).forEach(d -> assertEquals(0, d.getSettlementFailures()));
+                assertEquals(SettlementState.MAX_SETTLE_FAILURES, bad.getSettlementFailures());
+            }
+
+            @Test
+            @DisplayName("with one dvp too often then the dvp is set aside")
+            void setsAside() {
+                settleMixed();
+
+                assertEquals(Arrays.asList(bad), new ArrayList<>(state.failedAcceptedDvps));
+                assertTrue(state.acceptedDvps.get(BondTradingMain.CURRENCY).isEmpty());
+                assertFalse(state.release("command-" + SettlementState.MAX_SETTLE_FAILURES));
+                assertEquals(1, state.cash.get(BondTradingMain.CURRENCY).size());
+            }
+        }
+
+        @Nested
+        @DisplayName("and a dvp settles in the future")
+        class SettleTime {
+
+            long[] now = {1_000_000L};
+            Dvp later = new Dvp(new Asset(20000, BondTradingMain.CURRENCY), new Asset(100000, ISIN), 61_000_000L);
+            Dvp sooner = new Dvp(new Asset(10000, BondTradingMain.CURRENCY), new Asset(100000, ISIN), 31_000_000L);
+
+            @BeforeEach
+            void setup() {
+                state = new SettlementState();
+                state.setClock(() -> now[0]);
+                state.addCash(new Asset(25000, BondTradingMain.CURRENCY));
+                state.addAcceptedDvp(later);
+                state.addAcceptedDvp(sooner);
+            }
+
+            @Test
+            @DisplayName("then it is held until its settle time")
+            void isHeld() {
+                assertEquals(31_000_000L, state.nextSettleTime());
+                assertFalse(state.allocateCash(BondTradingMain.CURRENCY).hasSelections());
+                assertEquals(0, state.releaseDueDvps());
+            }
+
+            @Test
+            @DisplayName("then it is released at its settle time")
+            void isReleased() {
+                now[0] = 31_000_000L;
+                assertEquals(1, state.releaseDueDvps());
+                assertEquals(Arrays.asList(sooner), state.allocateCash(BondTradingMain.CURRENCY).dvpList);
+                assertEquals(61_000_000L, state.nextSettleTime());
+
+                now[0] = 600_000_000L;
+                assertEquals(1, state.releaseDueDvps());
+                assertEquals(Long.MAX_VALUE, state.nextSettleTime());
+            }
+
+            @Test
+            @DisplayName("then with a static ledger clock it is held until ledger time reaches its settle time")
+            void followsStaticClock() {
+                // Settling an hour ago by the wall clock, but not yet by the ledger clock, which stays where it was set
+                long settleTime = (System.currentTimeMillis() - 3_600_000L) * 1000L;
+                Dvp due = new Dvp(new Asset(5000, BondTradingMain.CURRENCY), new Asset(100000, ISIN), settleTime);
+                now[0] = settleTime - 1_000_000L;
+                assertEquals(2, state.releaseDueDvps());
+                state.addAcceptedDvp(due);
+
+                assertEquals(settleTime, state.nextSettleTime());
+                assertEquals(0, state.releaseDueDvps());
+                assertEquals(0, state.releaseDueDvps());
+
+                now[0] = settleTime;
+                assertEquals(1, state.releaseDueDvps());
+                assertEquals(Long.MAX_VALUE, state.nextSettleTime());
+            }
+        }
+
+        @Nested
+        @DisplayName("and assets come and go")
+        class Totals {
+
+            Asset cash1 = new Asset("cash-1", 10000, BondTradingMain.CURRENCY);
+            Asset cash2 = new Asset("cash-2", 5000, BondTradingMain.CURRENCY);
+            Asset cash3 = new Asset("cash-3", 7000, BondTradingMain.CURRENCY);
+            Dvp dvp = new Dvp("dvp-1", new Asset(12000, BondTradingMain.CURRENCY), new Asset(100000, ISIN), 0L);
+
+            @BeforeEach
+            void setup() {
+                state = new SettlementState();
+                state.addCash(cash1);
+                state.addCash(cash2);
+                state.addCash(cash3);
+                state.addAcceptedDvp(dvp);
+            }
+
+            void assertCash(int expected) {
+                assertEquals(Amount.of(expected), state.getCashTotal(BondTradingMain.CURRENCY).getAmount());
+            }
+
+            // Allocate the dvp, taking the first two cash contracts, and submit it as command-1
+            void allocate() {
+                assertEquals(Arrays.asList(cash1, cash2), state.allocateCash(BondTradingMain.CURRENCY).assetList);
+                state.reserveSelections("command-1");
+            }
+
+            @Test
+            @DisplayName("then the total adds the assets inserted")
+            void insert() {
+                assertCash(22000);
+                state.addBond(new Asset("bond-1", 100000, ISIN));
+                state.addBond(new Asset("bond-2", 50000, ISIN));
+                assertEquals(Amount.of(150000), state.getBondTotal(ISIN).getAmount());
+                assertCash(22000);
+            }
+
+            @Test
+            @DisplayName("then the total drops by the assets allocated")
+            void allocates() {
+                allocate();
+                assertCash(7000);
+            }
+
+            @Test
+            @DisplayName("then selections not submitted go back into the total")
+            void unsubmitted() {
+                assertTrue(state.allocateCash(BondTradingMain.CURRENCY).hasSelections());
+                state.reserveSelections(null);
+                assertCash(22000);
+            }
+
+            @Test
+            @DisplayName("then a free asset archived leaves the total once")
+            void archivesFree() {
+                assertTrue(state.archive("cash-3"));
+                assertCash(15000);
+                assertFalse(state.archive("cash-3"));
+                assertCash(15000);
+            }
+
+            @Test
+            @DisplayName("then a reserved asset archived is not debited again")
+            void archivesReserved() {
+                allocate();
+                assertTrue(state.archive("cash-1"));
+                assertTrue(state.archive("cash-2"));
+                assertTrue(state.archive("dvp-1"));
+                assertCash(7000);
+
+                state.commit("command-1");
+                assertCash(7000);
+                assertFalse(state.archive("cash-1"));
+                assertCash(7000);
+            }
+
+            @Test
+            @DisplayName("then released assets go back into the total")
+            void releases() {
+                allocate();
+                assertTrue(state.release("command-1"));
+                assertCash(22000);
+            }
+
+            @Test
+            @DisplayName("then released assets archived while reserved stay out of the total")
+            void releasesArchived() {
+                allocate();
+                assertTrue(state.archive("cash-1"));
+                assertTrue(state.release("command-1"));
+                assertCash(12000);
+                assertEquals(Arrays.asList(cash2, cash3), new ArrayList<>(state.cash.get(BondTradingMain.CURRENCY)));
+            }
+
+            @Test
+            @DisplayName("then failed assets go back into the total")
+            void fails() {
+                allocate();
+                assertTrue(state.fail("command-1"));
+                assertCash(22000);
+            }
+
+            @Test
+            @DisplayName("then assets reserved when a checkpoint was taken go back into the total on restore")
+            void restores() throws IOException, ClassNotFoundException {
+                allocate();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(state);
+                }
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                    state = (SettlementState) in.readObject();
+                }
+                assertCash(7000);
+
+                state.releaseAll();
+                assertCash(22000);
+                assertTrue(state.archive("cash-1"));
+                assertCash(12000);
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,162 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import java.math.BigDecimal;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("An Amount")
+public class AmountTests {
+
+    // Past the largest whole amount held in fixed point, about 922 million
+    private static final long LARGE = 1_000_000_000L;
+
+    @Nested
+    @DisplayName("when parsed")
+    class Parsing {
+
+        @Test
+        @DisplayName("reads whole, fractional and signed numerics")
+        void readsNumerics() {
+            assertEquals(0, new BigDecimal("25000").compareTo(Amount.parse("25000").toBigDecimal()));
+            assertEquals(0, new BigDecimal("0.0000000001").compareTo(Amount.parse("0.0000000001").toBigDecimal()));
+            assertEquals(0, new BigDecimal("-12.5").compareTo(Amount.parse("-12.5").toBigDecimal()));
+            assertEquals(Amount.parse("12.5"), Amount.parse("+12.50"));
+            assertEquals("12.5", Amount.parse("12.5000000000").toString());
+        }
+
+        @Test
+        @DisplayName("ignores zeros past 10 decimal places")
+        void ignoresTrailingZeros() {
+            assertEquals(Amount.parse("1.25"), Amount.parse("1.250000000000000"));
+        }
+
+        @Test
+        @DisplayName("keeps digits past 10 decimal places exactly")
+        void keepsExtraDecimals() {
+            Amount amount = Amount.parse("1.123456789012");
+            assertEquals(new BigDecimal("1.123456789012"), amount.toBigDecimal());
+            assertEquals("1.123456789012", amount.toString());
+            assertTrue(amount.compareTo(Amount.parse("1.1234567890")) > 0);
+        }
+
+        @Test
+        @DisplayName("falls back to BigDecimal for amounts too large for fixed point")
+        void fallsBackWhenLarge() {
+            Amount amount = Amount.parse("1000000000.5");
+            assertEquals(new BigDecimal("1000000000.5"), amount.toBigDecimal());
+            assertEquals(amount, Amount.of(new BigDecimal("1000000000.50")));
+            assertEquals("1000000000.5", amount.toString());
+            assertEquals(new BigDecimal("123456789012345678901234567890"), Amount.parse("123456789012345678901234567890").toBigDecimal());
+        }
+
+        @Test
+        @DisplayName("reads exponents through BigDecimal")
+        void readsExponents() {
+            assertEquals(Amount.of(1500), Amount.parse("1.5E3"));
+        }
+
+        @Test
+        @DisplayName("rejects text that is not a number")
+        void rejectsText() {
+            assertThrows(NumberFormatException.class, () -> Amount.parse(""));
+            assertThrows(NumberFormatException.class, () -> Amount.parse("-"));
+            assertThrows(NumberFormatException.class, () -> Amount.parse("12a"));
+            assertThrows(NumberFormatException.class, () -> Amount.parse("1.2.3"));
+        }
+    }
+
+    @Nested
+    @DisplayName("when added")
+    class Adding {
+
+        @Test
+        @DisplayName("falls back to BigDecimal on overflow")
+        void fallsBackOnOverflow() {
+            Amount half = Amount.of(900_000_000L);
+            Amount sum = half.add(half);
+            assertEquals(0, new BigDecimal("1800000000").compareTo(sum.toBigDecimal()));
+            assertEquals(Amount.parse("1800000000"), sum);
+        }
+
+        @Test
+        @DisplayName("compares and hashes fixed point and BigDecimal amounts alike")
+        void mixedEquality() {
+            Amount fixed = Amount.parse("5");
+            Amount big = Amount.of(LARGE).add(Amount.of(5)).add(Amount.of(-LARGE));
+            assertEquals(fixed, big);
+            assertEquals(fixed.hashCode(), big.hashCode());
+            assertEquals(0, fixed.compareTo(big));
+            assertEquals(1, Amount.of(LARGE).signum());
+        }
+    }
+
+    @Nested
+    @DisplayName("in a Total")
+    class Totals {
+
+        private Amount.Total total(Amount... amounts) {
+            Amount.Total total = new Amount.Total();
+            for(Amount amount : amounts) total.add(amount);
+            return total;
+        }
+
+        @Test
+        @DisplayName("covers fixed point amounts")
+        void coversFixed() {
+            Amount.Total total = total(Amount.of(10), Amount.parse("0.5"));
+            assertTrue(total.covers(Amount.parse("10.5")));
+            assertFalse(total.covers(Amount.parse("10.5000000001")));
+            assertTrue(total.covers(total(Amount.of(3)), Amount.parse("7.5")));
+            assertFalse(total.covers(total(Amount.of(3)), Amount.parse("7.6")));
+        }
+
+        @Test
+        @DisplayName("covers a mix of fixed point and BigDecimal amounts")
+        void coversMixed() {
+            Amount large = Amount.of(LARGE);
+            Amount.Total total = total(large, Amount.of(10));
+
+            assertTrue(total.covers(large));
+            assertTrue(total.covers(Amount.of(10)));
+            assertFalse(total.covers(Amount.of(LARGE + 11)));
+            assertTrue(total.covers(total(Amount.of(5)), large));
+            assertFalse(total.covers(total(Amount.of(11)), large));
+            assertTrue(total.covers(total(large), Amount.of(10)));
+            assertFalse(total.covers(total(large), Amount.parse("10.0000000001")));
+
+            // A fixed point total against totals and amounts too large for fixed point
+            Amount.Total small = total(Amount.of(10));
+            assertFalse(small.covers(large));
+            assertFalse(small.covers(total(large)));
+            assertTrue(total(large, large).covers(total(large), large));
+        }
+
+        @Test
+        @DisplayName("covers amounts with more than 10 decimal places")
+        void coversExtraDecimals() {
+            Amount.Total total = total(Amount.parse("1.00000000005"), Amount.parse("1"));
+            assertTrue(total.covers(Amount.parse("2.00000000005")));
+            assertFalse(total.covers(Amount.parse("2.00000000006")));
+        }
+
+        @Test
+        @DisplayName("returns to fixed point when a BigDecimal total shrinks")
+        void subtractsBack() {
+            Amount.Total total = total(Amount.of(LARGE), Amount.of(7));
+            total.subtract(Amount.of(LARGE));
+            assertEquals(Amount.of(7), total.toAmount());
+            assertTrue(total.covers(Amount.of(7)));
+            assertFalse(total.covers(Amount.of(8)));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("An ArrivalSchedule")
+public class ArrivalScheduleTests {
+
+    @Test
+    @DisplayName("spaces constant arrivals evenly, without drift")
+    void constantIsEven() {
+        ArrivalSchedule schedule = ArrivalSchedule.constant(3.0);   // 333333333.3ns apart
+        assertEquals(0L, schedule.nextNanos());
+        long last = 0L;
+        for(int i = 1; i < 3000; i++) last = schedule.nextNanos();
+        assertEquals(2999 * 1_000_000_000L / 3, last, 1L);
+    }
+
+    @Test
+    @DisplayName("has the mean rate for poisson arrivals, with varying gaps")
+    void poissonHasRate() {
+        ArrivalSchedule schedule = ArrivalSchedule.poisson(1000.0, new Random(42L));
+        int count = 100000;
+        long previous = schedule.nextNanos();
+        long shortGaps = 0;
+        long longGaps = 0;
+        for(int i = 1; i < count; i++) {
+            long next = schedule.nextNanos();
+            assertTrue(next >= previous);
+            if(next - previous < 500_000L) shortGaps++;
+            if(next - previous > 2_000_000L) longGaps++;
+            previous = next;
+        }
+
+        // count arrivals take count / rate seconds on average
+        assertEquals(100.0, previous / 1e9, 1.5);
+        // Exponential gaps: about 1 - e^-0.5 of them under half the mean, e^-2 over twice the mean
+        assertEquals(0.393, (double) shortGaps / count, 0.01);
+        assertEquals(0.135, (double) longGaps / count, 0.01);
+    }
+
+    @Test
+    @DisplayName("staggers constant shares so together they arrive evenly")
+    void constantSharesStagger() {
+        ArrivalSchedule schedule = ArrivalSchedule.constant(1000.0);
+        int parts = 4;
+        List<Long> merged = new ArrayList<>();
+        for(int k = 0; k < parts; k++) {
+            ArrivalSchedule share = schedule.share(k, parts);
+            for(int i = 0; i < 3; i++) merged.add(share.nextNanos());
+        }
+        Collections.sort(merged);
+        for(int i = 0; i < merged.size(); i++) assertEquals(i * 1_000_000L, merged.get(i).longValue());
+    }
+
+    @Test
+    @DisplayName("gives poisson shares an equal share of the rate, each with its own gaps")
+    void poissonSharesSplitRate() {
+        ArrivalSchedule schedule = ArrivalSchedule.poisson(1000.0, new Random(7L));
+        ArrivalSchedule first = schedule.share(0, 4);
+        ArrivalSchedule second = schedule.share(1, 4);
+        long firstLast = 0L;
+        long secondLast = 0L;
+        boolean differ = false;
+        for(int i = 0; i < 25000; i++) {
+            firstLast = first.nextNanos();
+            secondLast = second.nextNanos();
+            differ |= firstLast != secondLast;
+        }
+        // Each share sends 25000 at 250 a second
+        assertEquals(100.0, firstLast / 1e9, 2.0);
+        assertEquals(100.0, secondLast / 1e9, 2.0);
+        assertTrue(differ);
+    }
+
+    @Test
+    @DisplayName("repeats the same poisson arrivals from the same seed")
+    void repeatsFromSeed() {
+        ArrivalSchedule first = ArrivalSchedule.named("poisson", 1000.0, 42L).share(1, 2);
+        ArrivalSchedule again = ArrivalSchedule.named("poisson", 1000.0, 42L).share(1, 2);
+        ArrivalSchedule other = ArrivalSchedule.named("poisson", 1000.0, 43L).share(1, 2);
+
+        boolean differ = false;
+        for(int i = 0; i < 100; i++) {
+            long next = first.nextNanos();
+            assertEquals(next, again.nextNanos());
+            differ |= next != other.nextNanos();
+        }
+        assertTrue(differ);
+    }
+
+    @Test
+    @DisplayName("rejects unknown processes and rates that are not positive")
+    void rejectsBadSettings() {
+        assertThrows(IllegalArgumentException.class, () -> ArrivalSchedule.named("bursty", 10.0, 1L));
+        assertThrows(IllegalArgumentException.class, () -> ArrivalSchedule.named("constant", 0.0, 1L));
+        assertThrows(IllegalArgumentException.class, () -> ArrivalSchedule.named("poisson", -1.0, 1L));
+        assertThrows(IllegalArgumentException.class, () -> ArrivalSchedule.constant(Double.NaN));
+        assertThrows(IllegalArgumentException.class, () -> ArrivalSchedule.constant(Double.POSITIVE_INFINITY));
+    }
+}
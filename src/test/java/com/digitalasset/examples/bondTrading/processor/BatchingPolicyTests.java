@@ -0,0 +1,146 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("A BatchingPolicy")
+public class BatchingPolicyTests {
+
+    private final Object queue = new Object();
+
+    @Nested
+    @DisplayName("with a minimum batch")
+    class MinBatch {
+
+        BatchingPolicy policy = new BatchingPolicy(3, 10, 1, TimeUnit.SECONDS, false);
+
+        @Test
+        @DisplayName("is not ready until the minimum batch is waiting")
+        void readyAtMinBatch() {
+            assertFalse(policy.ready(queue, 2, 0L));
+            assertTrue(policy.ready(queue, 3, 1L));
+        }
+
+        @Test
+        @DisplayName("is never ready for an empty queue")
+        void notReadyWhenEmpty() {
+            assertFalse(policy.ready(queue, 0, 0L));
+            assertEquals(-1L, policy.nanosToNextDeadline(0L));
+        }
+    }
+
+    @Nested
+    @DisplayName("with a maximum wait")
+    class MaxWait {
+
+        BatchingPolicy policy = new BatchingPolicy(5, 10, 100, TimeUnit.NANOSECONDS, false);
+
+        @Test
+        @DisplayName("is ready once dvps have waited the maximum wait")
+        void readyAtMaxWait() {
+            assertFalse(policy.ready(queue, 1, 1000L));
+            assertEquals(100L, policy.nanosToNextDeadline(1000L));
+            assertFalse(policy.ready(queue, 2, 1050L));
+            assertEquals(50L, policy.nanosToNextDeadline(1050L));
+            assertTrue(policy.ready(queue, 2, 1100L));
+        }
+
+        @Test
+        @DisplayName("stays ready until a batch is submitted")
+        void readyUntilSubmitted() {
+            policy.ready(queue, 1, 1000L);
+            assertTrue(policy.ready(queue, 1, 1100L));
+            assertTrue(policy.ready(queue, 1, 1200L));
+            assertEquals(-1L, policy.nanosToNextDeadline(1200L));
+
+            policy.submitted(queue);
+            assertFalse(policy.ready(queue, 1, 1300L));
+            assertEquals(100L, policy.nanosToNextDeadline(1300L));
+        }
+
+        @Test
+        @DisplayName("starts the wait again once the queue empties")
+        void restartsWhenEmpty() {
+            policy.ready(queue, 1, 1000L);
+            policy.ready(queue, 0, 1050L);
+            assertFalse(policy.ready(queue, 1, 1100L));
+            assertTrue(policy.ready(queue, 1, 1200L));
+        }
+    }
+
+    @Nested
+    @DisplayName("with no maximum wait")
+    class NoWait {
+
+        BatchingPolicy policy = new BatchingPolicy(5, 10, 0, TimeUnit.NANOSECONDS, false);
+
+        @Test
+        @DisplayName("is ready whenever dvps are waiting")
+        void readyAtOnce() {
+            assertTrue(policy.ready(queue, 1, 0L));
+            assertFalse(policy.ready(queue, 0, 0L));
+            assertEquals(-1L, policy.nanosToNextDeadline(0L));
+        }
+    }
+
+    @Nested
+    @DisplayName("when adaptive")
+    class Adaptive {
+
+        BatchingPolicy policy = new BatchingPolicy(2, 10, 1, TimeUnit.SECONDS, true);
+
+        @Test
+        @DisplayName("keeps the minimum batch at the lowest latency")
+        void minimumAtLowestLatency() {
+            assertEquals(2, policy.currentMinBatch());
+            policy.recordLatency(100L);
+            assertEquals(2, policy.currentMinBatch());
+        }
+
+        @Test
+        @DisplayName("grows the minimum batch with latency")
+        void growsWithLatency() {
+            policy.recordLatency(100L);
+            policy.recordLatency(300L);     // average 140
+            assertEquals(3, policy.currentMinBatch());
+            assertFalse(policy.ready(queue, 2, 0L));
+            assertTrue(policy.ready(queue, 3, 0L));
+        }
+
+        @Test
+        @DisplayName("caps the minimum batch at the maximum batch")
+        void cappedAtMaxBatch() {
+            policy.recordLatency(100L);
+            for(int i = 0; i < 50; i++) policy.recordLatency(100000L);
+            assertEquals(10, policy.currentMinBatch());
+        }
+
+        @Test
+        @DisplayName("does not scale a copy by the original's latency")
+        void copyStartsAfresh() {
+            policy.recordLatency(100L);
+            policy.recordLatency(300L);
+            assertEquals(2, policy.copy().currentMinBatch());
+        }
+
+        @Test
+        @DisplayName("unless it is not adaptive")
+        void fixedWhenNotAdaptive() {
+            BatchingPolicy fixed = new BatchingPolicy(2, 10, 1, TimeUnit.SECONDS, false);
+            fixed.recordLatency(100L);
+            fixed.recordLatency(300L);
+            assertEquals(2, fixed.currentMinBatch());
+        }
+    }
+}
@@ -0,0 +1,147 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.daml.ledger.api.v1.LedgerOffsetOuterClass.LedgerOffset;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("A Checkpoint")
+public class CheckpointTests {
+
+    private Path file;
+
+    @BeforeEach
+    void createFile() throws IOException {
+        file = Files.createTempFile("checkpoint", ".ser");
+        Files.delete(file);
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    @DisplayName("reads back the offset and state it was written with")
+    void roundTrip() throws IOException {
+        new Checkpoint("000042", new ArrayList<>(Arrays.asList("a", "b"))).write(file);
+
+        Checkpoint checkpoint = Checkpoint.read(file);
+        assertEquals("000042", checkpoint.getOffset());
+        assertEquals(Arrays.asList("a", "b"), checkpoint.getState());
+    }
+
+    @Test
+    @DisplayName("replaces the previous checkpoint")
+    void replaces() throws IOException {
+        new Checkpoint("000001", "first").write(file);
+        new Checkpoint("000002", "second").write(file);
+
+        Checkpoint checkpoint = Checkpoint.read(file);
+        assertEquals("000002", checkpoint.getOffset());
+        assertEquals("second", checkpoint.getState());
+    }
+
+    @Test
+    @DisplayName("cannot be read from a file holding another object")
+    void rejectsOtherObjects() throws IOException {
+        try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(file))) {
+            out.writeObject("not a checkpoint");
+        }
+        assertThrows(IOException.class, () -> Checkpoint.read(file));
+    }
+
+    @Nested
+    @DisplayName("when a processor starts")
+    class Restore {
+
+        // A processor whose state is a String, restored into restored
+        private ManagedChannel channel;
+        private EventProcessor processor;
+        private Serializable restored;
+
+        @BeforeEach
+        void createProcessor() {
+            channel = ManagedChannelBuilder.forAddress("localhost", 6865).usePlaintext().build();
+            processor = new EventProcessor("test", channel, "package", "ledger", "party", false) {
+                @Override
+                void restoreCheckpointState(Serializable state) throws IOException {
+                    if(!(state instanceof String)) throw new IOException("not a test checkpoint");
+                    restored = state;
+                }
+            };
+            processor.setCheckpoint(file, 0L);
+        }
+
+        @AfterEach
+        void closeChannel() {
+            channel.shutdownNow();
+        }
+
+        private void assertLedgerBegin(LedgerOffset begin) {
+            assertEquals(LedgerOffset.LedgerBoundary.LEDGER_BEGIN, begin.getBoundary());
+            assertNull(restored);
+        }
+
+        @Test
+        @DisplayName("resumes from the checkpoint offset with its state")
+        void resumes() throws IOException {
+            new Checkpoint("000042", "state").write(file);
+
+            LedgerOffset begin = processor.restoreCheckpoint();
+            assertEquals("000042", begin.getAbsolute());
+            assertEquals("state", restored);
+        }
+
+        @Test
+        @DisplayName("replays from ledger begin without a checkpoint")
+        void missing() {
+            assertLedgerBegin(processor.restoreCheckpoint());
+        }
+
+        @Test
+        @DisplayName("replays from ledger begin from a corrupt checkpoint")
+        void corrupt() throws IOException {
+            Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+            assertLedgerBegin(processor.restoreCheckpoint());
+        }
+
+        @Test
+        @DisplayName("replays from ledger begin from a truncated checkpoint")
+        void truncated() throws IOException {
+            new Checkpoint("000042", "state").write(file);
+            byte[] bytes = Files.readAllBytes(file);
+            Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+            assertLedgerBegin(processor.restoreCheckpoint());
+        }
+
+        @Test
+        @DisplayName("replays from ledger begin from a checkpoint with incompatible state")
+        void incompatible() throws IOException {
+            new Checkpoint("000042", 42L).write(file);
+            assertLedgerBegin(processor.restoreCheckpoint());
+        }
+    }
+}
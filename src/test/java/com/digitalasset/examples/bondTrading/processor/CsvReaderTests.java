@@ -0,0 +1,210 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("A CsvReader")
+public class CsvReaderTests {
+
+    private final List<Path> files = new ArrayList<>();
+
+    @AfterEach
+    void deleteFiles() throws IOException {
+        for(Path file : files) Files.deleteIfExists(file);
+    }
+
+    private Path write(String content) throws IOException {
+        Path file = Files.createTempFile("csv-reader", ".csv");
+        files.add(file);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static List<String> fields(CsvReader.Row row) {
+        List<String> fields = new ArrayList<>();
+        for(int i = 0; i < row.size(); i++) fields.add(row.get(i));
+        return fields;
+    }
+
+    private static List<List<String>> collect(Stream<CsvReader.Row> rows) {
+        return rows.map(CsvReaderTests::fields).collect(Collectors.toList());
+    }
+
+    private static List<List<String>> read(Path file, long windowBytes) throws IOException {
+        try(CsvReader csv = CsvReader.open(file, windowBytes, 1L)) {
+            return collect(csv.rows());
+        }
+    }
+
+    @Nested
+    @DisplayName("when parsing rows")
+    class Parsing {
+
+        @Test
+        @DisplayName("reads the header and the rows after it")
+        void readsHeaderAndRows() throws IOException {
+            try(CsvReader csv = CsvReader.open(write("a,b,c\n1,2,3\n4,5,6\n"))) {
+                assertEquals(Arrays.asList("a", "b", "c"), csv.header());
+                assertArrayEquals(new int[] {2, 0}, csv.columns("c", "a"));
+                assertEquals(Arrays.asList(Arrays.asList("1", "2", "3"), Arrays.asList("4", "5", "6")), collect(csv.rows()));
+            }
+        }
+
+        @Test
+        @DisplayName("unquotes fields with commas and doubled quotes")
+        void readsQuotedFields() throws IOException {
+            try(CsvReader csv = CsvReader.open(write("a,b,c\n\"x,y\",\"say \"\"hi\"\"\",\"\"\n"))) {
+                assertEquals(Arrays.asList(Arrays.asList("x,y", "say \"hi\"", "")), collect(csv.rows()));
+            }
+        }
+
+        @Test
+        @DisplayName("reads CRLF line endings, and a CR at the end of the file")
+        void readsCrlf() throws IOException {
+            try(CsvReader csv = CsvReader.open(write("a,b\r\n1,2\r\n3,4\r"))) {
+                assertEquals(Arrays.asList("a", "b"), csv.header());
+                assertEquals(Arrays.asList(Arrays.asList("1", "2"), Arrays.asList("3", "4")), collect(csv.rows()));
+            }
+        }
+
+        @Test
+        @DisplayName("reads a CRLF split between windows")
+        void readsCrlfAcrossWindows() throws IOException {
+            // The first window of 9 bytes ends with the CR of the first row
+            Path file = write("a,b\r\n1,2\r\n3,4\r\n");
+            assertEquals(Arrays.asList(Arrays.asList("1", "2"), Arrays.asList("3", "4")), read(file, 9L));
+        }
+
+        @Test
+        @DisplayName("skips blank lines")
+        void skipsBlankLines() throws IOException {
+            try(CsvReader csv = CsvReader.open(write("\na,b\n\n1,2\r\n\r\n3,4\n\n"))) {
+                assertEquals(Arrays.asList("a", "b"), csv.header());
+                assertEquals(Arrays.asList(Arrays.asList("1", "2"), Arrays.asList("3", "4")), collect(csv.rows()));
+            }
+        }
+
+        @Test
+        @DisplayName("reads an empty file as no header and no rows")
+        void readsEmptyFile() throws IOException {
+            try(CsvReader csv = CsvReader.open(write(""))) {
+                assertTrue(csv.header().isEmpty());
+                assertEquals(0L, csv.rows().count());
+                assertThrows(IOException.class, () -> csv.columns("a"));
+            }
+        }
+
+        @Test
+        @DisplayName("reads rows that cross a window")
+        void readsRowsAcrossWindows() throws IOException {
+            StringBuilder content = new StringBuilder("name,value\n");
+            List<List<String>> expected = new ArrayList<>();
+            for(int i = 0; i < 50; i++) {
+                content.append("row").append(i).append(",\"v,").append(i).append("\"\n");
+                expected.add(Arrays.asList("row" + i, "v," + i));
+            }
+            assertEquals(expected, read(write(content.toString()), 16L));
+        }
+    }
+
+    @Nested
+    @DisplayName("when a row is malformed")
+    class Malformed {
+
+        private void assertMalformed(String content, String problem) throws IOException {
+            try(CsvReader csv = CsvReader.open(write(content))) {
+                UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> csv.rows().count());
+                assertTrue(e.getCause().getMessage().contains(problem), e.getCause().getMessage());
+            }
+        }
+
+        @Test
+        @DisplayName("rejects an unterminated quoted field")
+        void rejectsUnterminatedQuote() throws IOException {
+            assertMalformed("a,b\n1,\"2\n", "unterminated quoted field");
+            assertMalformed("a,b\n1,\"2", "unterminated quoted field");
+        }
+
+        @Test
+        @DisplayName("rejects a quote inside an unquoted field")
+        void rejectsQuoteInsideField() throws IOException {
+            assertMalformed("a,b\n1,2\"3\n", "quote inside unquoted field");
+        }
+
+        @Test
+        @DisplayName("rejects a malformed header when opened")
+        void rejectsMalformedHeader() throws IOException {
+            Path file = write("a,\"b\n1,2\n");
+            IOException e = assertThrows(IOException.class, () -> CsvReader.open(file));
+            assertTrue(e.getMessage().contains("unterminated quoted field"), e.getMessage());
+        }
+
+        @Test
+        @DisplayName("rejects a row longer than the window")
+        void rejectsLongRow() throws IOException {
+            Path file = write("a\n0123456789012345678901234567890123456789\n");
+            UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> read(file, 16L));
+            assertTrue(e.getCause().getMessage().contains("longer than 16 bytes"), e.getCause().getMessage());
+        }
+    }
+
+    @Nested
+    @DisplayName("when reading in parts")
+    class Parts {
+
+        private Path many() throws IOException {
+            StringBuilder content = new StringBuilder("id,text\r\n");
+            for(int i = 0; i < 1000; i++) {
+                content.append(i).append(i % 7 == 0 ? ",\"a, \"\"quoted\"\" text\"" : ",plain").append(i % 3 == 0 ? "\r\n" : "\n");
+                if(i % 11 == 0) content.append("\n");
+            }
+            return write(content.toString());
+        }
+
+        @Test
+        @DisplayName("partitions hold the same rows, in the same order, as rows")
+        void partitionsMatchRows() throws IOException {
+            Path file = many();
+            try(CsvReader csv = CsvReader.open(file, 64L, 1L)) {
+                List<List<String>> expected = collect(csv.rows());
+                assertEquals(1000, expected.size());
+                for(int parts : new int[] {1, 2, 3, 7, 16}) {
+                    List<List<String>> partitioned = new ArrayList<>();
+                    csv.partitions(parts).forEach(p -> partitioned.addAll(collect(p)));
+                    assertEquals(expected, partitioned, parts + " partitions");
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("a parallel stream holds the same rows, in the same order, as rows")
+        void parallelMatchesRows() throws IOException {
+            Path file = many();
+            try(CsvReader csv = CsvReader.open(file, 64L, 32L)) {
+                List<List<String>> expected = collect(csv.rows());
+                assertEquals(expected, collect(csv.rows().parallel()));
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.daml.ledger.api.v1.EventOuterClass.CreatedEvent;
+import com.daml.ledger.api.v1.EventOuterClass.Event;
+import com.daml.ledger.api.v1.TransactionOuterClass.Transaction;
+import com.daml.ledger.api.v1.ValueOuterClass.Identifier;
+import com.daml.ledger.api.v1.ValueOuterClass.Record;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("A DecodedTransaction")
+public class DecodedTransactionTests {
+
+    private static final Identifier TEST = Identifier.newBuilder()
+        .setPackageId("package").setModuleName("Test").setEntityName("Test").build();
+
+    private final AtomicInteger decodes = new AtomicInteger();
+    private final EventProcessor.CreatedEventDecoder<String> decoder = event -> {
+        decodes.incrementAndGet();
+        return "view of " + event.getContractId();
+    };
+
+    // A processor recording the views its handler is given
+    private class Witness extends EventProcessor {
+
+        final List<String> views = Collections.synchronizedList(new ArrayList<>());
+
+        Witness(ManagedChannel channel, String party, CreatedEventDecoder<String> decoder) {
+            super("test", channel, "package", "ledger", party, false);
+            onCreated("Test", "Test", decoder, (workflowId, event, view) -> {
+                views.add(view);
+                return Stream.empty();
+            });
+        }
+    }
+
+    private ManagedChannel channel;
+
+    @BeforeEach
+    void createChannel() {
+        channel = ManagedChannelBuilder.forAddress("localhost", 6865).usePlaintext().build();
+    }
+
+    @AfterEach
+    void closeChannel() {
+        channel.shutdownNow();
+    }
+
+    private static Transaction transaction(String... cids) {
+        Transaction.Builder tx = Transaction.newBuilder().setTransactionId("tx").setWorkflowId("workflow").setOffset("1");
+        for(String cid : cids) {
+            tx.addEvents(Event.newBuilder().setCreated(CreatedEvent.newBuilder()
+                .setContractId(cid)
+                .setTemplateId(TEST)
+                .setCreateArguments(Record.getDefaultInstance())));
+        }
+        return tx.build();
+    }
+
+    @Test
+    @DisplayName("decodes each event once for every processor registering the same decoder")
+    void decodesOnce() {
+        Witness alice = new Witness(channel, "Alice", decoder);
+        Witness bob = new Witness(channel, "Bob", decoder);
+
+        DecodedTransaction decoded = new DecodedTransaction(transaction("c1", "c2", "c3"));
+        alice.processTransaction(decoded.decodeFor(alice));
+        bob.processTransaction(decoded.decodeFor(bob));
+
+        assertEquals(3, decodes.get());
+        assertEquals(alice.views, bob.views);
+        for(int i = 0; i < 3; i++) {
+            assertEquals("view of c" + (i + 1), alice.views.get(i));
+            assertSame(alice.views.get(i), bob.views.get(i));
+        }
+    }
+
+    @Test
+    @DisplayName("decodes events again for a processor registering another decoder")
+    void decodesForOtherDecoder() {
+        AtomicInteger otherDecodes = new AtomicInteger();
+        Witness alice = new Witness(channel, "Alice", decoder);
+        Witness bob = new Witness(channel, "Bob", event -> {
+            otherDecodes.incrementAndGet();
+            return "other view of " + event.getContractId();
+        });
+
+        DecodedTransaction decoded = new DecodedTransaction(transaction("c1", "c2"));
+        alice.processTransaction(decoded.decodeFor(alice));
+        bob.processTransaction(decoded.decodeFor(bob));
+
+        assertEquals(2, decodes.get());
+        assertEquals(2, otherDecodes.get());
+        assertEquals("other view of c2", bob.views.get(1));
+    }
+}
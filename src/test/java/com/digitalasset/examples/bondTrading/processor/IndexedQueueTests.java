@@ -0,0 +1,144 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("An IndexedQueue")
+public class IndexedQueueTests {
+
+    static final class Item implements IndexedQueue.Contract, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String cid;
+
+        Item(String cid) {
+            this.cid = cid;
+        }
+
+        @Override
+        public String getCid() {
+            return cid;
+        }
+
+        @Override
+        public String toString() {
+            return "Item(" + cid + ")";
+        }
+    }
+
+    private final Item a = new Item("a");
+    private final Item b = new Item("b");
+    private final Item c = new Item("c");
+    private final Item d = new Item("d");
+    private final Item unindexed = new Item(null);
+
+    private IndexedQueue<Item> queue;
+
+    @BeforeEach
+    void fill() {
+        queue = new IndexedQueue<>();
+        queue.addAll(Arrays.asList(a, b, c, d));
+    }
+
+    private static List<Item> contents(IndexedQueue<Item> queue) {
+        return new ArrayList<>(queue);
+    }
+
+    @Test
+    @DisplayName("is first in, first out")
+    void isFifo() {
+        assertEquals(a, queue.peek());
+        assertEquals(a, queue.poll());
+        assertEquals(b, queue.poll());
+        assertEquals(Arrays.asList(c, d), contents(queue));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    @DisplayName("removes a contract from the middle by ID")
+    void removesFromMiddle() {
+        assertEquals(b, queue.removeContract("b"));
+        assertEquals(Arrays.asList(a, c, d), contents(queue));
+        assertNull(queue.get("b"));
+        assertNull(queue.removeContract("b"));
+        assertEquals(c, queue.get("c"));
+
+        assertEquals(d, queue.removeContract("d"));
+        queue.add(b);
+        assertEquals(Arrays.asList(a, c, b), contents(queue));
+        assertEquals(a, queue.removeContract("a"));
+        assertEquals(Arrays.asList(c, b), contents(queue));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    @DisplayName("removes contracts through its iterator")
+    void removesThroughIterator() {
+        for(Iterator<Item> i = queue.iterator(); i.hasNext(); ) {
+            if(i.next() == c) i.remove();
+        }
+        assertEquals(Arrays.asList(a, b, d), contents(queue));
+        assertNull(queue.get("c"));
+    }
+
+    @Test
+    @DisplayName("removes several contracts, with or without IDs")
+    void removesContracts() {
+        queue.add(unindexed);
+        queue.removeContracts(Arrays.asList(unindexed, c, a));
+        assertEquals(Arrays.asList(b, d), contents(queue));
+    }
+
+    @Test
+    @DisplayName("puts contracts back at its head in order")
+    void offersFirst() {
+        queue.poll();
+        queue.poll();
+        queue.offerFirst(Arrays.asList(a, b));
+        assertEquals(Arrays.asList(a, b, c, d), contents(queue));
+        assertEquals(b, queue.removeContract("b"));
+        assertEquals(Arrays.asList(a, c, d), contents(queue));
+    }
+
+    @Test
+    @DisplayName("keeps its order and index through serialization")
+    void roundTrips() throws IOException, ClassNotFoundException {
+        queue.add(unindexed);
+        queue.removeContract("b");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(queue);
+        }
+        @SuppressWarnings("unchecked")
+        IndexedQueue<Item> copy = (IndexedQueue<Item>) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals(Arrays.asList("a", "c", "d", null), copy.stream().map(Item::getCid).collect(Collectors.toList()));
+        assertEquals(4, copy.size());
+        assertEquals("c", copy.removeContract("c").getCid());
+        assertNull(copy.get("b"));
+        assertEquals("a", copy.poll().getCid());
+        assertEquals("d", copy.get("d").getCid());
+    }
+}
@@ -0,0 +1,122 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("A LatencyHistogram")
+public class LatencyHistogramTests {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    // Reported values are bucket upper bounds: never below the true value, and within one sub-bucket (1/16) above it
+    private void assertPercentile(long expected, double fraction) {
+        long reported = histogram.percentileMicros(fraction);
+        assertTrue(reported >= expected, "p" + fraction + " reported " + reported + ", below " + expected);
+        assertTrue(reported <= expected + expected / 16, "p" + fraction + " reported " + reported + ", above " + expected);
+    }
+
+    @Test
+    @DisplayName("reports 0 when empty")
+    void empty() {
+        assertEquals(0L, histogram.count());
+        assertEquals(0L, histogram.percentileMicros(0.5));
+        assertEquals(0L, histogram.percentileMicros(0.999));
+    }
+
+    @Test
+    @DisplayName("reports small values exactly")
+    void exact() {
+        for(long micros = 0; micros < 32; micros++) histogram.record(micros, TimeUnit.MICROSECONDS);
+
+        assertEquals(32L, histogram.count());
+        assertEquals(15L, histogram.percentileMicros(0.5));
+        assertEquals(31L, histogram.percentileMicros(1.0));
+    }
+
+    @Test
+    @DisplayName("reports percentiles of a uniform distribution")
+    void uniform() {
+        for(long micros = 1; micros <= 1000; micros++) histogram.record(micros, TimeUnit.MICROSECONDS);
+
+        assertEquals(1000L, histogram.count());
+        assertEquals(1000L, histogram.maxMicros());
+        assertPercentile(500L, 0.5);
+        assertPercentile(990L, 0.99);
+        assertPercentile(999L, 0.999);
+        assertEquals(1000L, histogram.percentileMicros(1.0));
+    }
+
+    @Test
+    @DisplayName("reports the tail of a skewed distribution")
+    void skewed() {
+        // 99% of calls take 100us, 0.9% take 10ms, 0.1% take 1s
+        for(int i = 0; i < 99_000; i++) histogram.record(100L, TimeUnit.MICROSECONDS);
+        for(int i = 0; i < 900; i++) histogram.record(10L, TimeUnit.MILLISECONDS);
+        for(int i = 0; i < 100; i++) histogram.record(1L, TimeUnit.SECONDS);
+
+        assertPercentile(100L, 0.5);
+        assertPercentile(100L, 0.99);
+        assertPercentile(10_000L, 0.999);
+        assertEquals(1_000_000L, histogram.percentileMicros(1.0));
+    }
+
+    @Test
+    @DisplayName("reports percentiles of shuffled values to within a bucket")
+    void shuffled() {
+        long[] values = new long[10_000];
+        for(int i = 0; i < values.length; i++) values[i] = (i + 1) * 37L;
+
+        Random random = new Random(42L);
+        for(int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long v = values[i];
+            values[i] = values[j];
+            values[j] = v;
+        }
+        for(long v : values) histogram.record(v, TimeUnit.MICROSECONDS);
+
+        assertPercentile(5_000 * 37L, 0.5);
+        assertPercentile(9_900 * 37L, 0.99);
+        assertPercentile(9_990 * 37L, 0.999);
+    }
+
+    @Test
+    @DisplayName("counts negative durations as 0")
+    void negative() {
+        histogram.record(-5L, TimeUnit.MICROSECONDS);
+        assertEquals(1L, histogram.count());
+        assertEquals(0L, histogram.percentileMicros(1.0));
+    }
+
+    @Test
+    @DisplayName("reports values at the edge of the highest bucket")
+    void highestBucket() {
+        histogram.record(1L << 62, TimeUnit.MICROSECONDS);
+        histogram.record(Long.MAX_VALUE - 1, TimeUnit.MICROSECONDS);
+        histogram.record(Long.MAX_VALUE, TimeUnit.MICROSECONDS);
+
+        assertEquals(Long.MAX_VALUE, histogram.maxMicros());
+        assertPercentile(1L << 62, 0.3);
+        assertEquals(Long.MAX_VALUE, histogram.percentileMicros(0.5));
+        assertEquals(Long.MAX_VALUE, histogram.percentileMicros(0.999));
+    }
+
+    @Test
+    @DisplayName("saturates durations too long to count in microseconds")
+    void saturates() {
+        histogram.record(Long.MAX_VALUE, TimeUnit.DAYS);
+        assertEquals(Long.MAX_VALUE, histogram.maxMicros());
+        assertEquals(Long.MAX_VALUE, histogram.percentileMicros(0.999));
+    }
+}
@@ -0,0 +1,134 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("A ProcessingStage")
+public class ProcessingStageTests {
+
+    private static void unexpected(Throwable t) {
+        fail("stage failed: " + t);
+    }
+
+    @Test
+    @DisplayName("consumes published items in order")
+    void consumesInOrder() throws InterruptedException {
+        List<Integer> consumed = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1000);
+        ProcessingStage<Integer> stage = new ProcessingStage<>("test stage", 8, item -> {
+            consumed.add(item);
+            done.countDown();
+        }, ProcessingStageTests::unexpected);
+        stage.start();
+
+        for(int i = 0; i < 1000; i++) stage.publish(i);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for(int i = 0; i < 1000; i++) assertEquals(i, consumed.get(i).intValue());
+    }
+
+    @Test
+    @DisplayName("runs tasks on its thread")
+    void runsTasks() throws InterruptedException {
+        ProcessingStage<Integer> stage = new ProcessingStage<>("test stage", 8, item -> {}, ProcessingStageTests::unexpected);
+        stage.start();
+
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger onStage = new AtomicInteger();
+        stage.execute(() -> {
+            if(stage.isStageThread()) onStage.incrementAndGet();
+            done.countDown();
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, onStage.get());
+        assertFalse(stage.isStageThread());
+    }
+
+    @Test
+    @DisplayName("makes the publisher wait while the buffer is full")
+    void pushesBack() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicInteger consumed = new AtomicInteger();
+        ProcessingStage<Integer> stage = new ProcessingStage<>("test stage", 4, item -> {
+            if(item == 0) {
+                blocked.countDown();
+                try { release.await(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+            if(consumed.incrementAndGet() == 10) finished.countDown();
+        }, ProcessingStageTests::unexpected);
+        stage.start();
+
+        AtomicInteger published = new AtomicInteger();
+        Thread publisher = new Thread(() -> {
+            for(int i = 0; i < 10; i++) {
+                stage.publish(i);
+                published.incrementAndGet();
+            }
+        });
+        publisher.start();
+
+        // The stage holds item 0 while the buffer fills with the next 4, and the publisher waits on the 6th
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while(published.get() < 5 && System.nanoTime() < deadline) Thread.sleep(1);
+        Thread.sleep(50);
+        assertEquals(5, published.get());
+        assertEquals(4, stage.depth());
+
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        publisher.join();
+        assertEquals(10, published.get());
+    }
+
+    @Test
+    @DisplayName("stops at the first item that throws, and stops making the publisher wait")
+    void stopsOnFailure() throws InterruptedException {
+        List<Integer> consumed = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        CountDownLatch failed = new CountDownLatch(1);
+        ProcessingStage<Integer> stage = new ProcessingStage<>("test stage", 4, item -> {
+            if(item == 3) throw new AssertionError("item 3");
+            consumed.add(item);
+        }, t -> {
+            failures.add(t);
+            failed.countDown();
+        });
+        stage.start();
+
+        // Errors stop the stage as exceptions do. Publishing many more items than the buffer holds does not block
+        Thread publisher = new Thread(() -> {
+            for(int i = 0; i < 100; i++) stage.publish(i);
+        });
+        publisher.start();
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        publisher.join(10_000);
+        assertFalse(publisher.isAlive());
+
+        assertTrue(stage.hasFailed());
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof AssertionError);
+        assertEquals(Arrays.asList(0, 1, 2), consumed);
+
+        // Nothing runs after the failure
+        CountDownLatch ran = new CountDownLatch(1);
+        stage.execute(ran::countDown);
+        assertFalse(ran.await(100, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,80 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.daml.ledger.api.v1.ValueOuterClass.Record;
+import com.daml.ledger.api.v1.ValueOuterClass.RecordField;
+import com.daml.ledger.api.v1.ValueOuterClass.Value;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("A RecordDecoder")
+public class RecordDecoderTests {
+
+    private final RecordDecoder decoder = new RecordDecoder("Asset", "owner", "symbol", "amount");
+    private final RecordDecoder.Field owner = decoder.field("owner");
+    private final RecordDecoder.Field symbol = decoder.field("symbol");
+    private final RecordDecoder.Field amount = decoder.field("amount");
+
+    private static Record record(boolean labelled, String... labelsAndTexts) {
+        Record.Builder record = Record.newBuilder();
+        for(int i = 0; i < labelsAndTexts.length; i += 2) {
+            RecordField.Builder field = RecordField.newBuilder().setValue(Value.newBuilder().setText(labelsAndTexts[i + 1]));
+            if(labelled) field.setLabel(labelsAndTexts[i]);
+            record.addFields(field);
+        }
+        return record.build();
+    }
+
+    @Test
+    @DisplayName("reads fields in declared order by position")
+    void readsDeclaredOrder() {
+        Record r = record(true, "owner", "Alice", "symbol", "USD", "amount", "100.0");
+        assertEquals("Alice", owner.get(r).getText());
+        assertEquals("USD", symbol.get(r).getText());
+        assertEquals("100.0", amount.get(r).getText());
+    }
+
+    @Test
+    @DisplayName("reads unlabelled records by declared position")
+    void readsUnlabelled() {
+        Record r = record(false, "owner", "Alice", "symbol", "USD", "amount", "100.0");
+        assertEquals("USD", symbol.get(r).getText());
+        assertEquals("100.0", amount.get(r).getText());
+    }
+
+    @Test
+    @DisplayName("falls back to positions by label when fields are not in declared order")
+    void fallsBackByLabel() {
+        Record r = record(true, "amount", "100.0", "extra", "x", "owner", "Alice", "symbol", "USD");
+        assertEquals("Alice", owner.get(r).getText());
+        assertEquals("USD", symbol.get(r).getText());
+        assertEquals("100.0", amount.get(r).getText());
+
+        // The resolved positions are kept for later records, labelled or not
+        Record next = record(false, "amount", "5.0", "extra", "y", "owner", "Bob", "symbol", "CHF");
+        assertEquals("Bob", owner.get(next).getText());
+        assertEquals("CHF", symbol.get(next).getText());
+        assertEquals("5.0", amount.get(next).getText());
+    }
+
+    @Test
+    @DisplayName("rejects a record without a declared field")
+    void rejectsMissingField() {
+        Record r = record(true, "owner", "Alice", "amount", "100.0");
+        assertThrows(IllegalStateException.class, () -> owner.get(r));
+    }
+
+    @Test
+    @DisplayName("rejects a field that is not declared")
+    void rejectsUndeclaredField() {
+        assertThrows(IllegalArgumentException.class, () -> decoder.field("issuer"));
+    }
+}
@@ -0,0 +1,76 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("A RingBuffer")
+public class RingBufferTests {
+
+    @Test
+    @DisplayName("rounds its capacity up to a power of two")
+    void roundsCapacity() {
+        assertEquals(4, new RingBuffer<Integer>(4).capacity());
+        assertEquals(8, new RingBuffer<Integer>(5).capacity());
+        assertEquals(2, new RingBuffer<Integer>(1).capacity());
+    }
+
+    @Test
+    @DisplayName("refuses items when full, until one is taken")
+    void refusesWhenFull() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(4);
+        for(int i = 0; i < 4; i++) assertTrue(buffer.offer(i));
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+
+        assertEquals(Integer.valueOf(0), buffer.poll());
+        assertTrue(buffer.offer(4));
+        assertFalse(buffer.offer(5));
+    }
+
+    @Test
+    @DisplayName("returns items in order as it wraps around")
+    void wrapsAround() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(4);
+        int next = 0;
+        int expected = 0;
+        for(int round = 0; round < 100; round++) {
+            // Fill up to three slots, then take two, so the head and tail move round the buffer at different points
+            while(buffer.size() < 3) assertTrue(buffer.offer(next++));
+            for(int i = 0; i < 2; i++) assertEquals(Integer.valueOf(expected++), buffer.poll());
+        }
+        while(!buffer.isEmpty()) assertEquals(Integer.valueOf(expected++), buffer.poll());
+        assertEquals(next, expected);
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    @DisplayName("passes every item in order from a writer thread to a reader thread")
+    void passesItemsBetweenThreads() throws InterruptedException {
+        RingBuffer<Integer> buffer = new RingBuffer<>(16);
+        int count = 100000;
+        Thread writer = new Thread(() -> {
+            for(int i = 0; i < count; i++) {
+                while(!buffer.offer(i)) Thread.yield();
+            }
+        });
+        writer.start();
+        for(int expected = 0; expected < count; ) {
+            Integer item = buffer.poll();
+            if(item == null) {
+                Thread.yield();
+            } else {
+                assertEquals(expected++, item.intValue());
+            }
+        }
+        writer.join();
+        assertTrue(buffer.isEmpty());
+    }
+}
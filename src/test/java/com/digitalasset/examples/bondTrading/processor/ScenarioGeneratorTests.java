@@ -0,0 +1,126 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("A ScenarioGenerator")
+public class ScenarioGeneratorTests {
+
+    private static final int COUNT = 2000;
+
+    private ScenarioGenerator generator;
+    private Path assetFile;
+    private Path tradeFile;
+
+    @BeforeEach
+    void setup() throws IOException {
+        generator = new ScenarioGenerator(1234L);
+        generator.setPartyCount(5);
+        generator.setIsinCount(20);
+        generator.setSkew(1.2);
+        generator.setSizes("log-uniform", 10L, 1000000L);
+        generator.setBuyRatio(0.8);
+        assetFile = Files.createTempFile("scenario-assets", ".csv");
+        tradeFile = Files.createTempFile("scenario-trades", ".csv");
+    }
+
+    @AfterEach
+    void deleteFiles() throws IOException {
+        Files.deleteIfExists(assetFile);
+        Files.deleteIfExists(tradeFile);
+    }
+
+    private static List<List<String>> asLists(Stream<String[]> trades) {
+        return trades.map(Arrays::asList).collect(Collectors.toList());
+    }
+
+    private static List<List<String>> read(Path file, String... columns) throws IOException {
+        try(CsvReader csv = CsvReader.open(file)) {
+            int[] indices = csv.columns(columns);
+            return csv.rows().map(row -> Arrays.asList(row.select(indices))).collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    @DisplayName("generates the same trades for the same seed")
+    void isDeterministic() {
+        List<List<String>> trades = asLists(generator.trades(COUNT));
+        assertEquals(COUNT, trades.size());
+        assertEquals(trades, asLists(generator.trades(COUNT)));
+        assertNotEquals(trades, asLists(new ScenarioGenerator(1235L).trades(COUNT)));
+    }
+
+    @Test
+    @DisplayName("generates the same trades in ranges as all at once")
+    void rangesMatch() {
+        List<List<String>> all = asLists(generator.trades(COUNT));
+        List<List<String>> ranges = new ArrayList<>();
+        long[] bounds = {0L, 1L, 333L, 334L, 1500L, COUNT};
+        for(int i = 0; i + 1 < bounds.length; i++) ranges.addAll(asLists(generator.trades(bounds[i], bounds[i + 1])));
+        assertEquals(all, ranges);
+        assertEquals(all.subList(700, 900), asLists(generator.trades(700L, 900L)));
+    }
+
+    @Test
+    @DisplayName("writes the trades it generates")
+    void writesTrades() throws IOException {
+        generator.write(COUNT, assetFile, tradeFile);
+        assertEquals(asLists(generator.trades(COUNT)), read(tradeFile, TradeInjector.TRADE_FIELDS));
+    }
+
+    @Test
+    @DisplayName("writes assets covering every trade")
+    void assetsCoverTrades() throws IOException {
+        generator.write(COUNT, assetFile, null);
+
+        // What each party holds, by party and symbol
+        Map<String, Long> held = new HashMap<>();
+        for(List<String> asset : read(assetFile, MarketSetupProcessor.ASSET_FIELDS)) {
+            String key = asset.get(MarketSetupProcessor.PARTY) + "/" + asset.get(MarketSetupProcessor.SYMBOL);
+            assertNull(held.put(key, Long.parseLong(asset.get(MarketSetupProcessor.AMOUNT))), "one asset per party and symbol");
+        }
+
+        // What each party needs: cash for its purchases, bonds for its sales
+        Map<String, Long> needed = new HashMap<>();
+        for(String[] trade : (Iterable<String[]>) generator.trades(COUNT)::iterator) {
+            assertNotEquals(trade[TradeInjector.BUYER], trade[TradeInjector.SELLER]);
+            needed.merge(trade[TradeInjector.BUYER] + "/" + trade[TradeInjector.CASH_CURRENCY], Long.parseLong(trade[TradeInjector.CASH_AMOUNT]), Long::sum);
+            needed.merge(trade[TradeInjector.SELLER] + "/" + trade[TradeInjector.BOND_ISIN], Long.parseLong(trade[TradeInjector.BOND_AMOUNT]), Long::sum);
+        }
+
+        assertEquals(needed.keySet(), held.keySet());
+        needed.forEach((key, amount) -> assertTrue(held.get(key) >= amount, key));
+    }
+
+    @Test
+    @DisplayName("rejects settings outside their range")
+    void rejectsBadSettings() {
+        assertThrows(IllegalArgumentException.class, () -> generator.setPartyCount(1));
+        assertThrows(IllegalArgumentException.class, () -> generator.setIsinCount(0));
+        assertThrows(IllegalArgumentException.class, () -> generator.setSkew(-0.5));
+        assertThrows(IllegalArgumentException.class, () -> generator.setSizes("normal", 1L, 10L));
+        assertThrows(IllegalArgumentException.class, () -> generator.setSizes("uniform", 10L, 1L));
+        assertThrows(IllegalArgumentException.class, () -> generator.setBuyRatio(1.5));
+    }
+}
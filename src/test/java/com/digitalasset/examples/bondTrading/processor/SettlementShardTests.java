@@ -0,0 +1,518 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.daml.ledger.api.v1.CommandsOuterClass.Command;
+import com.daml.ledger.api.v1.CompletionOuterClass.Completion;
+import com.daml.ledger.api.v1.EventOuterClass.ArchivedEvent;
+import com.daml.ledger.api.v1.EventOuterClass.CreatedEvent;
+import com.daml.ledger.api.v1.EventOuterClass.Event;
+import com.daml.ledger.api.v1.TransactionOuterClass.Transaction;
+import com.daml.ledger.api.v1.ValueOuterClass.Identifier;
+import com.daml.ledger.api.v1.ValueOuterClass.Record;
+import com.daml.ledger.api.v1.ValueOuterClass.RecordField;
+import com.daml.ledger.api.v1.ValueOuterClass.Value;
+import com.digitalasset.examples.bondTrading.processor.TradingPartyProcessor.SettlementState;
+import com.google.protobuf.Timestamp;
+import com.google.rpc.Status;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("A TradingPartyProcessor's settlement shards")
+public class SettlementShardTests {
+
+    private static final String PARTY = "Alice";
+    private static final String SETTLEMENT_PROCESSOR = "settlement-processor";
+    private static final long NOW = 1_500_000_000_000_000L;     // The ledger time of the transactions, in microseconds
+    private static final long LATER = NOW + 3_600_000_000L;
+    private static final long ANY_TIME = 0L;                    // The settle time of dvps that may settle straight away
+
+    private static final List<String> CURRENCIES = Arrays.asList("USD", "EUR", "GBP", "CHF", "JPY", "CAD");
+    private static final List<String> ISINS = Arrays.asList("US-1", "DE-2", "FR-3");
+
+    /*
+     * A processor that records the settlement commands it submits rather than sending them
+     */
+    private static class Bot extends TradingPartyProcessor {
+
+        final List<Submission> submitted = Collections.synchronizedList(new ArrayList<>());
+
+        Bot(ManagedChannel channel, int shards, BatchingPolicy batchingPolicy) {
+            super(channel, "package", "ledger", PARTY, false);
+            setSettlementShards(shards);
+            setBatchingPolicy(batchingPolicy);
+            createShards();
+        }
+
+        @Override
+        void submitCommands(String commandId, String workFlowId, List<Command> commands) {
+            submitted.add(new Submission(commandId, commands.get(0)));
+        }
+
+        void process(Event... events) {
+            processTransaction(new DecodedTransaction(transaction(events)).decodeFor(this));
+            assertTrue(awaitShards(10, TimeUnit.SECONDS));
+        }
+
+        void fail(String commandId) {
+            processCompletionError(Completion.newBuilder()
+                .setCommandId(commandId)
+                .setStatus(Status.newBuilder().setCode(io.grpc.Status.Code.INVALID_ARGUMENT.value()))
+                .build(), null);
+            assertTrue(awaitShards(10, TimeUnit.SECONDS));
+        }
+
+        // The state of the shard a symbol hashes to, checking no other shard holds anything for it
+        SettlementState stateFor(String symbol) {
+            List<SettlementState> states = shardStates();
+            SettlementState state = states.get(Math.floorMod(symbol.hashCode(), states.size()));
+            for(SettlementState other : states) {
+                if(other == state) continue;
+                assertFalse(other.cash.containsKey(symbol) && !other.cash.get(symbol).isEmpty(), symbol + " cash in another shard");
+                assertFalse(other.bonds.containsKey(symbol) && !other.bonds.get(symbol).isEmpty(), symbol + " bonds in another shard");
+                assertFalse(other.acceptedDvps.containsKey(symbol) && !other.acceptedDvps.get(symbol).isEmpty(), symbol + " dvps in another shard");
+                assertFalse(other.allocatedDvps.containsKey(symbol) && !other.allocatedDvps.get(symbol).isEmpty(), symbol + " dvps in another shard");
+            }
+            return state;
+        }
+
+        // The submitted commands settling a dvp
+        List<Submission> settling(String dvpCid) {
+            synchronized(submitted) {
+                return submitted.stream().filter(s -> s.dvpCids().contains(dvpCid)).collect(Collectors.toList());
+            }
+        }
+    }
+
+    private static class Submission {
+
+        final String commandId;
+        final Command command;
+
+        Submission(String commandId, Command command) {
+            this.commandId = commandId;
+            this.command = command;
+        }
+
+        List<String> assetCids() {
+            return cids(0);
+        }
+
+        List<String> dvpCids() {
+            return cids(1);
+        }
+
+        private List<String> cids(int field) {
+            return command.getExercise().getChoiceArgument().getRecord().getFields(field).getValue().getList()
+                .getElementsList().stream().map(Value::getContractId).collect(Collectors.toList());
+        }
+    }
+
+    private ManagedChannel channel;
+
+    @BeforeEach
+    void openChannel() {
+        // Never connected to: commands are recorded rather than sent
+        channel = ManagedChannelBuilder.forAddress("localhost", 6865).usePlaintext().build();
+    }
+
+    @AfterEach
+    void closeChannel() {
+        channel.shutdownNow();
+    }
+
+    private static Transaction transaction(Event... events) {
+        return Transaction.newBuilder()
+            .setTransactionId("tx")
+            .setWorkflowId("test")
+            .setOffset("1")
+            .setEffectiveAt(Timestamp.newBuilder().setSeconds(NOW / 1_000_000L))
+            .addAllEvents(Arrays.asList(events))
+            .build();
+    }
+
+    private static Identifier template(String module, String entity) {
+        return Identifier.newBuilder().setPackageId("package").setModuleName(module).setEntityName(entity).build();
+    }
+
+    private static RecordField field(String label, Value.Builder value) {
+        return RecordField.newBuilder().setLabel(label).setValue(value).build();
+    }
+
+    private static Value.Builder party(String party) {
+        return Value.newBuilder().setParty(party);
+    }
+
+    private static Value.Builder text(String text) {
+        return Value.newBuilder().setText(text);
+    }
+
+    private static Value.Builder numeric(int amount) {
+        return Value.newBuilder().setNumeric(amount + ".0");
+    }
+
+    private static Event created(String cid, Identifier templateId, Record.Builder arguments) {
+        return Event.newBuilder()
+            .setCreated(CreatedEvent.newBuilder()
+                .setEventId("#" + cid)
+                .setContractId(cid)
+                .setTemplateId(templateId)
+                .setCreateArguments(arguments)
+                .addWitnessParties(PARTY))
+            .build();
+    }
+
+    static Event settlementProcessor() {
+        return created(SETTLEMENT_PROCESSOR, template("Settlement", "SettlementProcessor"), Record.newBuilder()
+            .addFields(field("party", party(PARTY))));
+    }
+
+    static Event cash(String cid, String currency, int amount) {
+        return created(cid, template("Cash", "Cash"), Record.newBuilder()
+            .addFields(field("issuer", party("Bank")))
+            .addFields(field("owner", party(PARTY)))
+            .addFields(field("currency", text(currency)))
+            .addFields(field("amount", numeric(amount)))
+            .addFields(field("locker", party(PARTY))));
+    }
+
+    static Event bond(String cid, String isin, int amount) {
+        return created(cid, template("Bond", "Bond"), Record.newBuilder()
+            .addFields(field("issuer", party("Bank")))
+            .addFields(field("owner", party(PARTY)))
+            .addFields(field("isin", text(isin)))
+            .addFields(field("amount", numeric(amount))));
+    }
+
+    private static Value.Builder terms(String buyer, String seller, String currency, int cashAmount, String isin, int bondAmount, long settleTime, String dvpId) {
+        return Value.newBuilder().setRecord(Record.newBuilder()
+            .addFields(field("buyer", party(buyer)))
+            .addFields(field("seller", party(seller)))
+            .addFields(field("bondIssuer", party("Bank")))
+            .addFields(field("bondIsin", text(isin)))
+            .addFields(field("bondAmount", numeric(bondAmount)))
+            .addFields(field("cashIssuer", party("Bank")))
+            .addFields(field("cashCurrency", text(currency)))
+            .addFields(field("cashAmount", numeric(cashAmount)))
+            .addFields(field("settleTime", Value.newBuilder().setTimestamp(settleTime)))
+            .addFields(field("dvpId", text(dvpId))));
+    }
+
+    // A dvp I buy on, with its cash to allocate
+    static Event acceptedDvp(String cid, String currency, int amount, long settleTime) {
+        return created(cid, template("Dvp", "Dvp"), Record.newBuilder()
+            .addFields(field("c", terms(PARTY, "Bob", currency, amount, "US-1", 100, settleTime, cid))));
+    }
+
+    // A dvp I sell on, with its bonds to settle
+    static Event allocatedDvp(String cid, String isin, int amount) {
+        return created(cid, template("Dvp", "DvpAllocated"), Record.newBuilder()
+            .addFields(field("c", terms("Bob", PARTY, "USD", 1000, isin, amount, ANY_TIME, cid)))
+            .addFields(field("cashCid", Value.newBuilder().setContractId("cash-of-" + cid))));
+    }
+
+    static Event archived(String cid, String module, String entity) {
+        return Event.newBuilder()
+            .setArchived(ArchivedEvent.newBuilder()
+                .setEventId("#" + cid + "-archived")
+                .setContractId(cid)
+                .setTemplateId(template(module, entity))
+                .addWitnessParties(PARTY))
+            .build();
+    }
+
+    private static List<String> cids(Iterable<? extends IndexedQueue.Contract> contracts) {
+        List<String> cids = new ArrayList<>();
+        contracts.forEach(c -> cids.add(c.getCid()));
+        return cids;
+    }
+
+    // Cash, and a dvp to allocate it to, in every currency, and bonds and a dvp to settle with them for every ISIN
+    private static Event[] assets() {
+        List<Event> events = new ArrayList<>();
+        for(String currency : CURRENCIES) {
+            events.add(cash("cash-" + currency, currency, 1000));
+            events.add(acceptedDvp("dvp-" + currency, currency, 1000, ANY_TIME));
+        }
+        for(String isin : ISINS) {
+            events.add(bond("bond-" + isin, isin, 100));
+            events.add(allocatedDvp("allocated-" + isin, isin, 100));
+        }
+        return events.toArray(new Event[0]);
+    }
+
+    @Nested
+    @DisplayName("when contracts arrive")
+    class Routing {
+
+        Bot bot;
+
+        @BeforeEach
+        void setup() {
+            bot = new Bot(channel, 3, BatchingPolicy.immediate());
+            bot.process(assets());
+        }
+
+        @Test
+        @DisplayName("then each goes to the shard its symbol hashes to")
+        void routesBySymbol() {
+            for(String currency : CURRENCIES) {
+                SettlementState state = bot.stateFor(currency);
+                assertEquals(Arrays.asList("cash-" + currency), cids(state.cash.get(currency)));
+                assertEquals(Arrays.asList("dvp-" + currency), cids(state.acceptedDvps.get(currency)));
+                assertEquals(Amount.of(1000), state.getCashTotal(currency).getAmount());
+            }
+            for(String isin : ISINS) {
+                SettlementState state = bot.stateFor(isin);
+                assertEquals(Arrays.asList("bond-" + isin), cids(state.bonds.get(isin)));
+                assertEquals(Arrays.asList("allocated-" + isin), cids(state.allocatedDvps.get(isin)));
+            }
+        }
+
+        @Test
+        @DisplayName("then their archives go to the shard holding them")
+        void routesArchives() {
+            bot.process(
+                archived("cash-USD", "Cash", "Cash"),
+                archived("dvp-EUR", "Dvp", "Dvp"),
+                archived("bond-US-1", "Bond", "Bond"),
+                archived("allocated-DE-2", "Dvp", "DvpAllocated"));
+
+            assertTrue(bot.stateFor("USD").cash.get("USD").isEmpty());
+            assertEquals(Amount.ZERO, bot.stateFor("USD").getCashTotal("USD").getAmount());
+            assertEquals(Arrays.asList("dvp-USD"), cids(bot.stateFor("USD").acceptedDvps.get("USD")));
+            assertTrue(bot.stateFor("EUR").acceptedDvps.get("EUR").isEmpty());
+            assertEquals(Arrays.asList("cash-EUR"), cids(bot.stateFor("EUR").cash.get("EUR")));
+            assertTrue(bot.stateFor("US-1").bonds.get("US-1").isEmpty());
+            assertTrue(bot.stateFor("DE-2").allocatedDvps.get("DE-2").isEmpty());
+            assertEquals(Arrays.asList("bond-DE-2"), cids(bot.stateFor("DE-2").bonds.get("DE-2")));
+        }
+
+        @Test
+        @DisplayName("then each shard settles its own symbols once the SettlementProcessor is seen")
+        void settlesPerShard() {
+            assertTrue(bot.submitted.isEmpty());
+            bot.process(settlementProcessor());
+
+            assertEquals(CURRENCIES.size() + ISINS.size(), bot.submitted.size());
+            for(String currency : CURRENCIES) {
+                List<Submission> settling = bot.settling("dvp-" + currency);
+                assertEquals(1, settling.size());
+                assertEquals(Arrays.asList("cash-" + currency), settling.get(0).assetCids());
+                assertEquals(SETTLEMENT_PROCESSOR, settling.get(0).command.getExercise().getContractId());
+            }
+            for(String isin : ISINS) {
+                assertEquals(Arrays.asList("bond-" + isin), bot.settling("allocated-" + isin).get(0).assetCids());
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("when restored from a checkpoint taken with a different number of shards")
+    class Restore {
+
+        Bot before;
+        Bot after;
+
+        @BeforeEach
+        void setup() throws Exception {
+            before = new Bot(channel, 3, BatchingPolicy.immediate());
+            before.process(assets());
+            before.process(
+                settlementProcessor(),
+                acceptedDvp("held-USD", "USD", 500, LATER),
+                cash("cash-AUD", "AUD", 1000),
+                acceptedDvp("bad-AUD", "AUD", 1000, ANY_TIME));
+
+            // Fail the command settling bad-AUD alone until it is set aside. Other commands are left in flight
+            for(int i = 0; i < SettlementState.MAX_SETTLE_FAILURES; i++) {
+                List<Submission> settling = before.settling("bad-AUD");
+                assertEquals(i + 1, settling.size());
+                before.fail(settling.get(i).commandId);
+            }
+            assertEquals(Arrays.asList("bad-AUD"), cids(before.stateFor("AUD").failedAcceptedDvps));
+            assertEquals(Arrays.asList("held-USD"), cids(before.stateFor("USD").getHeldDvps(false)));
+
+            Serializable checkpoint = ((EventProcessor) before).checkpointState().get(10, TimeUnit.SECONDS);
+            after = new Bot(channel, 2, BatchingPolicy.immediate());
+            after.restoreCheckpointState(checkpoint);
+            assertTrue(after.awaitShards(10, TimeUnit.SECONDS));
+        }
+
+        @Test
+        @DisplayName("then contracts in flight go back to the shard their symbol now hashes to")
+        void redistributes() {
+            for(String currency : CURRENCIES) {
+                SettlementState state = after.stateFor(currency);
+                assertEquals(Arrays.asList("cash-" + currency), cids(state.cash.get(currency)));
+                assertEquals(Arrays.asList("dvp-" + currency), cids(state.acceptedDvps.get(currency)));
+                assertEquals(Amount.of(1000), state.getCashTotal(currency).getAmount());
+            }
+            for(String isin : ISINS) {
+                SettlementState state = after.stateFor(isin);
+                assertEquals(Arrays.asList("bond-" + isin), cids(state.bonds.get(isin)));
+                assertEquals(Arrays.asList("allocated-" + isin), cids(state.allocatedDvps.get(isin)));
+            }
+        }
+
+        @Test
+        @DisplayName("then held dvps are still held, in their symbol's shard")
+        void keepsHeld() {
+            SettlementState state = after.stateFor("USD");
+            assertEquals(Arrays.asList("held-USD"), cids(state.getHeldDvps(false)));
+            assertEquals(LATER, state.nextSettleTime());
+            for(SettlementState other : after.shardStates()) {
+                if(other != state) assertTrue(other.getHeldDvps(false).isEmpty());
+            }
+        }
+
+        @Test
+        @DisplayName("then set aside dvps are tried again, with a fresh count of failures")
+        void retriesSetAside() {
+            SettlementState state = after.stateFor("AUD");
+            assertEquals(Arrays.asList("bad-AUD"), cids(state.acceptedDvps.get("AUD")));
+            assertEquals(0, state.acceptedDvps.get("AUD").peek().getSettlementFailures());
+            after.shardStates().forEach(s -> assertTrue(s.failedAcceptedDvps.isEmpty()));
+        }
+
+        @Test
+        @DisplayName("then archives are routed to the new shards")
+        void routesArchives() {
+            after.process(archived("cash-GBP", "Cash", "Cash"), archived("bond-FR-3", "Bond", "Bond"));
+            assertTrue(after.stateFor("GBP").cash.get("GBP").isEmpty());
+            assertEquals(Amount.ZERO, after.stateFor("GBP").getCashTotal("GBP").getAmount());
+            assertTrue(after.stateFor("FR-3").bonds.get("FR-3").isEmpty());
+        }
+
+        @Test
+        @DisplayName("then settlement resumes with the SettlementProcessor seen before the checkpoint")
+        void resumesSettlement() {
+            after.process();
+            for(String currency : CURRENCIES) {
+                List<Submission> settling = after.settling("dvp-" + currency);
+                assertEquals(1, settling.size());
+                assertEquals(SETTLEMENT_PROCESSOR, settling.get(0).command.getExercise().getContractId());
+            }
+            assertEquals(1, after.settling("bad-AUD").size());
+            assertTrue(after.settling("held-USD").isEmpty());
+        }
+    }
+
+    @Nested
+    @DisplayName("when more dvps are ready than go in one command")
+    class Chunks {
+
+        // Cash in contracts of 500, and dvps of 1000 each
+        Event[] dvps(int from, int to) {
+            List<Event> events = new ArrayList<>();
+            for(int i = from; i <= to; i++) {
+                events.add(cash("cash-" + i + "a", "USD", 500));
+                events.add(cash("cash-" + i + "b", "USD", 500));
+                events.add(acceptedDvp("dvp-" + i, "USD", 1000, ANY_TIME));
+            }
+            return events.toArray(new Event[0]);
+        }
+
+        List<String> range(String prefix, int from, int to) {
+            List<String> cids = new ArrayList<>();
+            for(int i = from; i <= to; i++) cids.add(prefix + i);
+            return cids;
+        }
+
+        @Test
+        @DisplayName("then each command holds at most the maximum batch, and no two share contracts")
+        void capsChunks() {
+            Bot bot = new Bot(channel, 0, new BatchingPolicy(1, 3, 0L, TimeUnit.MILLISECONDS, false));
+            bot.process(settlementProcessor());
+            bot.process(dvps(1, 10));
+
+            assertEquals(Arrays.asList(3, 3, 3, 1), bot.submitted.stream().map(s -> s.dvpCids().size()).collect(Collectors.toList()));
+            assertEquals(range("dvp-", 1, 10), bot.submitted.stream().flatMap(s -> s.dvpCids().stream()).collect(Collectors.toList()));
+
+            List<String> assets = bot.submitted.stream().flatMap(s -> s.assetCids().stream()).collect(Collectors.toList());
+            assertEquals(20, assets.size());
+            assertEquals(20, assets.stream().distinct().count());
+            assertEquals(Arrays.asList("cash-1a", "cash-1b", "cash-2a", "cash-2b", "cash-3a", "cash-3b"), bot.submitted.get(0).assetCids());
+            assertTrue(bot.stateFor("USD").acceptedDvps.get("USD").isEmpty());
+        }
+
+        @Test
+        @DisplayName("then dvps left short of the minimum batch wait for more rather than go out alone")
+        void holdsRunt() {
+            Bot bot = new Bot(channel, 0, new BatchingPolicy(3, 3, 1L, TimeUnit.HOURS, false));
+            bot.process(settlementProcessor());
+            bot.process(dvps(1, 7));
+
+            assertEquals(2, bot.submitted.size());
+            assertEquals(range("dvp-", 1, 3), bot.submitted.get(0).dvpCids());
+            assertEquals(range("dvp-", 4, 6), bot.submitted.get(1).dvpCids());
+            assertEquals(Arrays.asList("dvp-7"), cids(bot.stateFor("USD").acceptedDvps.get("USD")));
+            assertEquals(Amount.of(1000), bot.stateFor("USD").getCashTotal("USD").getAmount());
+
+            // Once enough have joined it, the dvp left waiting goes first
+            bot.process(dvps(8, 9));
+            assertEquals(3, bot.submitted.size());
+            assertEquals(range("dvp-", 7, 9), bot.submitted.get(2).dvpCids());
+            assertTrue(bot.stateFor("USD").acceptedDvps.get("USD").isEmpty());
+        }
+    }
+
+    @Nested
+    @DisplayName("when metrics are scraped")
+    class Metrics {
+
+        @Test
+        @DisplayName("then the samples of every shard are merged under one declaration per metric")
+        void mergesShards() {
+            Bot bot = new Bot(channel, 3, BatchingPolicy.immediate());
+            bot.process(assets());
+            bot.process(acceptedDvp("held-USD", "USD", 500, LATER));
+
+            MetricsEndpoint.Writer out = new MetricsEndpoint.Writer("");
+            bot.writeStateMetrics(out);
+            String text = out.text();
+
+            for(String metric : Arrays.asList("settlement_queue_depth", "settlement_balance", "settlement_held_dvps", "settlement_shard_queue_depth")) {
+                assertEquals(1, count(text, "# TYPE " + MetricsEndpoint.PREFIX + metric + " "), metric);
+            }
+            for(String currency : CURRENCIES) {
+                assertTrue(text.contains(MetricsEndpoint.PREFIX + "settlement_balance{asset=\"cash\",symbol=\"" + currency + "\"} 1000\n"), currency);
+            }
+            for(String isin : ISINS) {
+                assertTrue(text.contains(MetricsEndpoint.PREFIX + "settlement_balance{asset=\"bond\",symbol=\"" + isin + "\"} 100\n"), isin);
+            }
+            for(int shard = 0; shard < 3; shard++) {
+                assertTrue(text.contains(MetricsEndpoint.PREFIX + "settlement_shard_queue_depth{shard=\"" + shard + "\"} 0\n"), "shard " + shard);
+                int held = shard == Math.floorMod("USD".hashCode(), 3) ? 1 : 0;
+                assertTrue(text.contains(MetricsEndpoint.PREFIX + "settlement_held_dvps{shard=\"" + shard + "\"} " + held + "\n"), "shard " + shard);
+            }
+        }
+
+        private int count(String text, String line) {
+            int count = 0;
+            for(int i = text.indexOf(line); i >= 0; i = text.indexOf(line, i + 1)) count++;
+            return count;
+        }
+    }
+}
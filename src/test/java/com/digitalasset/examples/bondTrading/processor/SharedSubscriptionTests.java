@@ -0,0 +1,192 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.daml.ledger.api.v1.CommandCompletionServiceGrpc;
+import com.daml.ledger.api.v1.CommandCompletionServiceOuterClass.CompletionStreamRequest;
+import com.daml.ledger.api.v1.CommandCompletionServiceOuterClass.CompletionStreamResponse;
+import com.daml.ledger.api.v1.CommandSubmissionServiceGrpc;
+import com.daml.ledger.api.v1.CommandSubmissionServiceOuterClass.SubmitRequest;
+import com.daml.ledger.api.v1.CommandsOuterClass.Command;
+import com.daml.ledger.api.v1.CompletionOuterClass.Completion;
+import com.daml.ledger.api.v1.TransactionServiceGrpc;
+import com.daml.ledger.api.v1.TransactionServiceOuterClass.GetTransactionsRequest;
+import com.daml.ledger.api.v1.TransactionServiceOuterClass.GetTransactionsResponse;
+import com.daml.ledger.api.v1.ValueOuterClass.Record;
+import com.google.protobuf.Empty;
+import com.google.rpc.Status;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("A SharedSubscription")
+public class SharedSubscriptionTests {
+
+    /*
+     * A ledger that completes each command on the shared completion stream before it answers the submission, as a
+     * fast ledger may. Commands whose workflow ID is "fail" complete with an error
+     */
+    private static class Ledger {
+
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        volatile StreamObserver<CompletionStreamResponse> completions;
+
+        synchronized void complete(String commandId, int code) {
+            completions.onNext(CompletionStreamResponse.newBuilder()
+                .addCompletions(Completion.newBuilder()
+                    .setCommandId(commandId)
+                    .setStatus(Status.newBuilder().setCode(code)))
+                .build());
+        }
+
+        Server start(String name) throws IOException {
+            return InProcessServerBuilder.forName(name)
+                .directExecutor()
+                .addService(new TransactionServiceGrpc.TransactionServiceImplBase() {
+                    @Override
+                    public void getTransactions(GetTransactionsRequest request, StreamObserver<GetTransactionsResponse> responseObserver) {
+                        // No transactions: the stream stays open
+                    }
+                })
+                .addService(new CommandCompletionServiceGrpc.CommandCompletionServiceImplBase() {
+                    @Override
+                    public void completionStream(CompletionStreamRequest request, StreamObserver<CompletionStreamResponse> responseObserver) {
+                        completions = responseObserver;
+                        subscribed.countDown();
+                    }
+                })
+                .addService(new CommandSubmissionServiceGrpc.CommandSubmissionServiceImplBase() {
+                    @Override
+                    public void submit(SubmitRequest request, StreamObserver<Empty> responseObserver) {
+                        boolean fail = request.getCommands().getWorkflowId().equals("fail");
+                        complete(request.getCommands().getCommandId(), fail ? io.grpc.Status.Code.INVALID_ARGUMENT.value() : 0);
+                        responseObserver.onNext(Empty.getDefaultInstance());
+                        responseObserver.onCompleted();
+                    }
+                })
+                .build()
+                .start();
+        }
+    }
+
+    // A processor recording the completions it is handed for the commands it submitted
+    private static class Recorder extends EventProcessor {
+
+        final Set<String> succeeded = ConcurrentHashMap.newKeySet();
+        final Set<String> failed = ConcurrentHashMap.newKeySet();
+
+        Recorder(ManagedChannel channel, String party) {
+            super("test", channel, "package", "ledger", party, false);
+        }
+
+        @Override
+        void processCompletionSuccess(Completion completion, CompletionRecord completionRecord) {
+            if(completionRecord != null) succeeded.add(completion.getCommandId());
+        }
+
+        @Override
+        void processCompletionError(Completion completion, CompletionRecord completionRecord) {
+            if(completionRecord != null) failed.add(completion.getCommandId());
+        }
+
+        List<String> submit(String workflowId, int count) {
+            Command command = buildCreateCommand(identityOf("Test", "Test"), Record.newBuilder());
+            List<String> commandIds = new ArrayList<>();
+            for(int i = 0; i < count; i++) commandIds.add(submitCommands(workflowId, Collections.singletonList(command)));
+            return commandIds;
+        }
+    }
+
+    private final Ledger ledger = new Ledger();
+    private Server server;
+    private ManagedChannel channel;
+    private Recorder alice;
+    private Recorder bob;
+
+    @BeforeEach
+    void start() throws IOException, InterruptedException {
+        String name = InProcessServerBuilder.generateName();
+        server = ledger.start(name);
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+
+        alice = new Recorder(channel, "Alice");
+        bob = new Recorder(channel, "Bob");
+        assertEquals(0, new SharedSubscription(channel, "ledger", Arrays.asList(alice, bob)).run());
+        assertTrue(ledger.subscribed.await(5, TimeUnit.SECONDS));
+    }
+
+    @AfterEach
+    void stop() {
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    private void awaitCompletions(Recorder... processors) {
+        for(Recorder p : processors) assertTrue(p.awaitPendingCommands(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    @DisplayName("hands each completion only to the processor that submitted the command")
+    void routesToSubmitter() {
+        List<String> aliceCommands = alice.submit("ok", 20);
+        List<String> bobCommands = bob.submit("ok", 20);
+        awaitCompletions(alice, bob);
+
+        assertEquals(new HashSet<>(aliceCommands), alice.succeeded);
+        assertEquals(new HashSet<>(bobCommands), bob.succeeded);
+        assertTrue(alice.failed.isEmpty());
+        assertTrue(bob.failed.isEmpty());
+    }
+
+    @Test
+    @DisplayName("routes completions received before the submission returns, with submissions in flight")
+    void routesEarlyCompletions() {
+        alice.setSubmissionWindow(4);
+        bob.setSubmissionWindow(4);
+
+        List<String> aliceCommands = alice.submit("ok", 50);
+        List<String> bobFailures = bob.submit("fail", 50);
+        awaitCompletions(alice, bob);
+
+        assertEquals(new HashSet<>(aliceCommands), alice.succeeded);
+        assertEquals(new HashSet<>(bobFailures), bob.failed);
+        assertTrue(alice.failed.isEmpty());
+        assertTrue(bob.succeeded.isEmpty());
+    }
+
+    @Test
+    @DisplayName("drops completions for commands no hosted processor submitted")
+    void dropsUnknown() {
+        ledger.complete("from-an-earlier-run", 0);
+        List<String> bobCommands = bob.submit("ok", 1);
+        awaitCompletions(alice, bob);
+
+        assertTrue(alice.succeeded.isEmpty());
+        assertEquals(new HashSet<>(bobCommands), bob.succeeded);
+    }
+}
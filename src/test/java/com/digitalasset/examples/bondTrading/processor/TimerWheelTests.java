@@ -0,0 +1,105 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("A TimerWheel")
+public class TimerWheelTests {
+
+    // As the settle time wheel: 512 slots, here of 10 time units each, so one turn is 5120
+    private static final long TICK = 10L;
+    private static final int SLOTS = 512;
+    private static final long TURN = TICK * SLOTS;
+
+    private final TimerWheel<String> wheel = new TimerWheel<>(TICK, SLOTS);
+
+    private List<String> expire(long now) {
+        List<String> expired = new ArrayList<>();
+        wheel.expire(now, expired::add);
+        return expired;
+    }
+
+    @Test
+    @DisplayName("expires items at their deadline, in deadline order")
+    void expiresInOrder() {
+        wheel.schedule("c", 25L);
+        wheel.schedule("a", 21L);
+        wheel.schedule("b", 23L);
+        wheel.schedule("d", 40L);
+        assertEquals(21L, wheel.nextDeadline());
+
+        assertEquals(Collections.emptyList(), expire(20L));
+        assertEquals(Arrays.asList("a", "b"), expire(23L));
+        assertEquals(25L, wheel.nextDeadline());
+        assertEquals(Arrays.asList("c"), expire(39L));
+        assertEquals(Arrays.asList("d"), expire(40L));
+        assertEquals(0, wheel.size());
+        assertEquals(Long.MAX_VALUE, wheel.nextDeadline());
+    }
+
+    @Test
+    @DisplayName("expires an item already due on the next call")
+    void expiresOverdue() {
+        expire(1000L);
+        wheel.schedule("late", 500L);
+        assertEquals(500L, wheel.nextDeadline());
+        assertEquals(Arrays.asList("late"), expire(1000L));
+    }
+
+    @Test
+    @DisplayName("holds items due more than a turn ahead until their deadline")
+    void holdsPastOneTurn() {
+        // Each shares its slot with the one before: they are a whole number of turns apart
+        wheel.schedule("first", 15L);
+        wheel.schedule("second", 15L + TURN);
+        wheel.schedule("third", 15L + 3 * TURN);
+        assertEquals(15L, wheel.nextDeadline());
+
+        assertEquals(Arrays.asList("first"), expire(15L));
+        assertEquals(15L + TURN, wheel.nextDeadline());
+        assertEquals(Collections.emptyList(), expire(TURN));
+        assertEquals(Arrays.asList("second"), expire(15L + TURN));
+        assertEquals(15L + 3 * TURN, wheel.nextDeadline());
+        assertEquals(Collections.emptyList(), expire(15L + 2 * TURN));
+        assertEquals(Arrays.asList("third"), expire(15L + 3 * TURN));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    @DisplayName("finds the earliest deadline when a later one comes first in slot order")
+    void nextDeadlineAcrossTurns() {
+        expire(100L);
+        // The slot of 150 + TURN comes before the slot of 4000 in this turn, but is due a turn later
+        wheel.schedule("later", 150L + TURN);
+        wheel.schedule("sooner", 4000L);
+        assertEquals(4000L, wheel.nextDeadline());
+        wheel.expire(4000L, item -> assertEquals("sooner", item));
+        assertEquals(150L + TURN, wheel.nextDeadline());
+    }
+
+    @Test
+    @DisplayName("expires everything due when more than a turn has passed")
+    void expiresAfterLongGap() {
+        wheel.schedule("a", 50L);
+        wheel.schedule("b", 2 * TURN + 30L);
+        wheel.schedule("c", 2 * TURN + 70L);
+        wheel.schedule("d", 5 * TURN);
+        assertEquals(Arrays.asList("a", "b", "c"), expire(3 * TURN));
+        assertEquals(1, wheel.size());
+        assertEquals(5 * TURN, wheel.nextDeadline());
+        assertEquals(Arrays.asList("d"), expire(6 * TURN));
+    }
+}
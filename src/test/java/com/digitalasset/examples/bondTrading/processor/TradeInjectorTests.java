@@ -0,0 +1,147 @@
+// Copyright (c) 2019, Digital Asset (Switzerland) GmbH and/or its affiliates. All rights reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.digitalasset.examples.bondTrading.processor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.daml.ledger.api.v1.CommandsOuterClass.Command;
+import com.daml.ledger.api.v1.CompletionOuterClass.Completion;
+import com.google.rpc.Status;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnitPlatform.class)
+@DisplayName("A TradeInjector")
+public class TradeInjectorTests {
+
+    private ManagedChannel channel;
+    private TradeInjector injector;
+    private final List<String> errors = new ArrayList<>();
+    private final List<Integer> exitCodes = new ArrayList<>();
+
+    @BeforeEach
+    void createInjector() {
+        channel = ManagedChannelBuilder.forAddress("localhost", 6865).usePlaintext().build();
+        injector = new TradeInjector(channel, "package", "ledger", "Alice", "trades.csv", null, false) {
+            @Override
+            void logError(String message) {
+                errors.add(message);
+            }
+
+            @Override
+            void terminate(int exitCode) {
+                exitCodes.add(exitCode);
+            }
+        };
+    }
+
+    @AfterEach
+    void closeChannel() {
+        channel.shutdownNow();
+    }
+
+    private Path tradeFile;
+
+    @AfterEach
+    void deleteTradeFile() throws IOException {
+        if(tradeFile != null) Files.deleteIfExists(tradeFile);
+    }
+
+    private Command trade(String dvpId) {
+        return injector.asCommand(new String[] {"Alice", "Bob", "Bank", "US-1", "100000", "Bank", "EUR", "99000", dvpId});
+    }
+
+    private Completion failed(String commandId) {
+        return Completion.newBuilder()
+            .setCommandId(commandId)
+            .setStatus(Status.newBuilder().setCode(3).setMessage("bad trade"))
+            .build();
+    }
+
+    @Test
+    @DisplayName("reports every trade of a failed batch, and terminates")
+    void reportsFailedBatch() {
+        List<Command> batch = new ArrayList<>();
+        for(int i = 1; i <= 3; i++) batch.add(trade("trade-" + i));
+        injector.processCompletionError(failed("batch-1"), new EventProcessor.CompletionRecord("TradeInjection", "batch-1", batch, 0L));
+
+        assertEquals(3, errors.size());
+        for(int i = 1; i <= 3; i++) {
+            assertTrue(errors.get(i - 1).contains("trade trade-" + i + " failed with status 3: 'bad trade'"), errors.get(i - 1));
+        }
+        assertEquals(1, exitCodes.size());
+        assertEquals(1, (int) exitCodes.get(0));
+    }
+
+    @Test
+    @DisplayName("stops the other workers as soon as any worker fails, whatever the order they were submitted in")
+    void stopsOnFirstFailure() throws IOException, InterruptedException {
+        tradeFile = Files.createTempFile("trades", ".csv");
+        Files.write(tradeFile, String.join("\n",
+            "buyer,seller,bondIssuer,bondIsin,bondAmount,cashIssuer,cashCurrency,cashAmount,dvpId",
+            "Alice,Bob,Bank,US-1,100000,Bank,EUR,99000,slow-trade",
+            "Alice,Bob,Bank,US-1,100000,Bank,EUR,99000,fail-trade",
+            "").getBytes(StandardCharsets.UTF_8));
+
+        CountDownLatch interrupted = new CountDownLatch(1);
+        TradeInjector injector = new TradeInjector(channel, "package", "ledger", "Alice", tradeFile.toString(), null, false) {
+            @Override
+            void submitCommands(String commandId, String workFlowId, List<Command> commands, long intendedNanos) {
+                if(commands.toString().contains("fail-trade")) throw new IllegalStateException("cannot send");
+                // The first worker's trade is held until injection stops it
+                try {
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            void logError(String message) {
+                errors.add(message);
+            }
+
+            @Override
+            void terminate(int exitCode) {
+                exitCodes.add(exitCode);
+            }
+        };
+        injector.setWorkers(2);
+        injector.setBatchSize(1);
+
+        assertFalse(injector.injectTrades());
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS), "the slow worker was not stopped");
+        assertEquals(1, exitCodes.size());
+        assertEquals(1, (int) exitCodes.get(0));
+        assertTrue(errors.stream().anyMatch(e -> e.contains("cannot send")), errors.toString());
+    }
+
+    @Test
+    @DisplayName("reports a failed command from an earlier run without terminating")
+    void reportsUnknownCommand() {
+        injector.processCompletionError(failed("earlier"), null);
+
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).contains("command earlier failed"), errors.get(0));
+        assertTrue(exitCodes.isEmpty());
+    }
+}